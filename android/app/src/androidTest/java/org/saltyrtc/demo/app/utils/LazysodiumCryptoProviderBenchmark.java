@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.utils;
+
+import android.os.Bundle;
+import android.os.Debug;
+import android.support.annotation.NonNull;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.goterl.lazycode.lazysodium.LazySodiumAndroid;
+import com.goterl.lazycode.lazysodium.SodiumAndroid;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.saltyrtc.client.crypto.CryptoProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+
+/**
+ * Compares the crypto provider, which shares a single lazysodium wrapper,
+ * with creating a wrapper per operation (as the provider did before).
+ *
+ * For each operation, ops/sec and the bytes allocated per operation are
+ * reported via the instrumentation status and the log. Since the lazysodium
+ * binaries are only packaged for Android, this runs on a device:
+ *
+ *     $ ./gradlew connectedDebugAndroidTest
+ *
+ * Note: Allocations are read from the process-wide ART counter, so other
+ *       threads of the test process may add some noise.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LazysodiumCryptoProviderBenchmark {
+    @NonNull private static final Logger log = LoggerFactory.getLogger("SaltyRTC.Demo.Benchmark");
+    private static final int WARMUP_ITERATIONS = 1_000;
+    private static final int ITERATIONS = 10_000;
+
+    @NonNull private static final SodiumAndroid sodium = new SodiumAndroid();
+    @NonNull private final CryptoProvider provider = new LazysodiumCryptoProvider();
+    @NonNull private final byte[] key = new byte[CryptoProvider.SYMMKEYBYTES];
+    @NonNull private final byte[] nonce = new byte[CryptoProvider.NONCEBYTES];
+    @NonNull private final byte[] privateKey = new byte[CryptoProvider.PRIVATEKEYBYTES];
+    @NonNull private final byte[] publicKey = new byte[CryptoProvider.PUBLICKEYBYTES];
+
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+    /**
+     * The result of running an operation repeatedly.
+     */
+    private static class Result {
+        final double opsPerSecond;
+        final double bytesPerOp;
+
+        Result(final double opsPerSecond, final double bytesPerOp) {
+            this.opsPerSecond = opsPerSecond;
+            this.bytesPerOp = bytesPerOp;
+        }
+    }
+
+    @NonNull private static Result measure(@NonNull final Operation operation) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; ++i) {
+            operation.run();
+        }
+        final long allocatedBefore = getAllocatedBytes();
+        final long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; ++i) {
+            operation.run();
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long allocated = getAllocatedBytes() - allocatedBefore;
+        return new Result(ITERATIONS * 1e9 / elapsed, (double) allocated / ITERATIONS);
+    }
+
+    private static long getAllocatedBytes() {
+        return Long.parseLong(Debug.getRuntimeStat("art.gc.bytes-allocated"));
+    }
+
+    /**
+     * Measure an operation before and after, and report the results.
+     */
+    private void compare(
+        @NonNull final String name,
+        @NonNull final Operation before,
+        @NonNull final Operation after
+    ) throws Exception {
+        final Result perOperation = measure(before);
+        final Result shared = measure(after);
+        final String summary = String.format(Locale.US,
+            "%s: per-operation wrapper %.0f ops/s, %.1f B/op; " +
+                "shared wrapper %.0f ops/s, %.1f B/op",
+            name, perOperation.opsPerSecond, perOperation.bytesPerOp,
+            shared.opsPerSecond, shared.bytesPerOp);
+        log.info(summary);
+        final Bundle status = new Bundle();
+        status.putString(name, summary);
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, status);
+    }
+
+    @Test
+    public void symmetricEncrypt() throws Exception {
+        for (final int length : new int[] { 64, 16 * 1024 }) {
+            final byte[] input = new byte[length];
+            this.compare("symmetricEncrypt(" + length + ")", () -> {
+                final byte[] output = new byte[input.length + CryptoProvider.BOXOVERHEAD];
+                new LazySodiumAndroid(sodium).cryptoSecretBoxEasy(
+                    output, input, input.length, this.nonce, this.key);
+            }, () -> this.provider.symmetricEncrypt(input, this.key, this.nonce));
+        }
+    }
+
+    @Test
+    public void symmetricDecrypt() throws Exception {
+        final byte[] input = this.provider.symmetricEncrypt(new byte[64], this.key, this.nonce);
+        this.compare("symmetricDecrypt(64)", () -> {
+            final byte[] output = new byte[input.length - CryptoProvider.BOXOVERHEAD];
+            new LazySodiumAndroid(sodium).cryptoSecretBoxOpenEasy(
+                output, input, input.length, this.nonce, this.key);
+        }, () -> this.provider.symmetricDecrypt(input, this.key, this.nonce));
+    }
+
+    @Test
+    public void derivePublicKey() throws Exception {
+        this.provider.generateKeypair(this.publicKey, this.privateKey);
+        this.compare("derivePublicKey", () -> {
+            final byte[] output = new byte[CryptoProvider.PUBLICKEYBYTES];
+            new LazySodiumAndroid(sodium).cryptoScalarMultBase(output, this.privateKey);
+        }, () -> this.provider.derivePublicKey(this.privateKey));
+    }
+}
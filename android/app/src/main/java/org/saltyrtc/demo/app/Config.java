@@ -22,6 +22,26 @@ public final class Config {
     @Nullable public static String TURN_USER = null;
     @Nullable public static String TURN_PASS = null;
 
+    // Overrides the remote peer's maximum message size if greater than 0
+    public static long MAX_MESSAGE_SIZE = 0;
+
+    // Window for batching gathered ICE candidates (sent one by one if 0)
+    public static long ICE_CANDIDATE_BATCH_MS = 50;
+
+    // Time to wait for an ICE restart before re-signalling when reconnecting
+    public static long ICE_RESTART_TIMEOUT_MS = 800;
+
+    // Target queueing delay for adaptive water marks (fixed water marks if 0)
+    public static long ADAPTIVE_WATER_MARKS_DELAY_MS = 100;
+    public static long ADAPTIVE_WATER_MARKS_MIN = 256 * 1024;
+    public static long ADAPTIVE_WATER_MARKS_MAX = 8 * 1024 * 1024;
+
+    // Create the peer connection factory when the app starts
+    public static boolean WARM_UP_FACTORY = true;
+
+    // Interval for logging transport metrics (disabled if 0)
+    public static long METRICS_INTERVAL_MS = BuildConfig.DEBUG ? 5000 : 0;
+
     @NonNull public static String PRIVATE_KEY =
         "c41df741435bb144edcd429d1d8e86c5e0e24ccceff87ec5e6647525c2d52077";
     @NonNull public static String TRUSTED_KEY =
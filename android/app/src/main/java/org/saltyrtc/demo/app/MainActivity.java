@@ -10,7 +10,10 @@ package org.saltyrtc.demo.app;
 import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.net.ConnectivityManager;
+import android.net.Network;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.annotation.AnyThread;
 import android.support.annotation.MainThread;
 import android.support.annotation.NonNull;
@@ -37,7 +40,11 @@ import org.saltyrtc.client.exceptions.InvalidKeyException;
 import org.saltyrtc.client.keystore.KeyStore;
 import org.saltyrtc.client.signaling.state.SignalingState;
 import org.saltyrtc.demo.app.chat.Chat;
+import org.saltyrtc.demo.app.signaling.PeerConnectionFactoryHolder;
 import org.saltyrtc.demo.app.signaling.SignalingConnection;
+import org.saltyrtc.demo.app.transport.ChunkMode;
+import org.saltyrtc.demo.app.transport.CryptoMode;
+import org.saltyrtc.demo.app.webrtc.TransportMetrics;
 import org.saltyrtc.tasks.webrtc.WebRTCTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -52,7 +59,9 @@ import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.Locale;
 import java.util.Objects;
+import java.util.concurrent.ScheduledFuture;
 
 public class MainActivity extends Activity {
     static {
@@ -64,6 +73,10 @@ public class MainActivity extends Activity {
 
     @Nullable private SignalingConnection sc;
     @Nullable private Chat chat;
+    @Nullable private ScheduledFuture<?> metricsLogger;
+    @Nullable private NetworkCallback networkCallback;
+    private long startedAtMs;
+    private boolean startedWarm;
 
     private Button startButton;
     private Button stopButton;
@@ -115,6 +128,19 @@ public class MainActivity extends Activity {
 
         // Initialize states
         this.runOnUiThread(this::resetStates);
+
+        // Create the peer connection factory ahead of time (if enabled)
+        if (Config.WARM_UP_FACTORY) {
+            PeerConnectionFactoryHolder.warmUp(this);
+        }
+    }
+
+    @Override
+    @MainThread
+    protected void onDestroy() {
+        this.stop(null);
+        PeerConnectionFactoryHolder.coolDown();
+        super.onDestroy();
     }
 
     /**
@@ -231,6 +257,77 @@ public class MainActivity extends Activity {
         }
     }
 
+    /**
+     * Logs transport metrics snapshots along with the throughput since the
+     * previous snapshot.
+     */
+    @AnyThread
+    private static class MetricsLogger implements TransportMetrics.SnapshotListener {
+        @Nullable private TransportMetrics.Snapshot previous;
+
+        @Override
+        public void onSnapshot(@NonNull final TransportMetrics.Snapshot snapshot) {
+            if (this.previous != null) {
+                log.info(String.format(Locale.US,
+                    "Transport: send=%.2f MB/s, receive=%.2f MB/s, %s",
+                    snapshot.getSendRate(this.previous) / 1e6,
+                    snapshot.getReceiveRate(this.previous) / 1e6,
+                    snapshot));
+            }
+            this.previous = snapshot;
+        }
+    }
+
+    /**
+     * Reconnects once the default network changes (e.g. when handing over
+     * from Wi-Fi to cellular).
+     */
+    @AnyThread
+    private class NetworkCallback extends ConnectivityManager.NetworkCallback {
+        @Nullable private Network network;
+
+        @Override
+        public void onAvailable(@NonNull final Network network) {
+            // Note: This is called with the current default network once
+            //       registered, so only subsequent networks are a change.
+            final Network previous = this.network;
+            this.network = network;
+            if (previous == null || previous.equals(network)) {
+                return;
+            }
+
+            // Reconnect
+            final SignalingConnection sc = MainActivity.this.sc;
+            if (sc == null) {
+                return;
+            }
+            log.info("Default network changed, reconnecting");
+            sc.reconnect(new ReconnectListener());
+        }
+    }
+
+    /**
+     * Handler for reconnect events.
+     */
+    @AnyThread
+    private class ReconnectListener implements SignalingConnection.ReconnectListener {
+        @Override
+        public void onResignal() {
+            // Close chat of the previous peer connection
+            MainActivity.this.closeChat();
+            MainActivity.this.runOnUiThread(() -> {
+                MainActivity.this.setSendElementsEnabled(false);
+                MainActivity.this.resetStates();
+                MainActivity.this.setState(StateType.SALTY_HANDOVER, "NO");
+            });
+        }
+
+        @Override
+        public void onClientCreated(@NonNull final SaltyRTC client) {
+            MainActivity.this.bindSignalingEvents(client);
+        }
+    }
+
     /**
      * Handler for peer-to-peer connection events.
      */
@@ -274,7 +371,28 @@ public class MainActivity extends Activity {
 
             // Create a chat instance (if not already created)
             if (MainActivity.this.chat == null) {
-                MainActivity.this.chat = new Chat(dc, task, new ChatEvents());
+                log.info("Start to open data channel: " +
+                    (SystemClock.elapsedRealtime() - MainActivity.this.startedAtMs) + " ms (" +
+                    (MainActivity.this.startedWarm ? "warm" : "cold") + ")");
+
+                MainActivity.this.chat = new Chat(
+                    dc, task, new ChatEvents(),
+                    CryptoMode.ENCRYPT_THEN_CHUNK, ChunkMode.UNRELIABLE_UNORDERED,
+                    sc.getExecutors());
+                MainActivity.this.chat.setMaxMessageSize(sc.getMaxMessageSize());
+                if (Config.ADAPTIVE_WATER_MARKS_DELAY_MS > 0) {
+                    MainActivity.this.chat.enableAdaptiveWaterMarks(
+                        Config.ADAPTIVE_WATER_MARKS_DELAY_MS,
+                        Config.ADAPTIVE_WATER_MARKS_MIN, Config.ADAPTIVE_WATER_MARKS_MAX);
+                }
+                sc.addMetrics(MainActivity.this.chat.getMetrics());
+
+                // Log transport metrics periodically (if enabled)
+                if (Config.METRICS_INTERVAL_MS > 0) {
+                    MainActivity.this.metricsLogger = MainActivity.this.chat.getMetrics()
+                        .scheduleSnapshots(sc.getExecutors().getScheduler(),
+                            Config.METRICS_INTERVAL_MS, new MetricsLogger());
+                }
 
                 // Enable send elements
                 MainActivity.this.runOnUiThread(() ->
@@ -314,6 +432,8 @@ public class MainActivity extends Activity {
     @UiThread
     public void start(@NonNull final View view) {
         log.debug("Starting SaltyRTC client...");
+        this.startedAtMs = SystemClock.elapsedRealtime();
+        this.startedWarm = PeerConnectionFactoryHolder.isWarm();
         try {
             this.init();
 
@@ -321,16 +441,16 @@ public class MainActivity extends Activity {
             this.sc = new SignalingConnection(this, new PeerConnectionObserver());
 
             // Bind signalling events
-            final SaltyRTC client = Objects.requireNonNull(this.sc.getClient());
-            final SignalingEvents events = new SignalingEvents();
-            client.events.signalingStateChanged.register(events::onSignalingStateChanged);
-            client.events.close.register(events::onClose);
-            client.events.handover.register(events::onHandover);
-            client.events.applicationData.register(events::onApplicationData);
+            this.bindSignalingEvents(Objects.requireNonNull(this.sc.getClient()));
 
             // Initiate connecting to signalling server
             this.sc.connect();
 
+            // Reconnect on network changes
+            this.networkCallback = new NetworkCallback();
+            this.getSystemService(ConnectivityManager.class)
+                .registerDefaultNetworkCallback(this.networkCallback);
+
             // Swap start/stop button
             this.startButton.setEnabled(false);
             this.stopButton.setEnabled(true);
@@ -348,15 +468,49 @@ public class MainActivity extends Activity {
     }
 
     /**
-     * Stop SaltyRTC client.
+     * Bind the events of a SaltyRTC client.
      */
-    @UiThread
-    public void stop(@Nullable final View view) {
+    @AnyThread
+    private void bindSignalingEvents(@NonNull final SaltyRTC client) {
+        final SignalingEvents events = new SignalingEvents();
+        client.events.signalingStateChanged.register(events::onSignalingStateChanged);
+        client.events.close.register(events::onClose);
+        client.events.handover.register(events::onHandover);
+        client.events.applicationData.register(events::onApplicationData);
+    }
+
+    /**
+     * Stop logging metrics and close the chat.
+     */
+    @AnyThread
+    private void closeChat() {
+        // Stop logging metrics
+        if (this.metricsLogger != null) {
+            this.metricsLogger.cancel(false);
+            this.metricsLogger = null;
+        }
+
         // Close chat
         if (this.chat != null) {
             this.chat.close();
             this.chat = null;
         }
+    }
+
+    /**
+     * Stop SaltyRTC client.
+     */
+    @UiThread
+    public void stop(@Nullable final View view) {
+        // Stop reconnecting on network changes
+        if (this.networkCallback != null) {
+            this.getSystemService(ConnectivityManager.class)
+                .unregisterNetworkCallback(this.networkCallback);
+            this.networkCallback = null;
+        }
+
+        // Close chat
+        this.closeChat();
 
         // Close signalling connection
         if (this.sc != null) {
@@ -9,17 +9,23 @@ package org.saltyrtc.demo.app.chat;
 
 import android.support.annotation.AnyThread;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import org.saltyrtc.chunkedDc.Unchunker;
 import org.saltyrtc.demo.app.transport.ChunkMode;
 import org.saltyrtc.demo.app.transport.CryptoMode;
+import org.saltyrtc.demo.app.transport.SegmentWriter;
 import org.saltyrtc.demo.app.webrtc.DataChannelContext;
+import org.saltyrtc.demo.app.webrtc.StripedTransport;
+import org.saltyrtc.demo.app.webrtc.TransportExecutors;
+import org.saltyrtc.demo.app.webrtc.TransportMetrics;
 import org.saltyrtc.tasks.webrtc.WebRTCTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.webrtc.DataChannel;
 
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.util.concurrent.CompletableFuture;
 
 /**
@@ -30,6 +36,10 @@ public class Chat {
     @NonNull private static final Logger log = LoggerFactory.getLogger("SaltyRTC.Demo.Chat");
 
     @NonNull private final DataChannelContext dcc;
+    @NonNull private final ChatEvents events;
+    @Nullable private StripedTransport striped;
+    private long stripedThreshold = Long.MAX_VALUE;
+    private long maxMessageSize = 0;
 
     /**
      * Chat events.
@@ -47,19 +57,45 @@ public class Chat {
         void onBufferStatusUpdate(long lowWaterMark, long highWaterMark, long bufferedAmount);
     }
 
+    /**
+     * Create a chat on top of a data channel.
+     *
+     * Note: This applies encrypt-then-chunk with unreliable/unordered
+     *       chunking mode for backwards compatibility reasons.
+     */
     public Chat(
         @NonNull final DataChannel dc,
         @NonNull final WebRTCTask task,
         @NonNull final ChatEvents events
     ) {
+        this(dc, task, events, CryptoMode.ENCRYPT_THEN_CHUNK, ChunkMode.UNRELIABLE_UNORDERED,
+            TransportExecutors.getShared());
+    }
+
+    /**
+     * Create a chat on top of a data channel.
+     *
+     * Note: Only choose modes other than encrypt-then-chunk and
+     *       unreliable/unordered if the remote peer supports them. Since the
+     *       data channel is always reliable/ordered, chunk-then-encrypt with
+     *       reliable/ordered chunking mode yields the best throughput.
+     */
+    public Chat(
+        @NonNull final DataChannel dc,
+        @NonNull final WebRTCTask task,
+        @NonNull final ChatEvents events,
+        @NonNull final CryptoMode cryptoMode,
+        @NonNull final ChunkMode chunkMode,
+        @NonNull final TransportExecutors executors
+    ) {
+        this.events = events;
+
         // Handle incoming message
         final Unchunker.MessageListener messageListener = events::onMessage;
 
-        // Note: We need to apply encrypt-then-chunk with unreliable/unordered
-        //       chunking mode for backwards compatibility reasons.
+        // Create data channel context
         final DataChannelContext dcc = new DataChannelContext(
-            CryptoMode.ENCRYPT_THEN_CHUNK, ChunkMode.UNRELIABLE_UNORDERED,
-            dc, task, messageListener);
+            cryptoMode, chunkMode, dc, task, messageListener, executors);
         this.dcc = dcc;
 
         // Bind events
@@ -102,21 +138,158 @@ public class Chat {
     }
 
     /**
-     * Send a byte sequence via the underlying data channel.
+     * Coalesce small messages into batches before they are being encrypted
+     * and sent.
+     *
+     * Important: This is not supported in the legacy modes
+     *            (encrypt-then-chunk with unreliable/unordered chunking
+     *            mode). Batches are marked, so the remote peer does not need
+     *            to enable coalescing. Messages can no longer be streamed
+     *            once coalescing is enabled.
+     *
+     * @param maxDelayMs The maximum amount of milliseconds a message may be
+     *   held back.
+     * @param maxBatchLength The maximum length of a batch in bytes.
+     */
+    public void enableCoalescing(final long maxDelayMs, final int maxBatchLength) {
+        this.dcc.enableCoalescing(maxDelayMs, maxBatchLength);
+    }
+
+    /**
+     * Resize the water marks of the chat's data channel towards a target
+     * queueing delay (see `FlowControlledDataChannel`).
+     *
+     * @param targetDelayMs The target queueing delay in milliseconds.
+     * @param minHighWaterMark The lower bound for the high water mark.
+     * @param maxHighWaterMark The upper bound for the high water mark.
+     */
+    public void enableAdaptiveWaterMarks(
+        final long targetDelayMs, final long minHighWaterMark, final long maxHighWaterMark) {
+        this.dcc.fcdc.enableAdaptiveWaterMarks(targetDelayMs, minHighWaterMark, maxHighWaterMark);
+    }
+
+    /**
+     * Set the maximum message size the remote peer is able to receive. The
+     * chunk length of the chat's data channel (and of the striped
+     * transport's data channels) is derived from it.
+     */
+    public synchronized void setMaxMessageSize(final long maxMessageSize) {
+        this.dcc.setMaxMessageSize(maxMessageSize);
+        if (this.striped != null) {
+            this.striped.setMaxMessageSize(maxMessageSize);
+        }
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * Compress messages with deflate before they are being encrypted.
+     *
+     * Important: The remote peer must enable compression as well, otherwise
+     *            it discards compressed messages. This is not supported in
+     *            the legacy modes (encrypt-then-chunk with
+     *            unreliable/unordered chunking mode).
+     *
+     * @param level The compression level (0-9 or `Deflater.DEFAULT_COMPRESSION`).
+     */
+    public void enableCompression(final int level) {
+        this.dcc.enableCompression(level);
+    }
+
+    /**
+     * Stripe messages above a threshold across several additional negotiated
+     * data channels.
+     *
+     * Important: The remote peer must negotiate the same channels. Messages
+     *            sent via the striped transport are not ordered in respect to
+     *            messages sent via the chat's data channel.
      *
-     * Note: This uses the old encrypt-then-chunk method which results in high
+     * @param pc The peer connection to create the data channels on.
+     * @param task The WebRTC task (used to create the crypto contexts).
+     * @param executors The executors used by the data channels.
+     * @param firstId The ID of the first negotiated data channel.
+     * @param count The amount of data channels.
+     * @param threshold Messages of at least this length will be striped.
+     */
+    public synchronized void enableStripedTransport(
+        @NonNull final org.webrtc.PeerConnection pc,
+        @NonNull final WebRTCTask task,
+        @NonNull final TransportExecutors executors,
+        final int firstId,
+        final int count,
+        final long threshold
+    ) {
+        if (this.striped != null) {
+            throw new IllegalStateException("Striped transport already enabled");
+        }
+        this.striped = new StripedTransport(
+            pc, task, executors, firstId, count, this.events::onMessage);
+        if (this.maxMessageSize > 0) {
+            this.striped.setMaxMessageSize(this.maxMessageSize);
+        }
+        this.stripedThreshold = threshold;
+    }
+
+    /**
+     * Send a byte sequence via the underlying data channel (or striped across
+     * several data channels if enabled and the message is large enough).
+     *
+     * Note: When using the old encrypt-then-chunk method, this results in high
      *       memory pressure and low throughput.
      */
     @AnyThread
     @NonNull public CompletableFuture<?> send(@NonNull final ByteBuffer buffer) {
+        final StripedTransport striped;
+        final long threshold;
+        synchronized (this) {
+            striped = this.striped;
+            threshold = this.stripedThreshold;
+        }
+        if (striped != null && buffer.remaining() >= threshold) {
+            return striped.sendAsync(buffer);
+        }
         return this.dcc.sendAsync(buffer);
     }
 
+    /**
+     * Send a byte sequence read from a channel via the underlying data
+     * channel. The source is read incrementally and closed once sent.
+     *
+     * Note: This requires a crypto mode other than encrypt-then-chunk.
+     */
+    @AnyThread
+    @NonNull public CompletableFuture<?> send(@NonNull final ReadableByteChannel source) {
+        return this.dcc.sendAsync(source);
+    }
+
+    /**
+     * Stream incoming messages into sinks (e.g. files) instead of handing
+     * out fully reassembled messages via the `onMessage` event.
+     *
+     * Note: This requires chunk-then-encrypt (or no encryption) and
+     *       reliable/ordered chunking mode.
+     */
+    public void receiveInto(@NonNull final SegmentWriter.SinkProvider provider) {
+        this.dcc.receiveInto(provider);
+    }
+
+    /**
+     * Return the metrics of the underlying data channel.
+     */
+    @NonNull public TransportMetrics getMetrics() {
+        return this.dcc.getMetrics();
+    }
+
     /**
      * Close the underlying data channel.
      */
     public void close() {
         log.debug("Closing chat");
         this.dcc.close();
+        synchronized (this) {
+            if (this.striped != null) {
+                this.striped.close();
+                this.striped = null;
+            }
+        }
     }
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.signaling;
+
+import android.content.Context;
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.saltyrtc.client.crypto.CryptoException;
+import org.saltyrtc.client.exceptions.InvalidKeyException;
+import org.saltyrtc.client.signaling.state.SignalingState;
+import org.saltyrtc.demo.app.webrtc.TransportExecutors;
+import org.saltyrtc.demo.app.webrtc.TransportMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.webrtc.PeerConnectionFactory;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs many concurrent responder sessions, each with its own keys and
+ * trusted initiator.
+ *
+ * All sessions share the process-wide peer connection factory, a single
+ * set of transport executors and the process-wide crypto provider, so the
+ * cost of an additional session is mostly its peer connection and its data
+ * channels.
+ */
+@AnyThread
+public class ConnectionManager {
+    @NonNull private static final Logger log =
+        LoggerFactory.getLogger("SaltyRTC.Demo.ConnectionManager");
+
+    @NonNull private final Context context;
+    @NonNull private final TransportExecutors executors;
+    @NonNull private final Map<String, SignalingConnection> sessions = new ConcurrentHashMap<>();
+    @Nullable private PeerConnectionFactory factory;
+    private boolean closed = false;
+
+    /**
+     * Resource usage of a single session.
+     */
+    public static class SessionUsage {
+        @NonNull public final String id;
+        @NonNull public final SignalingState state;
+        public final long uptimeMs;
+        public final long signalingQueuedBytes;
+        public final int dataChannels;
+        public final long bytesSent;
+        public final long bytesReceived;
+        public final long queueDepth;
+        public final long reassemblyLength;
+        @NonNull public final SetupTimeline.Record timeline;
+
+        SessionUsage(@NonNull final String id, @NonNull final SignalingConnection session) {
+            this.id = id;
+            this.state = session.getState();
+            this.uptimeMs = session.getUptimeMs();
+            this.signalingQueuedBytes = session.getSignalingQueuedBytes();
+            this.timeline = session.getTimeline();
+            final List<TransportMetrics> metrics = session.getMetrics();
+            this.dataChannels = metrics.size();
+            long bytesSent = 0;
+            long bytesReceived = 0;
+            long queueDepth = 0;
+            long reassemblyLength = 0;
+            for (final TransportMetrics channel : metrics) {
+                final TransportMetrics.Snapshot snapshot = channel.snapshot();
+                bytesSent += snapshot.bytesSent;
+                bytesReceived += snapshot.bytesReceived;
+                queueDepth += snapshot.queueDepth;
+                reassemblyLength += snapshot.reassemblyLength;
+            }
+            this.bytesSent = bytesSent;
+            this.bytesReceived = bytesReceived;
+            this.queueDepth = queueDepth;
+            this.reassemblyLength = reassemblyLength;
+        }
+
+        @Override
+        @NonNull public String toString() {
+            return this.id + ": state=" + this.state + ", uptime=" + this.uptimeMs + "ms" +
+                ", signaling queue=" + this.signalingQueuedBytes + "B" +
+                ", channels=" + this.dataChannels +
+                ", sent=" + this.bytesSent + "B, received=" + this.bytesReceived + "B" +
+                ", queue=" + this.queueDepth + ", reassembly=" + this.reassemblyLength + "B" +
+                ", setup=[" + this.timeline + "]";
+        }
+    }
+
+    /**
+     * Create a connection manager.
+     *
+     * @param context Used to initialise webrtc.org.
+     * @param executors The executors shared by the data channels of all
+     *   sessions. They will be shut down once the manager is closed.
+     */
+    public ConnectionManager(
+        @NonNull final Context context,
+        @NonNull final TransportExecutors executors
+    ) {
+        this.context = context.getApplicationContext();
+        this.executors = executors;
+    }
+
+    /**
+     * Return the shared peer connection factory, creating it on first use.
+     */
+    @NonNull private synchronized PeerConnectionFactory getFactory() {
+        if (this.factory == null) {
+            this.factory = PeerConnectionFactoryHolder.acquire(this.context);
+        }
+        return this.factory;
+    }
+
+    /**
+     * Open a new responder session. It still needs to be connected.
+     *
+     * @param id A unique identifier of the session.
+     * @param observer Receives the session's peer connection events.
+     * @param privateKey Our private key for this session (hex encoded).
+     * @param trustedKey The initiator's trusted public key (hex encoded).
+     * @throws IllegalStateException in case a session with the same
+     *   identifier exists or the manager has been closed.
+     */
+    @NonNull public SignalingConnection open(
+        @NonNull final String id,
+        @NonNull final org.webrtc.PeerConnection.Observer observer,
+        @NonNull final String privateKey,
+        @NonNull final String trustedKey
+    ) throws NoSuchAlgorithmException, CryptoException, InvalidKeyException {
+        final SignalingConnection session;
+        synchronized (this) {
+            if (this.closed) {
+                throw new IllegalStateException("Connection manager has been closed");
+            }
+            if (this.sessions.containsKey(id)) {
+                throw new IllegalStateException("Session " + id + " already exists");
+            }
+            session = new SignalingConnection(
+                this.getFactory(), this.executors, observer, privateKey, trustedKey);
+            this.sessions.put(id, session);
+        }
+        log.info("Opened session " + id + " (" + this.sessions.size() + " sessions)");
+        return session;
+    }
+
+    /**
+     * Return a session by its identifier.
+     */
+    @Nullable public SignalingConnection get(@NonNull final String id) {
+        return this.sessions.get(id);
+    }
+
+    /**
+     * Return the amount of sessions.
+     */
+    public int getSessionCount() {
+        return this.sessions.size();
+    }
+
+    /**
+     * Close and remove a session.
+     */
+    public void close(@NonNull final String id) {
+        final SignalingConnection session = this.sessions.remove(id);
+        if (session != null) {
+            session.close();
+            log.info("Closed session " + id + " (" + this.sessions.size() + " sessions)");
+        }
+    }
+
+    /**
+     * Return the resource usage of all sessions.
+     */
+    @NonNull public List<SessionUsage> getUsage() {
+        final List<SessionUsage> usage = new ArrayList<>(this.sessions.size());
+        for (final Map.Entry<String, SignalingConnection> entry : this.sessions.entrySet()) {
+            usage.add(new SessionUsage(entry.getKey(), entry.getValue()));
+        }
+        return usage;
+    }
+
+    /**
+     * Close all sessions, release the shared peer connection factory and
+     * shut down the shared executors.
+     *
+     * Note: This instance cannot be used after calling this!
+     */
+    public void close() {
+        synchronized (this) {
+            this.closed = true;
+        }
+        for (final String id : new ArrayList<>(this.sessions.keySet())) {
+            this.close(id);
+        }
+        synchronized (this) {
+            if (this.factory != null) {
+                PeerConnectionFactoryHolder.release();
+                this.factory = null;
+            }
+        }
+        this.executors.shutdown();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.signaling;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.saltyrtc.tasks.webrtc.messages.Candidate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects gathered ICE candidates for a short window and sends them
+ * together, so a burst of candidates results in a single signalling message
+ * instead of one message per candidate.
+ *
+ * A batch is sent once the window of the first candidate in the batch has
+ * elapsed or once gathering is complete, whichever happens first.
+ */
+@AnyThread
+class IceCandidateBatcher {
+    @NonNull private static final Logger log =
+        LoggerFactory.getLogger("SaltyRTC.Demo.IceCandidateBatcher");
+
+    @NonNull private final ScheduledExecutorService scheduler;
+    private final long windowMs;
+    @NonNull private final BatchListener listener;
+    @NonNull private List<Candidate> batch = new ArrayList<>();
+    @Nullable private ScheduledFuture<?> timer;
+    private boolean closed = false;
+
+    /**
+     * Receives batches of candidates.
+     */
+    @AnyThread
+    interface BatchListener {
+        /**
+         * On batch of candidates ready to be sent.
+         */
+        void onBatch(@NonNull Candidate[] candidates);
+    }
+
+    /**
+     * Create a candidate batcher.
+     *
+     * @param scheduler Used to flush a batch once its window has elapsed.
+     * @param windowMs The maximum amount of milliseconds a candidate may be
+     *   held back. Candidates are sent immediately if 0.
+     * @param listener Receives the batches.
+     */
+    IceCandidateBatcher(
+        @NonNull final ScheduledExecutorService scheduler,
+        final long windowMs,
+        @NonNull final BatchListener listener
+    ) {
+        this.scheduler = scheduler;
+        this.windowMs = windowMs;
+        this.listener = listener;
+    }
+
+    /**
+     * Add a gathered candidate to the current batch.
+     */
+    synchronized void add(@NonNull final Candidate candidate) {
+        if (this.closed) {
+            return;
+        }
+        this.batch.add(candidate);
+
+        // Send immediately if batching is disabled
+        if (this.windowMs <= 0) {
+            this.flush();
+            return;
+        }
+
+        // Start the window with the first candidate of a batch
+        if (this.timer == null) {
+            try {
+                this.timer = this.scheduler.schedule(
+                    this::flush, this.windowMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException error) {
+                log.warn("Could not schedule candidate batch, sending immediately");
+                this.flush();
+            }
+        }
+    }
+
+    /**
+     * Send the current batch (if any), e.g. because gathering is complete.
+     */
+    synchronized void flush() {
+        if (this.timer != null) {
+            this.timer.cancel(false);
+            this.timer = null;
+        }
+        if (this.batch.isEmpty()) {
+            return;
+        }
+
+        // Note: The listener is called while holding the lock to keep the
+        //       order of batches.
+        final Candidate[] candidates = this.batch.toArray(new Candidate[0]);
+        this.batch = new ArrayList<>();
+        if (log.isDebugEnabled()) {
+            log.debug("Sending batch of " + candidates.length + " ICE candidates");
+        }
+        this.listener.onBatch(candidates);
+    }
+
+    /**
+     * Discard the current batch and ignore further candidates.
+     */
+    synchronized void close() {
+        this.closed = true;
+        if (this.timer != null) {
+            this.timer.cancel(false);
+            this.timer = null;
+        }
+        this.batch.clear();
+    }
+}
@@ -7,16 +7,16 @@
  */
 package org.saltyrtc.demo.app.signaling;
 
-import android.app.Activity;
 import android.support.annotation.AnyThread;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import org.saltyrtc.client.exceptions.ConnectionException;
 import org.saltyrtc.client.signaling.CloseCode;
-import org.saltyrtc.demo.app.BuildConfig;
 import org.saltyrtc.demo.app.Config;
-import org.saltyrtc.demo.app.webrtc.UnboundedFlowControlledDataChannel;
+import org.saltyrtc.demo.app.webrtc.BoundedFlowControlledDataChannel;
+import org.saltyrtc.demo.app.webrtc.DataChannelContext;
+import org.saltyrtc.demo.app.webrtc.TransportExecutors;
 import org.saltyrtc.tasks.webrtc.WebRTCTask;
 import org.saltyrtc.tasks.webrtc.events.MessageHandler;
 import org.saltyrtc.tasks.webrtc.exceptions.UntiedException;
@@ -38,8 +38,10 @@ import org.webrtc.SessionDescription;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Creates a WebRTC peer connection.
@@ -52,28 +54,58 @@ import java.util.Objects;
 class PeerConnection {
     @NonNull private static final Logger log = LoggerFactory.getLogger("SaltyRTC.Demo.PC");
 
+    // Signalling messages queued in application space
+    private static final int SIGNALING_QUEUE_CAPACITY = 256;
+    private static final long SIGNALING_QUEUE_BYTE_BUDGET = 4 * 1024 * 1024;
+
+    // Maximum message size as defined by RFC 8841
+    private static final long DEFAULT_MAX_MESSAGE_SIZE = 64 * 1024;
+    @NonNull private static final String MAX_MESSAGE_SIZE_ATTRIBUTE = "a=max-message-size:";
+
     @NonNull private final WebRTCTask task;
     @NonNull private final org.webrtc.PeerConnection.Observer observer;
     @NonNull private final MediaConstraints constraints;
-    @Nullable private PeerConnectionFactory factory;
+    @NonNull private final BoundedFlowControlledDataChannel bfcdc;
+    @NonNull private final IceCandidateBatcher candidateBatcher;
     @Nullable private org.webrtc.PeerConnection pc;
     private boolean dcOpened = false;
+    private volatile long remoteMaxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+
+    // Remote candidates received before the remote description has been set
+    @Nullable private List<Candidate> earlyCandidates = new ArrayList<>();
+    private int earlyCandidateCount = 0;
+
+    // Timing of the connection setup
+    @NonNull private final SetupTimeline timeline;
+
+    // Resolves once the pending ICE restart (if any) is complete
+    @Nullable private CompletableFuture<Void> iceRestart;
+    private boolean iceRestartAnswered = false;
 
+    /**
+     * Create a peer connection.
+     *
+     * @param task The negotiated WebRTC task.
+     * @param observer Receives the peer connection's events.
+     * @param factory The factory to create the peer connection with. It
+     *   will not be disposed by this instance.
+     * @param executors The executors used by the data channels.
+     * @param timeline Records the milestones of the connection setup.
+     */
     PeerConnection(
         @NonNull final WebRTCTask task,
         @NonNull final org.webrtc.PeerConnection.Observer observer,
-        @NonNull final Activity activity
+        @NonNull final PeerConnectionFactory factory,
+        @NonNull final TransportExecutors executors,
+        @NonNull final SetupTimeline timeline
     ) {
         this.task = task;
         this.observer = observer;
+        this.timeline = timeline;
 
-        // Initialize factory
-        PeerConnectionFactory.initialize(
-            PeerConnectionFactory.InitializationOptions.builder(activity)
-                .setEnableInternalTracer(BuildConfig.DEBUG)
-                .createInitializationOptions());
-        this.factory = PeerConnectionFactory.builder()
-            .createPeerConnectionFactory();
+        // Batch gathered candidates
+        this.candidateBatcher = new IceCandidateBatcher(
+            executors.getScheduler(), Config.ICE_CANDIDATE_BATCH_MS, this::sendCandidates);
 
         // Set media constraints
         this.constraints = new MediaConstraints();
@@ -94,9 +126,16 @@ class PeerConnection {
         // Bind task events
         task.setMessageHandler(new TaskMessageHandler());
 
+        // Note: Gathering continually picks up new networks (e.g. when handing
+        //       over from Wi-Fi to cellular), so connectivity can recover
+        //       without an ICE restart.
+        final org.webrtc.PeerConnection.RTCConfiguration configuration =
+            new org.webrtc.PeerConnection.RTCConfiguration(iceServers);
+        configuration.continualGatheringPolicy =
+            org.webrtc.PeerConnection.ContinualGatheringPolicy.GATHER_CONTINUALLY;
+
         // Create peer connection & bind events
-        this.pc = Objects.requireNonNull(this.factory).createPeerConnection(
-            iceServers, new PeerConnectionObserver());
+        this.pc = factory.createPeerConnection(configuration, new PeerConnectionObserver());
 
         // Get transport link
         final SignalingTransportLink link = this.task.getTransportLink();
@@ -110,16 +149,28 @@ class PeerConnection {
         final DataChannel dc = Objects.requireNonNull(this.pc).createDataChannel(
             link.getLabel(), parameters);
 
-        // Wrap as unbounded, flow-controlled data channel
-        final UnboundedFlowControlledDataChannel ufcdc = new UnboundedFlowControlledDataChannel(dc);
+        // Wrap as bounded, flow-controlled data channel
+        // Note: The signalling transport handler's `send` can neither block
+        //       nor report back to the SaltyRTC client, so there is nobody to
+        //       apply backpressure to. Deferring writes would merely move the
+        //       unbounded queue in front of the ring buffer. Instead, we fail
+        //       fast and close the task once the bounds have been exceeded.
+        final BoundedFlowControlledDataChannel bfcdc = new BoundedFlowControlledDataChannel(
+            dc, executors.getEventExecutor(), SIGNALING_QUEUE_CAPACITY,
+            SIGNALING_QUEUE_BYTE_BUDGET, true);
+        bfcdc.failure().exceptionally(error -> {
+            log.error("Data channel " + dc.label() + " signaling write failed", error);
+            task.close(CloseCode.INTERNAL_ERROR);
+            return null;
+        });
+        this.bfcdc = bfcdc;
 
         // Create transport handler
         final SignalingTransportHandler handler = new SignalingTransportHandler() {
             @Override
             public long getMaxMessageSize() {
-                // Sigh... still not supported by webrtc.org, so fallback to a
-                // well-known (and, frankly, terribly small) value.
-                return 64 * 1024;
+                return Math.min(
+                    PeerConnection.this.getMaxMessageSize(), DataChannelContext.MAX_CHUNK_LENGTH);
             }
 
             @Override
@@ -130,9 +181,21 @@ class PeerConnection {
 
             @Override
             public void send(@NonNull final ByteBuffer message) {
-                log.debug("Data channel " + dc.label() + " outgoing signaling message of length " +
-                    message.remaining());
-                ufcdc.write(new DataChannel.Buffer(message, true));
+                if (log.isDebugEnabled()) {
+                    log.debug("Data channel " + dc.label() +
+                        " outgoing signaling message of length " + message.remaining());
+                }
+                bfcdc.writeAsync(new DataChannel.Buffer(message, true)).exceptionally(error -> {
+                    // Note: Dropping a signalling message would break the
+                    //       message sequence, so we have to close instead.
+                    //       A failed write is handled via `failure` above.
+                    if (!bfcdc.failure().isDone()) {
+                        log.error("Data channel " + dc.label() + " signaling queue overflow",
+                            error);
+                        task.close(CloseCode.INTERNAL_ERROR);
+                    }
+                    return null;
+                });
             }
         };
 
@@ -140,7 +203,7 @@ class PeerConnection {
         dc.registerObserver(new DataChannel.Observer() {
             @Override
             public void onBufferedAmountChange(final long bufferedAmount) {
-                ufcdc.bufferedAmountChange();
+                bfcdc.bufferedAmountChange();
             }
 
             @Override
@@ -155,6 +218,7 @@ class PeerConnection {
                         } else {
                             PeerConnection.this.dcOpened = true;
                             log.info("Data channel " + dc.label() + " open");
+                            timeline.mark(SetupTimeline.Milestone.DATA_CHANNEL_OPEN);
                             task.handover(handler);
                         }
                         break;
@@ -202,6 +266,8 @@ class PeerConnection {
                 }
             }
         });
+
+        timeline.mark(SetupTimeline.Milestone.PEER_CONNECTION);
     }
 
     /**
@@ -224,7 +290,12 @@ class PeerConnection {
 
         @Override
         public void onAnswer(@NonNull final Answer answer) {
-            log.error("Unexpected answer received");
+            if (!PeerConnection.this.isRestartingIce()) {
+                log.error("Unexpected answer received");
+                return;
+            }
+            log.debug("Received answer: " + answer.getSdp());
+            PeerConnection.this.onAnswerReceived(answer);
         }
 
         @Override
@@ -248,6 +319,21 @@ class PeerConnection {
             @NonNull final org.webrtc.PeerConnection.IceConnectionState iceConnectionState
         ) {
             log.debug("ICE connection change to " + iceConnectionState.name());
+
+            switch (iceConnectionState) {
+                case CONNECTED:
+                case COMPLETED:
+                    // Record when the first candidate pair has been connected
+                    PeerConnection.this.onConnected();
+                    PeerConnection.this.completeAnsweredIceRestart(null);
+                    break;
+                case FAILED:
+                    PeerConnection.this.completeAnsweredIceRestart(
+                        new IllegalStateException("ICE connection failed"));
+                    break;
+                default:
+                    break;
+            }
             PeerConnection.this.observer.onIceConnectionChange(iceConnectionState);
         }
 
@@ -262,21 +348,22 @@ class PeerConnection {
             @NonNull final org.webrtc.PeerConnection.IceGatheringState iceGatheringState
         ) {
             log.debug("ICE gathering change: " + iceGatheringState.name());
+
+            // Send remaining candidates once gathering is complete
+            if (iceGatheringState == org.webrtc.PeerConnection.IceGatheringState.COMPLETE) {
+                PeerConnection.this.candidateBatcher.flush();
+            }
             PeerConnection.this.observer.onIceGatheringChange(iceGatheringState);
         }
 
         @Override
         public void onIceCandidate(@NonNull final IceCandidate iceCandidate) {
             log.debug("ICE candidate gathered: " + iceCandidate.sdp);
+            PeerConnection.this.timeline.mark(SetupTimeline.Milestone.FIRST_LOCAL_CANDIDATE);
 
-            // Send candidate to the remote peer
-            final Candidate candidate = new Candidate(
-                iceCandidate.sdp, iceCandidate.sdpMid, iceCandidate.sdpMLineIndex);
-            try {
-                PeerConnection.this.task.sendCandidates(new Candidate[] { candidate });
-            } catch (final ConnectionException error) {
-                log.error("Could not send ICE candidate", error);
-            }
+            // Queue candidate to be sent to the remote peer
+            PeerConnection.this.candidateBatcher.add(new Candidate(
+                iceCandidate.sdp, iceCandidate.sdpMid, iceCandidate.sdpMLineIndex));
 
             // Dispatch event
             PeerConnection.this.observer.onIceCandidate(iceCandidate);
@@ -327,9 +414,14 @@ class PeerConnection {
      * An offer was received. Set the remote description.
      */
     private void onOfferReceived(@NonNull final Offer offer) {
+        this.timeline.mark(SetupTimeline.Milestone.OFFER_RECEIVED);
         final SessionDescription offerDescription = new SessionDescription(
             SessionDescription.Type.OFFER, offer.getSdp());
 
+        // Determine the maximum message size the remote peer can receive
+        this.remoteMaxMessageSize = parseMaxMessageSize(offer.getSdp());
+        log.debug("Remote maximum message size: " + this.remoteMaxMessageSize);
+
         // Set remote description
         Objects.requireNonNull(this.pc).setRemoteDescription(new SdpObserver() {
             @Override
@@ -341,6 +433,7 @@ class PeerConnection {
             @Override
             public void onSetSuccess() {
                 log.debug("Remote description set");
+                PeerConnection.this.applyEarlyCandidates();
                 PeerConnection.this.onRemoteDescriptionSet();
             }
 
@@ -351,6 +444,38 @@ class PeerConnection {
         }, offerDescription);
     }
 
+    /**
+     * Parse the `a=max-message-size` attribute of an SDP.
+     *
+     * @return The maximum message size, the default of 64 KiB if absent, or
+     *   `Long.MAX_VALUE` if the remote peer can receive messages of any size.
+     */
+    static long parseMaxMessageSize(@NonNull final String sdp) {
+        for (final String line : sdp.split("\\r?\\n")) {
+            if (line.startsWith(MAX_MESSAGE_SIZE_ATTRIBUTE)) {
+                try {
+                    final long size = Long.parseLong(
+                        line.substring(MAX_MESSAGE_SIZE_ATTRIBUTE.length()).trim());
+                    return size == 0 ? Long.MAX_VALUE : size;
+                } catch (NumberFormatException error) {
+                    log.warn("Invalid max-message-size attribute: " + line);
+                }
+            }
+        }
+        return DEFAULT_MAX_MESSAGE_SIZE;
+    }
+
+    /**
+     * Return the maximum message size the remote peer can receive. This
+     * returns the configured override, if any.
+     */
+    long getMaxMessageSize() {
+        if (Config.MAX_MESSAGE_SIZE > 0) {
+            return Config.MAX_MESSAGE_SIZE;
+        }
+        return this.remoteMaxMessageSize;
+    }
+
     /**
      * The remote description was set. Create and send an answer.
      */
@@ -377,6 +502,7 @@ class PeerConnection {
                     Objects.requireNonNull(this.answerDescription).description);
                 try {
                     PeerConnection.this.task.sendAnswer(answer);
+                    PeerConnection.this.timeline.mark(SetupTimeline.Milestone.ANSWER_SENT);
                     log.debug("Sent answer: " + answer.getSdp());
                 } catch (final ConnectionException error) {
                     log.error("Could not send answer: " + error.getMessage());
@@ -391,19 +517,322 @@ class PeerConnection {
     }
 
     /**
-     * One or more ICE candidates were received. Store them.
+     * Restart ICE on this peer connection, e.g. after a network change. Sends
+     * an offer with fresh ICE credentials via the current signalling channel.
+     *
+     * Important: The remote peer must accept offers from the responder.
+     *            Furthermore, the offer must not be sent via a data channel
+     *            of this peer connection, i.e. only restart ICE before the
+     *            signalling channel has been handed over.
+     *
+     * @return A future that resolves once the answer has been set and a
+     *   candidate pair has been connected again, or fails if ICE failed or
+     *   the offer could not be negotiated. It may also be completed by the
+     *   caller (e.g. on timeout) which abandons the ICE restart.
+     */
+    @NonNull CompletableFuture<Void> restartIce() {
+        final CompletableFuture<Void> future;
+        synchronized (this) {
+            if (this.iceRestart != null) {
+                return this.iceRestart;
+            }
+            future = new CompletableFuture<>();
+            this.iceRestart = future;
+            this.iceRestartAnswered = false;
+
+            // Hold back remote candidates until the answer has been applied
+            if (this.earlyCandidates == null) {
+                this.earlyCandidates = new ArrayList<>();
+            }
+        }
+        future.whenComplete((result, error) -> this.onIceRestartDone(future, error));
+        final org.webrtc.PeerConnection pc = this.pc;
+        if (pc == null) {
+            this.completeIceRestart(new IllegalStateException("Connection closed"));
+            return future;
+        }
+        log.info("Restarting ICE");
+
+        // Create offer with fresh ICE credentials
+        final MediaConstraints constraints = new MediaConstraints();
+        constraints.mandatory.add(new MediaConstraints.KeyValuePair("IceRestart", "true"));
+        pc.createOffer(new SdpObserver() {
+            @Nullable private SessionDescription offerDescription;
+
+            @Override
+            public void onCreateSuccess(@NonNull final SessionDescription description) {
+                log.debug("Created offer");
+                this.offerDescription = description;
+                pc.setLocalDescription(this, description);
+            }
+
+            @Override
+            public void onCreateFailure(@NonNull final String error) {
+                PeerConnection.this.completeIceRestart(
+                    new IllegalStateException("Could not create offer: " + error));
+            }
+
+            @Override
+            public void onSetSuccess() {
+                log.debug("Local description set");
+                final Offer offer = new Offer(
+                    Objects.requireNonNull(this.offerDescription).description);
+                try {
+                    PeerConnection.this.task.sendOffer(offer);
+                    log.debug("Sent offer: " + offer.getSdp());
+                } catch (final ConnectionException error) {
+                    PeerConnection.this.completeIceRestart(error);
+                }
+            }
+
+            @Override
+            public void onSetFailure(@NonNull final String error) {
+                PeerConnection.this.completeIceRestart(
+                    new IllegalStateException("Could not set local description: " + error));
+            }
+        }, constraints);
+        return future;
+    }
+
+    /**
+     * Return whether an ICE restart is pending.
+     */
+    private synchronized boolean isRestartingIce() {
+        return this.iceRestart != null;
+    }
+
+    /**
+     * An answer to our ICE restart offer was received. Set the remote
+     * description.
+     */
+    private void onAnswerReceived(@NonNull final Answer answer) {
+        final SessionDescription answerDescription = new SessionDescription(
+            SessionDescription.Type.ANSWER, answer.getSdp());
+        final org.webrtc.PeerConnection pc = Objects.requireNonNull(this.pc);
+        pc.setRemoteDescription(new SdpObserver() {
+            @Override
+            public void onCreateSuccess(@NonNull final SessionDescription description) {}
+
+            @Override
+            public void onCreateFailure(@NonNull final String error) {}
+
+            @Override
+            public void onSetSuccess() {
+                log.debug("Remote description set");
+                synchronized (PeerConnection.this) {
+                    if (PeerConnection.this.iceRestart == null) {
+                        // Note: The ICE restart has been abandoned meanwhile.
+                        return;
+                    }
+                    PeerConnection.this.iceRestartAnswered = true;
+                }
+                PeerConnection.this.applyEarlyCandidates();
+
+                // Note: The ICE connection state may not change if the
+                //       connection survived, so check it here as well.
+                switch (pc.iceConnectionState()) {
+                    case CONNECTED:
+                    case COMPLETED:
+                        PeerConnection.this.completeIceRestart(null);
+                        break;
+                    case FAILED:
+                        PeerConnection.this.completeIceRestart(
+                            new IllegalStateException("ICE connection failed"));
+                        break;
+                    default:
+                        break;
+                }
+            }
+
+            @Override
+            public void onSetFailure(@NonNull final String error) {
+                PeerConnection.this.completeIceRestart(
+                    new IllegalStateException("Could not set remote description: " + error));
+            }
+        }, answerDescription);
+    }
+
+    /**
+     * Resolve the pending ICE restart (if any).
+     *
+     * @param error The reason the ICE restart failed, or `null` on success.
+     */
+    private void completeIceRestart(@Nullable final Throwable error) {
+        final CompletableFuture<Void> future;
+        synchronized (this) {
+            future = this.iceRestart;
+        }
+        if (future == null) {
+            return;
+        }
+        if (error == null) {
+            future.complete(null);
+        } else {
+            future.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Resolve the pending ICE restart (if any) once its answer has been set,
+     * i.e. the signalling state is stable again.
+     *
+     * Note: Until then, the ICE connection state still belongs to the
+     *       previous ICE credentials.
+     *
+     * @param error The reason the ICE restart failed, or `null` on success.
+     */
+    private void completeAnsweredIceRestart(@Nullable final Throwable error) {
+        synchronized (this) {
+            if (!this.iceRestartAnswered) {
+                return;
+            }
+        }
+        this.completeIceRestart(error);
+    }
+
+    /**
+     * The ICE restart has been resolved, either by this instance or by the
+     * caller (e.g. on timeout).
+     *
+     * Remote candidates that are still held back at this point belong to an
+     * answer that has never been applied, so they are discarded. Later
+     * candidates will be added immediately.
+     */
+    private void onIceRestartDone(
+        @NonNull final CompletableFuture<Void> future,
+        @Nullable final Throwable error
+    ) {
+        final int discarded;
+        synchronized (this) {
+            if (this.iceRestart != future) {
+                return;
+            }
+            this.iceRestart = null;
+            this.iceRestartAnswered = false;
+            discarded = this.earlyCandidates != null ? this.earlyCandidates.size() : 0;
+            this.earlyCandidates = null;
+        }
+        if (discarded > 0) {
+            log.debug("Discarding " + discarded + " remote candidates of the ICE restart");
+        }
+        if (error == null) {
+            log.info("ICE restart complete");
+        } else {
+            log.warn("ICE restart failed", error);
+        }
+    }
+
+    /**
+     * Send a batch of gathered ICE candidates to the remote peer.
+     */
+    private void sendCandidates(@NonNull final Candidate[] candidates) {
+        try {
+            this.task.sendCandidates(candidates);
+        } catch (final ConnectionException error) {
+            log.error("Could not send " + candidates.length + " ICE candidates", error);
+        }
+    }
+
+    /**
+     * A batch of ICE candidates was received. Store them, or hold them back
+     * until the remote description has been set.
      */
     private void onIceCandidatesReceived(@NonNull final Candidate[] candidates) {
+        this.timeline.mark(SetupTimeline.Milestone.FIRST_REMOTE_CANDIDATE);
+        synchronized (this) {
+            if (this.earlyCandidates != null) {
+                // Note: webrtc.org rejects candidates before the remote
+                //       description has been set.
+                Collections.addAll(this.earlyCandidates, candidates);
+                this.earlyCandidateCount += candidates.length;
+                if (log.isDebugEnabled()) {
+                    log.debug("Holding back " + candidates.length +
+                        " remote candidates until the remote description has been set");
+                }
+                return;
+            }
+        }
+        this.addCandidates(candidates);
+    }
+
+    /**
+     * The remote description has been set. Apply the remote candidates held
+     * back until now in one batch.
+     */
+    private void applyEarlyCandidates() {
+        final Candidate[] candidates;
+        synchronized (this) {
+            if (this.earlyCandidates == null) {
+                return;
+            }
+            candidates = this.earlyCandidates.toArray(new Candidate[0]);
+            this.earlyCandidates = null;
+        }
+        this.timeline.mark(SetupTimeline.Milestone.REMOTE_DESCRIPTION);
+        if (candidates.length > 0) {
+            this.addCandidates(candidates);
+        }
+    }
+
+    /**
+     * Add remote ICE candidates to the peer connection.
+     */
+    private void addCandidates(@NonNull final Candidate[] candidates) {
+        final org.webrtc.PeerConnection pc = this.pc;
+        if (pc == null) {
+            log.warn("Discarding " + candidates.length + " remote candidates, connection closed");
+            return;
+        }
+        int added = 0;
         for (@Nullable final Candidate candidate : candidates) {
             if (candidate == null) {
                 // Note: Unsure how to signal end-of-candidates to webrtc.org
                 continue;
             }
-            final IceCandidate iceCandidate = new IceCandidate(
-                candidate.getSdpMid(), candidate.getSdpMLineIndex(), candidate.getSdp());
-            log.debug("New remote candidate: " + candidate.getSdp());
-            Objects.requireNonNull(this.pc).addIceCandidate(iceCandidate);
+            if (log.isTraceEnabled()) {
+                log.trace("New remote candidate: " + candidate.getSdp());
+            }
+            if (pc.addIceCandidate(new IceCandidate(
+                candidate.getSdpMid(), candidate.getSdpMLineIndex(), candidate.getSdp()))) {
+                added += 1;
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Added " + added + " of " + candidates.length + " remote candidates");
+        }
+    }
+
+    /**
+     * The first candidate pair has been connected. Log the setup timing.
+     */
+    private synchronized void onConnected() {
+        if (!this.timeline.mark(SetupTimeline.Milestone.ICE_CONNECTED)) {
+            return;
         }
+        final SetupTimeline.Record record = this.timeline.getRecord();
+        final long sinceRemoteDescriptionMs = record.getDurationMs(
+            SetupTimeline.Milestone.REMOTE_DESCRIPTION, SetupTimeline.Milestone.ICE_CONNECTED);
+        log.info("Time to first connected pair: " + this.getTimeToConnectedMs() + " ms (" +
+            (sinceRemoteDescriptionMs != -1
+                ? sinceRemoteDescriptionMs + " ms after remote description"
+                : "no remote description") +
+            ", " + this.earlyCandidateCount + " early candidates)");
+    }
+
+    /**
+     * Return the milliseconds from creating the peer connection until the
+     * first candidate pair has been connected, or -1 if not connected yet.
+     */
+    long getTimeToConnectedMs() {
+        return this.timeline.getRecord().getDurationMs(
+            SetupTimeline.Milestone.PEER_CONNECTION, SetupTimeline.Milestone.ICE_CONNECTED);
+    }
+
+    /**
+     * Return the amount of bytes queued on the signalling data channel.
+     */
+    long getSignalingQueuedBytes() {
+        return this.bfcdc.getQueuedBytes();
     }
 
     /**
@@ -412,13 +841,11 @@ class PeerConnection {
      * Note: This instance cannot be used after calling this!
      */
     void close() {
+        this.candidateBatcher.close();
+        this.completeIceRestart(new IllegalStateException("Connection closed"));
         if (this.pc != null) {
             this.pc.dispose();
             this.pc = null;
         }
-        if (this.factory != null) {
-            this.factory.dispose();
-            this.factory = null;
-        }
     }
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.signaling;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.saltyrtc.demo.app.BuildConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.webrtc.PeerConnectionFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Holds the process-wide peer connection factory.
+ *
+ * webrtc.org is initialised once per process. The factory is created on
+ * first use and reference counted: It is disposed once the last reference
+ * has been released. Warming up creates the factory ahead of time and keeps
+ * it alive until cooled down, so (re)connecting does not pay for native
+ * initialisation and thread startup.
+ */
+@AnyThread
+public final class PeerConnectionFactoryHolder {
+    @NonNull private static final Logger log =
+        LoggerFactory.getLogger("SaltyRTC.Demo.PeerConnectionFactoryHolder");
+
+    private static boolean initialized = false;
+    @Nullable private static PeerConnectionFactory factory;
+    private static int references = 0;
+    @NonNull private static final ExecutorService executor =
+        Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "PeerConnectionFactoryHolder");
+            thread.setDaemon(true);
+            return thread;
+        });
+    private static boolean warm = false;
+    private static boolean warmUpRequested = false;
+    private static long initDurationMs = 0;
+    private static long createDurationMs = 0;
+
+    private PeerConnectionFactoryHolder() {}
+
+    /**
+     * Acquire a reference to the factory, creating it if necessary. Each
+     * call must be balanced by a call to {@link #release()}.
+     */
+    @NonNull public static synchronized PeerConnectionFactory acquire(
+        @NonNull final Context context) {
+        // Initialise webrtc.org (once per process)
+        if (!initialized) {
+            final long start = SystemClock.elapsedRealtime();
+            PeerConnectionFactory.initialize(
+                PeerConnectionFactory.InitializationOptions.builder(
+                    context.getApplicationContext())
+                    .setEnableInternalTracer(BuildConfig.DEBUG)
+                    .createInitializationOptions());
+            initialized = true;
+            initDurationMs = SystemClock.elapsedRealtime() - start;
+            log.debug("Initialised webrtc.org in " + initDurationMs + " ms");
+        }
+
+        // Create factory
+        if (factory == null) {
+            final long start = SystemClock.elapsedRealtime();
+            factory = PeerConnectionFactory.builder()
+                .createPeerConnectionFactory();
+            createDurationMs = SystemClock.elapsedRealtime() - start;
+            log.debug("Created peer connection factory in " + createDurationMs + " ms");
+        }
+
+        references += 1;
+        return factory;
+    }
+
+    /**
+     * Release a reference to the factory. The factory is disposed once the
+     * last reference has been released.
+     */
+    public static synchronized void release() {
+        if (references == 0) {
+            throw new IllegalStateException("Factory has not been acquired");
+        }
+        references -= 1;
+        if (references == 0 && factory != null) {
+            log.debug("Disposing peer connection factory");
+            factory.dispose();
+            factory = null;
+        }
+    }
+
+    /**
+     * Create the factory ahead of time (in the background) and keep it alive
+     * until {@link #coolDown()} is being called.
+     *
+     * The factory is created on the holder's own thread while holding the
+     * holder's lock. If the holder has been cooled down before the warm-up
+     * could run, the warm-up is skipped.
+     *
+     * @return A future that resolves once the factory has been created (or
+     *   the warm-up has been skipped).
+     */
+    @NonNull public static synchronized CompletableFuture<Void> warmUp(
+        @NonNull final Context context) {
+        final Context applicationContext = context.getApplicationContext();
+        warmUpRequested = true;
+        return CompletableFuture.runAsync(() -> {
+            synchronized (PeerConnectionFactoryHolder.class) {
+                if (warmUpRequested && !warm) {
+                    acquire(applicationContext);
+                    warm = true;
+                }
+            }
+        }, executor);
+    }
+
+    /**
+     * Release the reference held since warming up (if any).
+     *
+     * Note: A warm-up that is still pending will be skipped. One that is
+     *       in flight holds the lock, so this waits until it has completed
+     *       and then releases its reference.
+     */
+    public static synchronized void coolDown() {
+        warmUpRequested = false;
+        if (warm) {
+            warm = false;
+            release();
+        }
+    }
+
+    /**
+     * Return whether the factory currently exists, i.e. acquiring it will
+     * not pay for its creation.
+     */
+    public static synchronized boolean isWarm() {
+        return factory != null;
+    }
+
+    /**
+     * Return the milliseconds spent initialising webrtc.org.
+     */
+    public static synchronized long getInitDurationMs() {
+        return initDurationMs;
+    }
+
+    /**
+     * Return the milliseconds spent creating the most recent factory.
+     */
+    public static synchronized long getCreateDurationMs() {
+        return createDurationMs;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.signaling;
+
+import android.os.SystemClock;
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records when the milestones of a connection setup have been reached,
+ * based on the monotonic clock.
+ *
+ * Only the first occurrence of a milestone is recorded, so marking a
+ * milestone repeatedly (e.g. for every gathered candidate) is cheap and
+ * harmless.
+ */
+@AnyThread
+public class SetupTimeline {
+    @NonNull private static final Logger log =
+        LoggerFactory.getLogger("SaltyRTC.Demo.SetupTimeline");
+
+    /**
+     * Milestones of a connection setup, in their expected order.
+     */
+    public enum Milestone {
+        // Connecting to the signalling server has been requested
+        CONNECT,
+        // The WebSocket connection has been established
+        WS_CONNECTED,
+        // The handshake with the server is complete
+        SERVER_HANDSHAKE,
+        // The handshake with the peer (including task negotiation) is complete
+        PEER_HANDSHAKE,
+        // The peer connection has been created for the negotiated task
+        PEER_CONNECTION,
+        // The offer has been received
+        OFFER_RECEIVED,
+        // The remote description has been set
+        REMOTE_DESCRIPTION,
+        // The answer has been sent
+        ANSWER_SENT,
+        // The first local candidate has been gathered
+        FIRST_LOCAL_CANDIDATE,
+        // The first remote candidate has been received
+        FIRST_REMOTE_CANDIDATE,
+        // The first candidate pair has been connected
+        ICE_CONNECTED,
+        // The signalling data channel is open
+        DATA_CHANNEL_OPEN,
+        // The signalling channel has been handed over to the data channel
+        HANDOVER,
+    }
+
+    private static final Milestone[] MILESTONES = Milestone.values();
+
+    private final long originNanos = SystemClock.elapsedRealtimeNanos();
+    @NonNull private final AtomicLongArray reachedAtNanos =
+        new AtomicLongArray(MILESTONES.length);
+
+    /**
+     * An immutable record of the milestones reached so far. Offsets are
+     * relative to the creation of the timeline.
+     */
+    public static class Record {
+        @NonNull private final Map<Milestone, Long> offsetsNanos;
+
+        Record(@NonNull final Map<Milestone, Long> offsetsNanos) {
+            this.offsetsNanos = Collections.unmodifiableMap(offsetsNanos);
+        }
+
+        /**
+         * Return the offsets (in nanoseconds) of all milestones reached.
+         */
+        @NonNull public Map<Milestone, Long> getOffsetsNanos() {
+            return this.offsetsNanos;
+        }
+
+        /**
+         * Return the offset of a milestone in milliseconds, or -1 if it has
+         * not been reached.
+         */
+        public long getOffsetMs(@NonNull final Milestone milestone) {
+            final Long offset = this.offsetsNanos.get(milestone);
+            return offset != null ? offset / 1_000_000 : -1;
+        }
+
+        /**
+         * Return the milliseconds elapsed between two milestones, or -1 if
+         * either has not been reached.
+         */
+        public long getDurationMs(@NonNull final Milestone from, @NonNull final Milestone to) {
+            final Long fromOffset = this.offsetsNanos.get(from);
+            final Long toOffset = this.offsetsNanos.get(to);
+            if (fromOffset == null || toOffset == null) {
+                return -1;
+            }
+            return (toOffset - fromOffset) / 1_000_000;
+        }
+
+        /**
+         * Return the milestones along with their offset and the time elapsed
+         * since the preceding milestone, e.g.
+         * `CONNECT=0ms(+0), WS_CONNECTED=412ms(+412), ...`.
+         */
+        @Override
+        @NonNull public String toString() {
+            final StringBuilder builder = new StringBuilder();
+            long previousNanos = 0;
+            for (final Map.Entry<Milestone, Long> entry : this.offsetsNanos.entrySet()) {
+                if (builder.length() > 0) {
+                    builder.append(", ");
+                }
+                final long offsetNanos = entry.getValue();
+                builder.append(entry.getKey().name())
+                    .append('=').append(offsetNanos / 1_000_000).append("ms")
+                    .append("(+").append((offsetNanos - previousNanos) / 1_000_000).append(')');
+                previousNanos = offsetNanos;
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * Mark a milestone as reached now.
+     *
+     * @return `true` if the milestone has been reached for the first time.
+     */
+    public boolean mark(@NonNull final Milestone milestone) {
+        // Note: 0 means unset. Ensure a recorded timestamp is never 0.
+        final long nowNanos = Math.max(SystemClock.elapsedRealtimeNanos(), 1);
+        if (!this.reachedAtNanos.compareAndSet(milestone.ordinal(), 0, nowNanos)) {
+            return false;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug(milestone.name() + " reached after " +
+                (nowNanos - this.originNanos) / 1_000_000 + " ms");
+        }
+        return true;
+    }
+
+    /**
+     * Return whether a milestone has been reached.
+     */
+    public boolean hasReached(@NonNull final Milestone milestone) {
+        return this.reachedAtNanos.get(milestone.ordinal()) != 0;
+    }
+
+    /**
+     * Return the milestones reached so far, ordered by milestone.
+     */
+    @NonNull public Record getRecord() {
+        final Map<Milestone, Long> offsetsNanos = new EnumMap<>(Milestone.class);
+        for (final Milestone milestone : MILESTONES) {
+            final long reachedAtNanos = this.reachedAtNanos.get(milestone.ordinal());
+            if (reachedAtNanos != 0) {
+                offsetsNanos.put(milestone, reachedAtNanos - this.originNanos);
+            }
+        }
+        return new Record(offsetsNanos);
+    }
+}
@@ -8,6 +8,8 @@
 package org.saltyrtc.demo.app.signaling;
 
 import android.app.Activity;
+import android.content.Context;
+import android.os.SystemClock;
 import android.support.annotation.AnyThread;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -16,6 +18,7 @@ import org.saltyrtc.client.SaltyRTC;
 import org.saltyrtc.client.SaltyRTCBuilder;
 import org.saltyrtc.client.crypto.CryptoException;
 import org.saltyrtc.client.crypto.CryptoProvider;
+import org.saltyrtc.client.events.HandoverEvent;
 import org.saltyrtc.client.events.SignalingStateChangedEvent;
 import org.saltyrtc.client.exceptions.ConnectionException;
 import org.saltyrtc.client.exceptions.InvalidKeyException;
@@ -25,14 +28,24 @@ import org.saltyrtc.client.signaling.state.SignalingState;
 import org.saltyrtc.client.tasks.Task;
 import org.saltyrtc.demo.app.Config;
 import org.saltyrtc.demo.app.utils.LazysodiumCryptoProvider;
+import org.saltyrtc.demo.app.webrtc.TransportExecutors;
+import org.saltyrtc.demo.app.webrtc.TransportMetrics;
 import org.saltyrtc.tasks.webrtc.WebRTCTask;
 import org.saltyrtc.tasks.webrtc.WebRTCTaskBuilder;
 import org.saltyrtc.tasks.webrtc.WebRTCTaskVersion;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.webrtc.PeerConnectionFactory;
 
 import java.security.NoSuchAlgorithmException;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.net.ssl.SSLContext;
 
@@ -48,19 +61,117 @@ public class SignalingConnection {
         LoggerFactory.getLogger("SaltyRTC.Demo.SignalingConnection");
     @NonNull public static final CryptoProvider cryptoProvider = new LazysodiumCryptoProvider();
 
-    @NonNull private final Activity activity;
+    @Nullable private final Context context;
     @NonNull private final org.webrtc.PeerConnection.Observer observer;
+    @NonNull private final TransportExecutors executors;
+    private final boolean ownsResources;
+    @NonNull private final KeyStore keyStore;
+    @NonNull private final String trustedKey;
+    private final long createdAtMs = SystemClock.elapsedRealtime();
+    @NonNull private final List<TransportMetrics> metrics = new CopyOnWriteArrayList<>();
+    @NonNull private volatile SetupTimeline timeline = new SetupTimeline();
+    @NonNull private volatile SignalingState state = SignalingState.NEW;
+    private volatile boolean handedOver = false;
+    @Nullable private CompletableFuture<ReconnectResult> reconnect;
+    @Nullable private ScheduledFuture<?> reconnectTimeout;
+    private boolean closed = false;
+    @Nullable private PeerConnectionFactory factory;
     @Nullable private SaltyRTC client;
     @Nullable private WebRTCTask task;
     @Nullable private PeerConnection pc;
 
+    /**
+     * How a connection has been recovered.
+     */
+    public enum ReconnectResult {
+        // ICE has been restarted on the existing peer connection (only
+        // possible before the signalling channel has been handed over)
+        ICE_RESTARTED,
+        // The session has been re-signalled with a new client and peer connection
+        RESIGNALLED,
+    }
+
+    /**
+     * Reconnect events.
+     */
+    @AnyThread
+    public interface ReconnectListener {
+        /**
+         * ICE could not be restarted and the current session is about to be
+         * torn down. Close any data channels created on its peer connection.
+         */
+        void onResignal();
+
+        /**
+         * A new client has been created. Bind its events. It will be
+         * connected once this returns.
+         */
+        void onClientCreated(@NonNull SaltyRTC client);
+    }
+
+    /**
+     * Create a signalling connection with the configured keys. The executors
+     * are owned by this connection. The peer connection factory is acquired
+     * from the process-wide holder once needed.
+     */
     public SignalingConnection(
         @NonNull final Activity activity,
         @NonNull final org.webrtc.PeerConnection.Observer observer
     ) throws NoSuchAlgorithmException, CryptoException, InvalidKeyException {
-        this.activity = activity;
+        // Note: Dedicated executors for this connection's data channels.
+        this(activity, null, TransportExecutors.create("SaltyRTC.Demo.SC", true), true,
+            observer, Config.PRIVATE_KEY, Config.TRUSTED_KEY);
+    }
+
+    /**
+     * Create a signalling connection that shares its peer connection factory
+     * and executors with other connections. Neither will be disposed when
+     * closing this connection.
+     *
+     * @param factory The shared peer connection factory.
+     * @param executors The shared executors used by the data channels.
+     * @param observer Receives the peer connection's events.
+     * @param privateKey Our private key (hex encoded).
+     * @param trustedKey The initiator's trusted public key (hex encoded).
+     */
+    public SignalingConnection(
+        @NonNull final PeerConnectionFactory factory,
+        @NonNull final TransportExecutors executors,
+        @NonNull final org.webrtc.PeerConnection.Observer observer,
+        @NonNull final String privateKey,
+        @NonNull final String trustedKey
+    ) throws NoSuchAlgorithmException, CryptoException, InvalidKeyException {
+        this(null, factory, executors, false, observer, privateKey, trustedKey);
+    }
+
+    private SignalingConnection(
+        @Nullable final Context context,
+        @Nullable final PeerConnectionFactory factory,
+        @NonNull final TransportExecutors executors,
+        final boolean ownsResources,
+        @NonNull final org.webrtc.PeerConnection.Observer observer,
+        @NonNull final String privateKey,
+        @NonNull final String trustedKey
+    ) throws NoSuchAlgorithmException, CryptoException, InvalidKeyException {
+        this.context = context;
+        this.factory = factory;
+        this.executors = executors;
+        this.ownsResources = ownsResources;
         this.observer = observer;
 
+        // Note: The key store is kept for reconnecting, so the key pair does
+        //       not have to be derived again.
+        this.keyStore = new KeyStore(cryptoProvider, privateKey);
+        this.trustedKey = trustedKey;
+
+        // Create SaltyRTC client
+        this.client = this.createClient();
+    }
+
+    /**
+     * Create a SaltyRTC client and bind its events.
+     */
+    @NonNull private SaltyRTC createClient() throws NoSuchAlgorithmException, InvalidKeyException {
         // Create SaltyRTC tasks
         final Task[] tasks = new Task[] {
             new WebRTCTaskBuilder()
@@ -72,18 +183,20 @@ public class SignalingConnection {
         };
 
         // Create SaltyRTC client
-        this.client = new SaltyRTCBuilder(cryptoProvider)
+        final SaltyRTC client = new SaltyRTCBuilder(cryptoProvider)
             .connectTo(Config.HOST, Config.PORT, SSLContext.getDefault())
             .withServerKey(Config.SERVER_KEY)
-            .withKeyStore(new KeyStore(cryptoProvider, Config.PRIVATE_KEY))
-            .withTrustedPeerKey(Config.TRUSTED_KEY)
+            .withKeyStore(this.keyStore)
+            .withTrustedPeerKey(this.trustedKey)
             .withPingInterval(30)
             .withWebsocketConnectTimeout(15000)
             .usingTasks(tasks)
             .asResponder();
 
         // Bind events
-        this.client.events.signalingStateChanged.register(this::onSignalingStateChanged);
+        client.events.signalingStateChanged.register(this::onSignalingStateChanged);
+        client.events.handover.register(this::onHandover);
+        return client;
     }
 
     /**
@@ -102,6 +215,13 @@ public class SignalingConnection {
         return this.task;
     }
 
+    /**
+     * Get the executors used by this connection's data channels.
+     */
+    public @NonNull TransportExecutors getExecutors() {
+        return this.executors;
+    }
+
     /**
      * Get the underlying peer connection instance.
      *
@@ -114,10 +234,94 @@ public class SignalingConnection {
         return this.pc.getPeerConnection();
     }
 
+    /**
+     * Get the maximum message size the remote peer can receive.
+     *
+     * Note: This will return the default of 64 KiB until the remote
+     *       description has been received.
+     */
+    public long getMaxMessageSize() {
+        if (this.pc == null) {
+            return Config.MAX_MESSAGE_SIZE > 0 ? Config.MAX_MESSAGE_SIZE : 64 * 1024;
+        }
+        return this.pc.getMaxMessageSize();
+    }
+
+    /**
+     * Get the current signalling state.
+     */
+    public @NonNull SignalingState getState() {
+        return this.state;
+    }
+
+    /**
+     * Get the milliseconds elapsed since this connection has been created.
+     */
+    public long getUptimeMs() {
+        return SystemClock.elapsedRealtime() - this.createdAtMs;
+    }
+
+    /**
+     * Get the milliseconds from creating the peer connection until the first
+     * candidate pair has been connected, or -1 if not connected yet.
+     */
+    public long getTimeToConnectedMs() {
+        final PeerConnection pc = this.pc;
+        return pc != null ? pc.getTimeToConnectedMs() : -1;
+    }
+
+    /**
+     * Get the amount of bytes queued on the signalling data channel.
+     */
+    public long getSignalingQueuedBytes() {
+        final PeerConnection pc = this.pc;
+        return pc != null ? pc.getSignalingQueuedBytes() : 0;
+    }
+
+    /**
+     * Attach the metrics of a data channel of this connection, so they are
+     * included in its resource usage.
+     */
+    public void addMetrics(@NonNull final TransportMetrics metrics) {
+        this.metrics.add(metrics);
+    }
+
+    /**
+     * Get the metrics of the data channels attached to this connection.
+     */
+    public @NonNull List<TransportMetrics> getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Get the milestones of the connection setup reached so far.
+     */
+    public @NonNull SetupTimeline.Record getTimeline() {
+        return this.timeline.getRecord();
+    }
+
     /**
      * On signaling state change.
      */
     private boolean onSignalingStateChanged(@NonNull final SignalingStateChangedEvent event) {
+        this.state = event.getState();
+
+        // Record setup milestones (each state is entered once the previous
+        // step is complete)
+        switch (event.getState()) {
+            case SERVER_HANDSHAKE:
+                this.timeline.mark(SetupTimeline.Milestone.WS_CONNECTED);
+                break;
+            case PEER_HANDSHAKE:
+                this.timeline.mark(SetupTimeline.Milestone.SERVER_HANDSHAKE);
+                break;
+            case TASK:
+                this.timeline.mark(SetupTimeline.Milestone.PEER_HANDSHAKE);
+                break;
+            default:
+                break;
+        }
+
         if (SignalingState.TASK == event.getState()) {
             // Store chosen task
             final Task task = Objects.requireNonNull(this.client).getTask();
@@ -127,30 +331,160 @@ public class SignalingConnection {
             this.task = (WebRTCTask) this.client.getTask();
 
             // Create peer connection via WebRTC
-            this.pc = new PeerConnection(this.task, this.observer, this.activity);
+            if (this.factory == null) {
+                this.factory = PeerConnectionFactoryHolder.acquire(
+                    Objects.requireNonNull(this.context));
+            }
+            this.pc = new PeerConnection(
+                this.task, this.observer, this.factory, this.executors, this.timeline);
         }
 
         // Keep listener registered
         return false;
     }
 
+    /**
+     * On handover to the data channel.
+     */
+    private boolean onHandover(@SuppressWarnings("unused") @NonNull final HandoverEvent event) {
+        this.timeline.mark(SetupTimeline.Milestone.HANDOVER);
+        log.info("Connection setup: " + this.timeline.getRecord());
+        this.handedOver = true;
+
+        // Unregister listener
+        return true;
+    }
+
     /**
      * Connect to the signalling server.
      */
     public void connect() throws ConnectionException {
         log.debug("Connecting SaltyRTC client");
+        this.timeline.mark(SetupTimeline.Milestone.CONNECT);
         Objects.requireNonNull(this.client).connect();
     }
 
     /**
-     * Close all connections and unbind all events.
+     * Recover the connection, e.g. after a network change.
      *
-     * Note: This instance cannot be used after calling this!
+     * Before the signalling channel has been handed over, ICE is restarted
+     * on the existing peer connection first. If that does not succeed within
+     * `Config.ICE_RESTART_TIMEOUT_MS`, the session is torn down and
+     * re-signalled. The key store, the peer connection factory and the
+     * executors are kept in both cases.
+     *
+     * Note: Once handed over, signalling messages are exchanged via a data
+     *       channel of the very peer connection that lost connectivity, so
+     *       the offer of an ICE restart could not reach the remote peer. The
+     *       session is therefore re-signalled right away.
+     *
+     * @param listener Notified when falling back to re-signalling.
+     * @return A future that resolves once ICE has been restarted or the new
+     *   client has been connected to the server. It fails if the connection
+     *   has been closed and is cancelled when closing it.
      */
-    public void close() {
+    public synchronized @NonNull CompletableFuture<ReconnectResult> reconnect(
+        @NonNull final ReconnectListener listener
+    ) {
+        if (this.reconnect != null) {
+            return this.reconnect;
+        }
+        if (this.closed) {
+            final CompletableFuture<ReconnectResult> future = new CompletableFuture<>();
+            future.completeExceptionally(new IllegalStateException("Connection closed"));
+            return future;
+        }
+        log.info("Reconnecting");
+        final long start = SystemClock.elapsedRealtime();
+
+        // Restart ICE (if there is a peer connection to restart and signalling
+        // does not depend on it)
+        final PeerConnection pc = this.pc;
+        final CompletableFuture<Void> iceRestart;
+        if (pc != null && !this.handedOver) {
+            iceRestart = pc.restartIce();
+            final ScheduledFuture<?> timeout = this.executors.getScheduler().schedule(
+                () -> iceRestart.completeExceptionally(new TimeoutException("ICE restart")),
+                Config.ICE_RESTART_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            iceRestart.whenComplete((result, error) -> timeout.cancel(false));
+            this.reconnectTimeout = timeout;
+        } else {
+            iceRestart = new CompletableFuture<>();
+            iceRestart.completeExceptionally(new IllegalStateException(pc == null ?
+                "No peer connection" : "Signalling has been handed over"));
+        }
+
+        // Fall back to re-signalling
+        // Note: Tearing down the peer connection must not happen on one of
+        //       webrtc.org's threads, hence the scheduler.
+        final CompletableFuture<ReconnectResult> reconnect = iceRestart.handleAsync(
+            (result, error) -> {
+                if (error == null) {
+                    return ReconnectResult.ICE_RESTARTED;
+                }
+                log.warn("Could not restart ICE, re-signalling", error);
+                try {
+                    this.resignal(listener);
+                } catch (NoSuchAlgorithmException | InvalidKeyException |
+                         ConnectionException resignalError) {
+                    throw new CompletionException(resignalError);
+                }
+                return ReconnectResult.RESIGNALLED;
+            }, this.executors.getScheduler());
+        this.reconnect = reconnect;
+        reconnect.whenComplete((result, error) -> {
+            synchronized (this) {
+                if (this.reconnect == reconnect) {
+                    this.reconnect = null;
+                    this.reconnectTimeout = null;
+                }
+            }
+            if (error == null) {
+                log.info("Reconnected (" + result.name() + ") in " +
+                    (SystemClock.elapsedRealtime() - start) + " ms");
+            } else {
+                log.error("Could not reconnect", error);
+            }
+        });
+        return reconnect;
+    }
+
+    /**
+     * Tear down the current session and connect with a new client.
+     */
+    private synchronized void resignal(
+        @NonNull final ReconnectListener listener
+    ) throws NoSuchAlgorithmException, InvalidKeyException, ConnectionException {
+        if (this.closed) {
+            throw new IllegalStateException("Connection closed");
+        }
+        listener.onResignal();
+
+        // Tear down the session without notifying the application
+        if (this.client != null) {
+            this.client.events.clearAll();
+        }
+        this.closeSession();
+        this.metrics.clear();
+        this.timeline = new SetupTimeline();
+        this.state = SignalingState.NEW;
+        this.handedOver = false;
+
+        // Create and connect a new client
+        final SaltyRTC client = this.createClient();
+        this.client = client;
+        listener.onClientCreated(client);
+        this.connect();
+    }
+
+    /**
+     * Close the task, the client and the peer connection.
+     */
+    private void closeSession() {
         if (this.task != null) {
             log.debug("Stopping WebRTC task");
             this.task.close(CloseCode.CLOSING_NORMAL);
+            this.task = null;
         }
 
         if (this.client != null) {
@@ -166,4 +500,39 @@ public class SignalingConnection {
             this.pc = null;
         }
     }
+
+    /**
+     * Close all connections and unbind all events.
+     *
+     * Note: This instance cannot be used after calling this!
+     */
+    public synchronized void close() {
+        this.closed = true;
+
+        // Cancel a pending reconnect
+        // Note: This must happen before closing the session, which resolves
+        //       the ICE restart, and before shutting down the executors, so
+        //       the fallback to re-signalling is not scheduled.
+        final CompletableFuture<ReconnectResult> reconnect = this.reconnect;
+        final ScheduledFuture<?> reconnectTimeout = this.reconnectTimeout;
+        this.reconnect = null;
+        this.reconnectTimeout = null;
+        if (reconnectTimeout != null) {
+            reconnectTimeout.cancel(false);
+        }
+        if (reconnect != null) {
+            reconnect.cancel(false);
+        }
+
+        this.closeSession();
+
+        // Dispose owned resources
+        if (this.ownsResources) {
+            if (this.factory != null) {
+                PeerConnectionFactoryHolder.release();
+                this.factory = null;
+            }
+            this.executors.shutdown();
+        }
+    }
 }
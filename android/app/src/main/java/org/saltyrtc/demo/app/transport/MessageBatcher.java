@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.transport;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.saltyrtc.chunkedDc.Unchunker;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Packs multiple messages into a single batch, so they can be encrypted and
+ * sent as one message.
+ *
+ * Each message within a batch is prefixed with its length as an unsigned
+ * 32-bit integer (big endian).
+ *
+ * Note: This class is not thread-safe.
+ */
+public class MessageBatcher {
+    public static final int LENGTH_PREFIX = 4;
+
+    private final int maxBatchLength;
+    @Nullable private ByteBuffer batch;
+    private int count = 0;
+
+    /**
+     * Create a message batcher.
+     *
+     * @param maxBatchLength The maximum length of a batch, including the
+     *   length prefixes.
+     */
+    public MessageBatcher(final int maxBatchLength) {
+        if (maxBatchLength <= LENGTH_PREFIX) {
+            throw new IllegalArgumentException("Batch length must be greater than " +
+                LENGTH_PREFIX);
+        }
+        this.maxBatchLength = maxBatchLength;
+    }
+
+    /**
+     * Return the maximum length of a batch.
+     */
+    public int getMaxBatchLength() {
+        return this.maxBatchLength;
+    }
+
+    /**
+     * Return whether a message fits into the current batch.
+     */
+    public boolean fits(@NonNull final ByteBuffer message) {
+        return this.getLength() + LENGTH_PREFIX + message.remaining() <= this.maxBatchLength;
+    }
+
+    /**
+     * Add a message to the current batch. Its position will not be altered.
+     *
+     * @throws IllegalArgumentException in case the message does not fit.
+     */
+    public void add(@NonNull final ByteBuffer message) {
+        if (!this.fits(message)) {
+            throw new IllegalArgumentException("Message does not fit into batch");
+        }
+        if (this.batch == null) {
+            this.batch = ByteBuffer.allocate(this.maxBatchLength);
+        }
+        this.batch.putInt(message.remaining());
+        this.batch.put(message.duplicate());
+        this.count += 1;
+    }
+
+    /**
+     * Return whether the current batch is empty.
+     */
+    public boolean isEmpty() {
+        return this.count == 0;
+    }
+
+    /**
+     * Return the amount of messages in the current batch.
+     */
+    public int getCount() {
+        return this.count;
+    }
+
+    /**
+     * Return the length of the current batch.
+     */
+    public int getLength() {
+        return this.batch == null ? 0 : this.batch.position();
+    }
+
+    /**
+     * Take the current batch and start a new one.
+     *
+     * @throws IllegalStateException in case the batch is empty.
+     */
+    @NonNull public ByteBuffer take() {
+        if (this.batch == null || this.count == 0) {
+            throw new IllegalStateException("Batch is empty");
+        }
+        final ByteBuffer batch = this.batch;
+        batch.flip();
+        this.batch = null;
+        this.count = 0;
+        return batch;
+    }
+
+    /**
+     * Create the length prefix of a message that is sent on its own (e.g.
+     * because it is too large to be batched). Prefix and message form a
+     * batch containing a single message.
+     */
+    @NonNull public static ByteBuffer createPrefix(@NonNull final ByteBuffer message) {
+        final ByteBuffer prefix = ByteBuffer.allocate(LENGTH_PREFIX);
+        prefix.putInt(0, message.remaining());
+        return prefix;
+    }
+
+    /**
+     * Create a batch containing a single message.
+     *
+     * Note: This copies the message. Prefer writing the prefix from
+     *       {@link #createPrefix} ahead of the message where possible.
+     */
+    @NonNull public static ByteBuffer single(@NonNull final ByteBuffer message) {
+        final ByteBuffer batch = ByteBuffer.allocate(LENGTH_PREFIX + message.remaining());
+        batch.putInt(message.remaining());
+        batch.put(message.duplicate());
+        batch.flip();
+        return batch;
+    }
+
+    /**
+     * Split a batch and hand out each message.
+     *
+     * Note: The messages are slices of the batch, so no copies are being made.
+     *
+     * @throws IllegalArgumentException in case the batch is malformed.
+     */
+    public static void split(
+        @NonNull final ByteBuffer batch,
+        @NonNull final Unchunker.MessageListener listener
+    ) {
+        final ByteBuffer view = batch.duplicate();
+        while (view.hasRemaining()) {
+            if (view.remaining() < LENGTH_PREFIX) {
+                throw new IllegalArgumentException("Truncated length prefix");
+            }
+            final long length = view.getInt() & 0xffffffffL;
+            if (length > view.remaining()) {
+                throw new IllegalArgumentException("Truncated message");
+            }
+            final int end = view.position() + (int) length;
+            final ByteBuffer message = view.duplicate();
+            message.limit(end);
+            listener.onMessage(message.slice());
+            view.position(end);
+        }
+    }
+}
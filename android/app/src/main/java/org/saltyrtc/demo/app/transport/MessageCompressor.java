@@ -0,0 +1,494 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.transport;
+
+import android.os.Debug;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.function.LongSupplier;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses messages with deflate before they are being chunked and
+ * encrypted, and decompresses them on the receiving side.
+ *
+ * Whether a message has been compressed is indicated by the `DEFLATE` flag
+ * of its {@link MessageHeader}. Messages that would not shrink are sent
+ * uncompressed.
+ *
+ * The deflater and the inflater are reused for all messages of a channel.
+ * Compression and decompression may happen on different threads, but each
+ * of them must not be used concurrently. Their native memory is released
+ * once the compressor has been closed.
+ *
+ * Decompressed messages are limited in size, so a small malicious message
+ * cannot inflate into an arbitrary amount of memory.
+ */
+public class MessageCompressor {
+    @NonNull private static final Logger log = LoggerFactory.getLogger("SaltyRTC.Demo.Compressor");
+
+    private static final int BUFFER_LENGTH = 64 * 1024;
+    private static final int MIN_OUTPUT_LENGTH = 1024;
+    public static final int DEFAULT_MAX_DECOMPRESSED_LENGTH = 64 * 1024 * 1024;
+
+    @NonNull private final Deflater deflater;
+    @NonNull private final Inflater inflater = new Inflater(true);
+    private final int maxDecompressedLength;
+    @NonNull private final LongSupplier cpuClock;
+    private boolean deflaterClosed = false;
+    private boolean inflaterClosed = false;
+
+    // Statistics (each side is only written by a single thread)
+    private volatile long uncompressedBytes = 0;
+    private volatile long compressedBytes = 0;
+    private volatile long skippedMessages = 0;
+    private volatile long compressCpuNanos = 0;
+    private volatile long decompressCpuNanos = 0;
+
+    /**
+     * Create a message compressor.
+     *
+     * @param level The compression level (0-9 or `Deflater.DEFAULT_COMPRESSION`).
+     */
+    public MessageCompressor(final int level) {
+        this(level, DEFAULT_MAX_DECOMPRESSED_LENGTH);
+    }
+
+    /**
+     * Create a message compressor.
+     *
+     * @param level The compression level (0-9 or `Deflater.DEFAULT_COMPRESSION`).
+     * @param maxDecompressedLength The maximum length of a decompressed
+     *   message. Longer messages are rejected (or discarded when streaming).
+     */
+    public MessageCompressor(final int level, final int maxDecompressedLength) {
+        this(level, maxDecompressedLength, Debug::threadCpuTimeNanos);
+    }
+
+    /**
+     * Create a message compressor measuring CPU time with a custom clock.
+     *
+     * @param level The compression level (0-9 or `Deflater.DEFAULT_COMPRESSION`).
+     * @param maxDecompressedLength The maximum length of a decompressed
+     *   message.
+     * @param cpuClock Returns the CPU time of the current thread in
+     *   nanoseconds.
+     */
+    MessageCompressor(
+        final int level,
+        final int maxDecompressedLength,
+        @NonNull final LongSupplier cpuClock
+    ) {
+        if (maxDecompressedLength < 0) {
+            throw new IllegalArgumentException("Maximum decompressed length must not be negative");
+        }
+        this.deflater = new Deflater(level, true);
+        this.maxDecompressedLength = maxDecompressedLength;
+        this.cpuClock = cpuClock;
+    }
+
+    /**
+     * Release the native memory of the deflater and the inflater. Messages
+     * can no longer be compressed or decompressed afterwards.
+     */
+    public void close() {
+        synchronized (this.deflater) {
+            this.deflaterClosed = true;
+            this.deflater.end();
+        }
+        synchronized (this.inflater) {
+            this.inflaterClosed = true;
+            this.inflater.end();
+        }
+    }
+
+    /**
+     * Throw in case the deflater has been released.
+     *
+     * Note: Must be called while holding the deflater's lock.
+     */
+    private void ensureDeflaterOpen() {
+        if (this.deflaterClosed) {
+            throw new IllegalStateException("Compressor has been closed");
+        }
+    }
+
+    /**
+     * Throw in case the inflater has been released.
+     *
+     * Note: Must be called while holding the inflater's lock.
+     */
+    private void ensureInflaterOpen() {
+        if (this.inflaterClosed) {
+            throw new IllegalStateException("Compressor has been closed");
+        }
+    }
+
+    /**
+     * Compress a message. Its position will not be altered.
+     *
+     * @return The compressed message or `null` in case it would not shrink
+     *   (and should be sent uncompressed).
+     * @throws IllegalStateException in case the compressor has been closed.
+     */
+    @Nullable public ByteBuffer compress(@NonNull final ByteBuffer message) {
+        final long start = this.cpuClock.getAsLong();
+        final int length = message.remaining();
+        final byte[] output = new byte[length];
+
+        // Deflate into the output but give up once it would not shrink
+        final boolean finished;
+        int compressedLength = 0;
+        synchronized (this.deflater) {
+            this.ensureDeflaterOpen();
+            this.deflater.reset();
+            setInput(this.deflater, message);
+            this.deflater.finish();
+            while (!this.deflater.finished() && compressedLength < output.length) {
+                compressedLength += this.deflater.deflate(
+                    output, compressedLength, output.length - compressedLength);
+            }
+            finished = this.deflater.finished();
+        }
+
+        // Note: A message that would not shrink is sent uncompressed.
+        final boolean shrunk = finished && compressedLength < length;
+        if (!shrunk) {
+            this.skippedMessages += 1;
+        }
+
+        // Update statistics
+        this.uncompressedBytes += length;
+        this.compressedBytes += shrunk ? compressedLength : length;
+        this.compressCpuNanos += this.cpuClock.getAsLong() - start;
+        return shrunk ? ByteBuffer.wrap(output, 0, compressedLength) : null;
+    }
+
+    /**
+     * Decompress a message.
+     *
+     * @throws IllegalArgumentException in case the message is malformed or
+     *   its decompressed length would exceed the maximum.
+     * @throws IllegalStateException in case the compressor has been closed.
+     */
+    @NonNull public ByteBuffer decompress(@NonNull final ByteBuffer message) {
+        final ByteBuffer payload = message.duplicate();
+
+        // Inflate into a growing buffer
+        // Note: The buffer may grow one byte beyond the maximum, so an
+        //       oversized message is detected without allocating more.
+        final long start = this.cpuClock.getAsLong();
+        final int limit = this.maxDecompressedLength + 1;
+        byte[] output = new byte[(int) Math.min(limit,
+            Math.max(MIN_OUTPUT_LENGTH, (long) payload.remaining() * 4))];
+        int length = 0;
+        synchronized (this.inflater) {
+            this.ensureInflaterOpen();
+            this.inflater.reset();
+            setInput(this.inflater, payload);
+            try {
+                while (!this.inflater.finished()) {
+                    if (length == output.length) {
+                        if (length == limit) {
+                            throw new IllegalArgumentException(
+                                "Decompressed message exceeds " + this.maxDecompressedLength
+                                    + " bytes");
+                        }
+                        final byte[] grown = new byte[(int) Math.min(limit, output.length * 2L)];
+                        System.arraycopy(output, 0, grown, 0, length);
+                        output = grown;
+                    }
+                    final int inflated = this.inflater.inflate(
+                        output, length, output.length - length);
+                    final boolean stalled =
+                        this.inflater.needsInput() || this.inflater.needsDictionary();
+                    if (inflated == 0 && stalled) {
+                        throw new IllegalArgumentException("Truncated compressed message");
+                    }
+                    length += inflated;
+                }
+            } catch (DataFormatException error) {
+                throw new IllegalArgumentException("Invalid compressed message", error);
+            } finally {
+                this.decompressCpuNanos += this.cpuClock.getAsLong() - start;
+            }
+        }
+        if (length == limit) {
+            throw new IllegalArgumentException(
+                "Decompressed message exceeds " + this.maxDecompressedLength + " bytes");
+        }
+        return ByteBuffer.wrap(output, 0, length);
+    }
+
+    /**
+     * Compress a message read from a channel in a streaming fashion.
+     *
+     * Note: Streams are always compressed since it cannot be known in
+     *       advance whether they would shrink.
+     *
+     * @return A channel providing the compressed message. Closing it closes
+     *   the source.
+     */
+    @NonNull public ReadableByteChannel compress(@NonNull final ReadableByteChannel source) {
+        synchronized (this.deflater) {
+            this.ensureDeflaterOpen();
+            this.deflater.reset();
+        }
+        return new DeflatingChannel(source);
+    }
+
+    /**
+     * Wrap a segment listener to receive the decompressed segments of
+     * compressed messages.
+     */
+    @NonNull public ReliableOrderedUnchunker.SegmentListener decompressing(
+        @NonNull final ReliableOrderedUnchunker.SegmentListener listener) {
+        return new InflatingSegmentListener(listener);
+    }
+
+    private static void setInput(
+        @NonNull final Deflater deflater, @NonNull final ByteBuffer input) {
+        if (input.hasArray()) {
+            deflater.setInput(
+                input.array(), input.arrayOffset() + input.position(), input.remaining());
+        } else {
+            final byte[] bytes = new byte[input.remaining()];
+            input.duplicate().get(bytes);
+            deflater.setInput(bytes);
+        }
+    }
+
+    private static void setInput(
+        @NonNull final Inflater inflater, @NonNull final ByteBuffer input) {
+        if (input.hasArray()) {
+            inflater.setInput(
+                input.array(), input.arrayOffset() + input.position(), input.remaining());
+        } else {
+            final byte[] bytes = new byte[input.remaining()];
+            input.duplicate().get(bytes);
+            inflater.setInput(bytes);
+        }
+    }
+
+    /**
+     * Return the total amount of message bytes before compression.
+     */
+    public long getUncompressedBytes() {
+        return this.uncompressedBytes;
+    }
+
+    /**
+     * Return the total amount of message bytes after compression.
+     */
+    public long getCompressedBytes() {
+        return this.compressedBytes;
+    }
+
+    /**
+     * Return the compression ratio (uncompressed / compressed) of all
+     * messages sent so far.
+     */
+    public double getRatio() {
+        final long compressed = this.compressedBytes;
+        return compressed == 0 ? 1.0 : (double) this.uncompressedBytes / compressed;
+    }
+
+    /**
+     * Return the amount of messages that have been sent uncompressed because
+     * they would not shrink.
+     */
+    public long getSkippedMessages() {
+        return this.skippedMessages;
+    }
+
+    /**
+     * Return the CPU time spent compressing in nanoseconds.
+     */
+    public long getCompressCpuNanos() {
+        return this.compressCpuNanos;
+    }
+
+    /**
+     * Return the CPU time spent decompressing in nanoseconds.
+     */
+    public long getDecompressCpuNanos() {
+        return this.decompressCpuNanos;
+    }
+
+    /**
+     * Provides the deflated content of the source.
+     *
+     * Note: In case the source is non-blocking and has no data available,
+     *       a read returns 0 bytes (like the source) rather than waiting
+     *       for data.
+     */
+    private class DeflatingChannel implements ReadableByteChannel {
+        @NonNull private final ReadableByteChannel source;
+        @NonNull private final ByteBuffer input = ByteBuffer.allocate(BUFFER_LENGTH);
+        @NonNull private final byte[] output = new byte[BUFFER_LENGTH];
+
+        DeflatingChannel(@NonNull final ReadableByteChannel source) {
+            this.source = source;
+        }
+
+        @Override
+        public int read(@NonNull final ByteBuffer dst) throws IOException {
+            if (!dst.hasRemaining()) {
+                return 0;
+            }
+
+            final Deflater deflater = MessageCompressor.this.deflater;
+            while (true) {
+                // Deflate what we have
+                final int length;
+                synchronized (deflater) {
+                    if (MessageCompressor.this.deflaterClosed) {
+                        throw new ClosedChannelException();
+                    }
+                    if (deflater.finished()) {
+                        return -1;
+                    }
+                    final long start = MessageCompressor.this.cpuClock.getAsLong();
+                    length = deflater.deflate(
+                        this.output, 0, Math.min(this.output.length, dst.remaining()));
+                    MessageCompressor.this.compressCpuNanos +=
+                        MessageCompressor.this.cpuClock.getAsLong() - start;
+                    if (length == 0 && !deflater.needsInput()) {
+                        continue;
+                    }
+                }
+                if (length > 0) {
+                    dst.put(this.output, 0, length);
+                    MessageCompressor.this.compressedBytes += length;
+                    return length;
+                }
+
+                // Feed more input
+                // Note: Read outside of the lock since it may block.
+                this.input.clear();
+                final int read = this.source.read(this.input);
+                if (read == 0) {
+                    // Non-blocking source without data available
+                    return 0;
+                }
+                synchronized (deflater) {
+                    if (MessageCompressor.this.deflaterClosed) {
+                        throw new ClosedChannelException();
+                    }
+                    if (read < 0) {
+                        deflater.finish();
+                    } else {
+                        deflater.setInput(this.input.array(), 0, read);
+                        MessageCompressor.this.uncompressedBytes += read;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.source.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.source.close();
+        }
+    }
+
+    /**
+     * Inflates the segments of each message and hands them out in order.
+     *
+     * In case a message is malformed, its remaining segments are discarded.
+     */
+    private class InflatingSegmentListener implements ReliableOrderedUnchunker.SegmentListener {
+        @NonNull private final ReliableOrderedUnchunker.SegmentListener listener;
+        @NonNull private final byte[] output = new byte[BUFFER_LENGTH];
+        private boolean started = false;
+        private boolean discarding = false;
+        private long inflatedLength = 0;
+
+        InflatingSegmentListener(@NonNull final ReliableOrderedUnchunker.SegmentListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onSegment(@NonNull final ByteBuffer segment, final boolean endOfMessage) {
+            // Reset inflater on first segment
+            if (!this.started) {
+                this.started = true;
+                this.inflatedLength = 0;
+                synchronized (MessageCompressor.this.inflater) {
+                    if (MessageCompressor.this.inflaterClosed) {
+                        log.error("Compressor has been closed, discarding message");
+                        this.discarding = true;
+                    } else {
+                        MessageCompressor.this.inflater.reset();
+                    }
+                }
+            }
+
+            if (!this.discarding) {
+                this.inflate(segment);
+            }
+
+            // Done?
+            if (endOfMessage) {
+                this.listener.onSegment(ByteBuffer.allocate(0), true);
+                this.started = false;
+                this.discarding = false;
+            }
+        }
+
+        private void inflate(@NonNull final ByteBuffer segment) {
+            final Inflater inflater = MessageCompressor.this.inflater;
+            final int maxLength = MessageCompressor.this.maxDecompressedLength;
+            final long start = MessageCompressor.this.cpuClock.getAsLong();
+            synchronized (inflater) {
+                if (MessageCompressor.this.inflaterClosed) {
+                    log.error("Compressor has been closed, discarding message");
+                    this.discarding = true;
+                    return;
+                }
+                setInput(inflater, segment);
+                try {
+                    while (!inflater.finished()) {
+                        final int length = inflater.inflate(this.output);
+                        if (length == 0) {
+                            break;
+                        }
+                        this.inflatedLength += length;
+                        if (this.inflatedLength > maxLength) {
+                            log.error("Decompressed message exceeds {} bytes, discarding message",
+                                maxLength);
+                            this.discarding = true;
+                            break;
+                        }
+                        this.listener.onSegment(ByteBuffer.wrap(this.output, 0, length), false);
+                    }
+                } catch (DataFormatException error) {
+                    log.error("Invalid compressed segment, discarding message", error);
+                    this.discarding = true;
+                } finally {
+                    MessageCompressor.this.decompressCpuNanos +=
+                        MessageCompressor.this.cpuClock.getAsLong() - start;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.transport;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The header preceding each message (before it is being encrypted) in all
+ * but the legacy transport modes (encrypt-then-chunk with unreliable/unordered
+ * chunking mode, which is used by peers not aware of it).
+ *
+ * The header is a single byte of flags describing how the sender encoded the
+ * message, so the receiver decodes each message accordingly and does not
+ * depend on its own settings:
+ *
+ * - `DEFLATE`: The message has been compressed (see {@link MessageCompressor}).
+ * - `BATCH`: The message is a batch of messages (see {@link MessageBatcher}).
+ *   If also compressed, the batch has been compressed as a whole.
+ *
+ * Messages with unknown flags are rejected.
+ */
+public final class MessageHeader {
+    @NonNull private static final Logger log = LoggerFactory.getLogger("SaltyRTC.Demo.Header");
+
+    public static final int LENGTH = 1;
+    public static final byte PLAIN = 0x00;
+    public static final byte DEFLATE = 0x01;
+    public static final byte BATCH = 0x02;
+    private static final byte KNOWN_FLAGS = DEFLATE | BATCH;
+
+    private MessageHeader() {}
+
+    /**
+     * Create a header with the given flags.
+     */
+    @NonNull public static ByteBuffer create(final byte flags) {
+        final ByteBuffer header = ByteBuffer.allocate(LENGTH);
+        header.put(0, flags);
+        return header;
+    }
+
+    /**
+     * Read the flags of a message's header without altering its position.
+     *
+     * @throws IllegalArgumentException in case the header is missing or
+     *   contains unknown flags.
+     */
+    public static byte getFlags(@NonNull final ByteBuffer message) {
+        if (message.remaining() < LENGTH) {
+            throw new IllegalArgumentException("Missing message header");
+        }
+        final byte flags = message.get(message.position());
+        if ((flags & ~KNOWN_FLAGS) != 0) {
+            throw new IllegalArgumentException("Unknown message flags: " + flags);
+        }
+        return flags;
+    }
+
+    /**
+     * Return whether a flag has been set.
+     */
+    public static boolean isSet(final byte flags, final byte flag) {
+        return (flags & flag) != 0;
+    }
+
+    /**
+     * Wrap segment listeners to receive the segments of each message without
+     * its header.
+     *
+     * Note: Batches cannot be streamed, so they are discarded.
+     *
+     * @param listener Receives the segments of uncompressed messages.
+     * @param inflating Receives the segments of compressed messages (see
+     *   {@link MessageCompressor#decompressing}). If `null`, compressed
+     *   messages are discarded.
+     */
+    @NonNull public static ReliableOrderedUnchunker.SegmentListener stripping(
+        @NonNull final ReliableOrderedUnchunker.SegmentListener listener,
+        @Nullable final ReliableOrderedUnchunker.SegmentListener inflating) {
+        return new StrippingSegmentListener(listener, inflating);
+    }
+
+    /**
+     * Strips the header from the first segment of each message and hands the
+     * segments to the listener matching the header's flags.
+     *
+     * In case the header is invalid, the message's segments are discarded.
+     */
+    private static class StrippingSegmentListener
+        implements ReliableOrderedUnchunker.SegmentListener {
+        @NonNull private final ReliableOrderedUnchunker.SegmentListener listener;
+        @Nullable private final ReliableOrderedUnchunker.SegmentListener inflating;
+        @Nullable private ReliableOrderedUnchunker.SegmentListener target;
+        private boolean started = false;
+
+        StrippingSegmentListener(
+            @NonNull final ReliableOrderedUnchunker.SegmentListener listener,
+            @Nullable final ReliableOrderedUnchunker.SegmentListener inflating) {
+            this.listener = listener;
+            this.inflating = inflating;
+        }
+
+        @Override
+        public void onSegment(@NonNull final ByteBuffer segment, final boolean endOfMessage) {
+            // Read header from first segment
+            if (!this.started && segment.hasRemaining()) {
+                this.started = true;
+                this.target = this.getTarget(segment);
+                segment.position(segment.position() + LENGTH);
+            }
+            if (endOfMessage && !this.started) {
+                log.error("Missing message header, discarding message");
+            }
+
+            // Note: Discarded messages still end, so sinks are closed.
+            final ReliableOrderedUnchunker.SegmentListener target =
+                this.target != null ? this.target : this.listener;
+            if (this.target != null && segment.hasRemaining()) {
+                target.onSegment(segment, false);
+            }
+
+            // Done?
+            if (endOfMessage) {
+                target.onSegment(ByteBuffer.allocate(0), true);
+                this.started = false;
+                this.target = null;
+            }
+        }
+
+        /**
+         * Return the listener for a message depending on its header or
+         * `null` in case the message is to be discarded.
+         */
+        @Nullable private ReliableOrderedUnchunker.SegmentListener getTarget(
+            @NonNull final ByteBuffer segment) {
+            final byte flags;
+            try {
+                flags = getFlags(segment);
+            } catch (IllegalArgumentException error) {
+                log.error("Invalid message header, discarding message", error);
+                return null;
+            }
+            if (isSet(flags, BATCH)) {
+                log.error("Batches cannot be streamed, discarding message");
+                return null;
+            }
+            if (isSet(flags, DEFLATE)) {
+                if (this.inflating == null) {
+                    log.error("Compressed message received but compression has not been " +
+                        "enabled, discarding message");
+                }
+                return this.inflating;
+            }
+            return this.listener;
+        }
+    }
+}
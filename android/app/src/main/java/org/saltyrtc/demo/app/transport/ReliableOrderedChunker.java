@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.transport;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.saltyrtc.demo.app.utils.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Fragments a message into chunks for a reliable/ordered transport.
+ *
+ * Each chunk is prefixed with a single byte options field which only
+ * indicates the mode and whether the chunk is the last one of the message.
+ */
+public class ReliableOrderedChunker implements Iterator<ByteBuffer> {
+    static final int HEADER_LENGTH = 1;
+    static final byte MODE_BITMASK = 0x06;
+    static final byte MODE_RELIABLE_ORDERED = 0x06;
+    static final byte END_OF_MESSAGE = 0x01;
+
+    @Nullable private final ByteBuffer prefix;
+    @NonNull private final ByteBuffer buffer;
+    private final int payloadLength;
+    @Nullable private final BufferPool pool;
+    private boolean done = false;
+
+    /**
+     * Create a reliable/ordered chunker.
+     *
+     * @param buffer The message to be fragmented. Its position will not be
+     *   altered.
+     * @param chunkLength The maximum length of a chunk, including the header.
+     */
+    public ReliableOrderedChunker(@NonNull final ByteBuffer buffer, final int chunkLength) {
+        this(buffer, chunkLength, null);
+    }
+
+    /**
+     * Create a reliable/ordered chunker.
+     *
+     * @param buffer The message to be fragmented. Its position will not be
+     *   altered.
+     * @param chunkLength The maximum length of a chunk, including the header.
+     * @param pool The pool chunks are acquired from (optional). The consumer
+     *   of the chunks is responsible for releasing them.
+     */
+    public ReliableOrderedChunker(
+        @NonNull final ByteBuffer buffer,
+        final int chunkLength,
+        @Nullable final BufferPool pool
+    ) {
+        this(null, buffer, chunkLength, pool);
+    }
+
+    /**
+     * Create a reliable/ordered chunker for a message preceded by a prefix.
+     *
+     * The prefix is written into the first chunk(s) as if it were part of
+     * the message, so the message does not need to be copied to prepend it.
+     *
+     * @param prefix The bytes to precede the message with (optional). Its
+     *   position will not be altered.
+     * @param buffer The message to be fragmented. Its position will not be
+     *   altered.
+     * @param chunkLength The maximum length of a chunk, including the header.
+     * @param pool The pool chunks are acquired from (optional). The consumer
+     *   of the chunks is responsible for releasing them.
+     */
+    public ReliableOrderedChunker(
+        @Nullable final ByteBuffer prefix,
+        @NonNull final ByteBuffer buffer,
+        final int chunkLength,
+        @Nullable final BufferPool pool
+    ) {
+        if (chunkLength <= HEADER_LENGTH) {
+            throw new IllegalArgumentException("Chunk length must be greater than " +
+                HEADER_LENGTH);
+        }
+        this.prefix = prefix != null ? prefix.slice() : null;
+        this.buffer = buffer.slice();
+        this.payloadLength = chunkLength - HEADER_LENGTH;
+        this.pool = pool;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !this.done;
+    }
+
+    /**
+     * Return the next chunk.
+     *
+     * Note: An empty message results in a single chunk without payload.
+     */
+    @Override
+    @NonNull public ByteBuffer next() {
+        if (this.done) {
+            throw new NoSuchElementException();
+        }
+
+        // Determine payload length and whether this is the last chunk
+        final int prefixLength = this.prefix != null ? this.prefix.remaining() : 0;
+        final int remaining = prefixLength + this.buffer.remaining();
+        final int length = Math.min(remaining, this.payloadLength);
+        this.done = length == remaining;
+
+        // Write header and payload (starting with what is left of the prefix)
+        final ByteBuffer chunk = this.pool != null ?
+            this.pool.acquire(HEADER_LENGTH + length) : ByteBuffer.allocate(HEADER_LENGTH + length);
+        chunk.put((byte) (MODE_RELIABLE_ORDERED | (this.done ? END_OF_MESSAGE : 0x00)));
+        final int fromPrefix = Math.min(prefixLength, length);
+        if (fromPrefix > 0) {
+            put(chunk, this.prefix, fromPrefix);
+        }
+        put(chunk, this.buffer, length - fromPrefix);
+        chunk.flip();
+        return chunk;
+    }
+
+    /**
+     * Move bytes from the source into the chunk.
+     */
+    private static void put(
+        @NonNull final ByteBuffer chunk, @NonNull final ByteBuffer source, final int length) {
+        final ByteBuffer payload = source.duplicate();
+        payload.limit(payload.position() + length);
+        chunk.put(payload);
+        source.position(source.position() + length);
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.transport;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.saltyrtc.chunkedDc.Unchunker;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reassembles chunks of a reliable/ordered transport to messages.
+ *
+ * Since chunks are guaranteed to arrive in order, the payload of each chunk
+ * is appended straight into the message buffer. No message IDs or serials
+ * need to be tracked.
+ *
+ * Alternatively, segments can be streamed to a segment listener as they
+ * arrive. In that case, nothing is buffered.
+ *
+ * A reassembled message may not exceed a maximum length. Once a message
+ * exceeds it, the buffer is released and the remaining chunks of that
+ * message are discarded.
+ *
+ * Warning: This class is not thread-safe.
+ */
+public class ReliableOrderedUnchunker {
+    public static final int DEFAULT_MAX_MESSAGE_LENGTH = 64 * 1024 * 1024;
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    /**
+     * Receives message segments in order.
+     */
+    public interface SegmentListener {
+        /**
+         * On segment of a message.
+         *
+         * Important: The segment is only valid for the duration of the call.
+         *
+         * @param segment The payload of a chunk.
+         * @param endOfMessage Whether this is the last segment of the message.
+         */
+        void onSegment(@NonNull ByteBuffer segment, boolean endOfMessage);
+    }
+
+    @Nullable private Unchunker.MessageListener listener;
+    @Nullable private SegmentListener segmentListener;
+    private final int maxMessageLength;
+    @Nullable private byte[] message;
+    private int length = 0;
+    private boolean discarding = false;
+
+    /**
+     * Create a reliable/ordered unchunker for messages of up to 64 MiB.
+     */
+    public ReliableOrderedUnchunker() {
+        this(DEFAULT_MAX_MESSAGE_LENGTH);
+    }
+
+    /**
+     * Create a reliable/ordered unchunker.
+     *
+     * @param maxMessageLength The maximum length of a reassembled message.
+     */
+    public ReliableOrderedUnchunker(final int maxMessageLength) {
+        if (maxMessageLength < 0) {
+            throw new IllegalArgumentException("Invalid maximum message length: " +
+                maxMessageLength);
+        }
+        this.maxMessageLength = maxMessageLength;
+    }
+
+    /**
+     * Register a message listener which will be called once a message has
+     * been fully reassembled.
+     */
+    public void onMessage(@Nullable final Unchunker.MessageListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Register a segment listener which will be called for each chunk's
+     * payload. While registered, messages will not be reassembled.
+     */
+    public void onSegment(@Nullable final SegmentListener listener) {
+        this.segmentListener = listener;
+    }
+
+    /**
+     * Add a chunk.
+     *
+     * @param chunk The chunk, including the header.
+     * @throws IllegalArgumentException in case the chunk is invalid or the
+     *   message exceeds the maximum length.
+     */
+    public void add(@NonNull final ByteBuffer chunk) {
+        if (chunk.remaining() < ReliableOrderedChunker.HEADER_LENGTH) {
+            throw new IllegalArgumentException("Chunk is too short");
+        }
+
+        // Parse header
+        final byte options = chunk.get(chunk.position());
+        if ((options & ReliableOrderedChunker.MODE_BITMASK) !=
+            ReliableOrderedChunker.MODE_RELIABLE_ORDERED) {
+            throw new IllegalArgumentException("Invalid chunk mode: " + options);
+        }
+        final boolean endOfMessage = (options & ReliableOrderedChunker.END_OF_MESSAGE) != 0;
+
+        // Stream payload (if requested)
+        if (this.segmentListener != null) {
+            final ByteBuffer segment = chunk.duplicate();
+            segment.position(chunk.position() + ReliableOrderedChunker.HEADER_LENGTH);
+            this.segmentListener.onSegment(segment, endOfMessage);
+            return;
+        }
+
+        // Discard the remainder of an oversized message
+        if (this.discarding) {
+            this.discarding = !endOfMessage;
+            return;
+        }
+
+        // Append payload (unless the message grows too large)
+        final int payloadLength = chunk.remaining() - ReliableOrderedChunker.HEADER_LENGTH;
+        if ((long) this.length + payloadLength > this.maxMessageLength) {
+            this.message = null;
+            this.length = 0;
+            this.discarding = !endOfMessage;
+            throw new IllegalArgumentException("Message exceeds the maximum length of " +
+                this.maxMessageLength + " bytes");
+        }
+        this.ensureCapacity(payloadLength);
+        final ByteBuffer payload = chunk.duplicate();
+        payload.position(chunk.position() + ReliableOrderedChunker.HEADER_LENGTH);
+        payload.get(this.message, this.length, payloadLength);
+        this.length += payloadLength;
+
+        // Hand out message once complete
+        if (endOfMessage) {
+            final ByteBuffer buffer = ByteBuffer.wrap(this.message, 0, this.length).slice();
+            this.message = null;
+            this.length = 0;
+            if (this.listener != null) {
+                this.listener.onMessage(buffer);
+            }
+        }
+    }
+
+    /**
+     * Return the amount of bytes currently buffered for an incomplete message.
+     */
+    public int getBufferedLength() {
+        return this.length;
+    }
+
+    /**
+     * Ensure the message buffer can hold the requested amount of additional
+     * bytes. Grows exponentially to amortise copying, but never beyond the
+     * maximum message length.
+     */
+    private void ensureCapacity(final int additional) {
+        final int required = this.length + additional;
+        if (this.message == null) {
+            this.message = new byte[Math.max(required,
+                Math.min(INITIAL_CAPACITY, this.maxMessageLength))];
+        } else if (required > this.message.length) {
+            final int capacity = (int) Math.max(required,
+                Math.min((long) this.message.length * 2, this.maxMessageLength));
+            this.message = Arrays.copyOf(this.message, capacity);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.transport;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes the ordered segments of incoming messages into sinks, one sink per
+ * message. The sink is closed once the message is complete.
+ *
+ * In case writing to a sink fails, the remaining segments of that message
+ * are discarded.
+ *
+ * Warning: This class is not thread-safe.
+ */
+public class SegmentWriter implements ReliableOrderedUnchunker.SegmentListener {
+    @NonNull private static final Logger log = LoggerFactory.getLogger("SaltyRTC.Demo.Segments");
+
+    /**
+     * Provides a sink for each incoming message.
+     */
+    public interface SinkProvider {
+        /**
+         * Open a sink for a new incoming message.
+         */
+        @NonNull WritableByteChannel open() throws IOException;
+    }
+
+    @NonNull private final SinkProvider provider;
+    @Nullable private WritableByteChannel sink;
+    private boolean discarding = false;
+
+    public SegmentWriter(@NonNull final SinkProvider provider) {
+        this.provider = provider;
+    }
+
+    @Override
+    public void onSegment(@NonNull final ByteBuffer segment, final boolean endOfMessage) {
+        if (!this.discarding) {
+            try {
+                // Open sink on first segment
+                if (this.sink == null) {
+                    this.sink = this.provider.open();
+                }
+
+                // Write segment
+                while (segment.hasRemaining()) {
+                    this.sink.write(segment);
+                }
+            } catch (IOException error) {
+                log.error("Unable to write segment, discarding message", error);
+                this.discarding = true;
+                this.closeSink();
+            }
+        }
+
+        // Done?
+        if (endOfMessage) {
+            this.closeSink();
+            this.discarding = false;
+        }
+    }
+
+    private void closeSink() {
+        if (this.sink != null) {
+            try {
+                this.sink.close();
+            } catch (IOException error) {
+                log.error("Unable to close sink", error);
+            }
+            this.sink = null;
+        }
+    }
+}
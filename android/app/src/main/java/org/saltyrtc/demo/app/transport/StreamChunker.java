@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.transport;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.saltyrtc.demo.app.utils.BufferPool;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Fragments a stream of unknown length into chunks.
+ *
+ * Chunks are read from the source on demand, so only the chunk being
+ * returned and a single chunk of lookahead (required to determine whether a
+ * chunk is the last one of the message) are held in memory.
+ *
+ * The chunks are framed as defined by the chunk mode:
+ *
+ * - reliable/ordered: 1 byte options field.
+ * - unreliable/unordered: 1 byte options field, 4 byte message id and 4 byte
+ *   serial number.
+ *
+ * Note: Reading from the source may block. Errors are rethrown as
+ *       `UncheckedIOException`. Non-blocking sources are not supported
+ *       since a chunk is read until it is full or the source is exhausted.
+ */
+public class StreamChunker implements Iterator<ByteBuffer> {
+    private static final int UNRELIABLE_UNORDERED_HEADER_LENGTH = 9;
+
+    @NonNull private final ChunkMode mode;
+    @NonNull private final ReadableByteChannel source;
+    @Nullable private final ByteBuffer prefix;
+    private final long messageId;
+    private final int chunkLength;
+    private final int headerLength;
+    @Nullable private final BufferPool pool;
+    private long serial = 0;
+    @Nullable private ByteBuffer pending;
+    private boolean started = false;
+
+    /**
+     * Create a stream chunker.
+     *
+     * @param mode The chunk mode determining the framing.
+     * @param messageId The message id (only used in unreliable/unordered mode).
+     * @param source The source to read the message from.
+     * @param chunkLength The maximum length of a chunk, including the header.
+     */
+    public StreamChunker(
+        @NonNull final ChunkMode mode,
+        final long messageId,
+        @NonNull final ReadableByteChannel source,
+        final int chunkLength
+    ) {
+        this(mode, messageId, null, source, chunkLength, null);
+    }
+
+    /**
+     * Create a stream chunker.
+     *
+     * @param mode The chunk mode determining the framing.
+     * @param messageId The message id (only used in unreliable/unordered mode).
+     * @param prefix The bytes to precede the message with (optional). It is
+     *   written into the first chunk, so it must fit into a chunk. Its
+     *   position will not be altered.
+     * @param source The source to read the message from (must be blocking).
+     * @param chunkLength The maximum length of a chunk, including the header.
+     * @param pool The pool chunks are acquired from (optional). The consumer
+     *   of the chunks is responsible for releasing them.
+     */
+    public StreamChunker(
+        @NonNull final ChunkMode mode,
+        final long messageId,
+        @Nullable final ByteBuffer prefix,
+        @NonNull final ReadableByteChannel source,
+        final int chunkLength,
+        @Nullable final BufferPool pool
+    ) {
+        if (source instanceof SelectableChannel && !((SelectableChannel) source).isBlocking()) {
+            throw new IllegalArgumentException("Non-blocking sources are not supported");
+        }
+        this.mode = mode;
+        this.pool = pool;
+        this.messageId = messageId;
+        this.source = source;
+        this.headerLength = mode == ChunkMode.RELIABLE_ORDERED ?
+            ReliableOrderedChunker.HEADER_LENGTH : UNRELIABLE_UNORDERED_HEADER_LENGTH;
+        if (chunkLength <= this.headerLength) {
+            throw new IllegalArgumentException("Chunk length must be greater than " +
+                this.headerLength);
+        }
+        if (prefix != null && prefix.remaining() > chunkLength - this.headerLength) {
+            throw new IllegalArgumentException("Prefix does not fit into a chunk");
+        }
+        this.prefix = prefix;
+        this.chunkLength = chunkLength;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!this.started) {
+            this.started = true;
+            this.pending = this.read(true);
+        }
+        return this.pending != null;
+    }
+
+    @Override
+    @NonNull public ByteBuffer next() {
+        if (!this.hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final ByteBuffer chunk = this.pending;
+
+        // Read ahead to determine whether this is the last chunk
+        this.pending = this.read(false);
+        if (this.pending == null) {
+            chunk.put(0, (byte) (chunk.get(0) | ReliableOrderedChunker.END_OF_MESSAGE));
+        }
+        return chunk;
+    }
+
+    /**
+     * Read the next chunk from the source.
+     *
+     * @param first Whether this is the first chunk. The first chunk is
+     *   returned even if the source is empty.
+     * @return The chunk or `null` in case the source has been exhausted.
+     */
+    @Nullable private ByteBuffer read(final boolean first) {
+        final ByteBuffer chunk = this.pool != null ?
+            this.pool.acquire(this.chunkLength) : ByteBuffer.allocate(this.chunkLength);
+        chunk.position(this.headerLength);
+        if (first && this.prefix != null) {
+            chunk.put(this.prefix.duplicate());
+        }
+        try {
+            while (chunk.hasRemaining()) {
+                if (this.source.read(chunk) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException error) {
+            this.release(chunk);
+            throw new UncheckedIOException(error);
+        }
+        if (!first && chunk.position() == this.headerLength) {
+            this.release(chunk);
+            return null;
+        }
+        chunk.flip();
+
+        // Write header (without end-of-message flag)
+        switch (this.mode) {
+            case RELIABLE_ORDERED:
+                chunk.put(0, ReliableOrderedChunker.MODE_RELIABLE_ORDERED);
+                break;
+            case UNRELIABLE_UNORDERED:
+                chunk.put(0, (byte) 0x00);
+                chunk.putInt(1, (int) this.messageId);
+                chunk.putInt(5, (int) this.serial++);
+                break;
+        }
+        return chunk;
+    }
+
+    private void release(@NonNull final ByteBuffer chunk) {
+        if (this.pool != null) {
+            this.pool.release(chunk);
+        }
+    }
+}
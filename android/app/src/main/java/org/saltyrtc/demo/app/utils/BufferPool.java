@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.utils;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of byte buffers, organised in power-of-two size classes
+ * from 1 KiB to 256 KiB.
+ *
+ * Requests larger than the largest size class are served by a fresh
+ * allocation and are not pooled.
+ *
+ * Important: A buffer must only be released once and must not be used after
+ *            it has been released.
+ */
+@AnyThread
+public class BufferPool {
+    private static final int MIN_SIZE_SHIFT = 10;
+    private static final int MAX_SIZE_SHIFT = 18;
+
+    private final boolean direct;
+    private final int maxPerClass;
+    @NonNull private final List<Queue<ByteBuffer>> classes = new ArrayList<>();
+    @NonNull private final List<AtomicInteger> classSizes = new ArrayList<>();
+    @NonNull private final AtomicLong hits = new AtomicLong(0);
+    @NonNull private final AtomicLong misses = new AtomicLong(0);
+    @NonNull private final AtomicInteger outstanding = new AtomicInteger(0);
+
+    /**
+     * Create a buffer pool.
+     *
+     * @param direct Whether direct buffers should be allocated.
+     * @param maxPerClass The maximum amount of idle buffers retained per
+     *   size class.
+     */
+    public BufferPool(final boolean direct, final int maxPerClass) {
+        this.direct = direct;
+        this.maxPerClass = maxPerClass;
+        for (int shift = MIN_SIZE_SHIFT; shift <= MAX_SIZE_SHIFT; ++shift) {
+            this.classes.add(new ConcurrentLinkedQueue<>());
+            this.classSizes.add(new AtomicInteger(0));
+        }
+    }
+
+    /**
+     * Return the index of the smallest size class that can hold `length`
+     * bytes, or -1 if it exceeds the largest size class.
+     */
+    private static int classIndex(final int length) {
+        if (length > 1 << MAX_SIZE_SHIFT) {
+            return -1;
+        }
+        final int shift = Math.max(
+            MIN_SIZE_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(length, 1) - 1));
+        return shift - MIN_SIZE_SHIFT;
+    }
+
+    @NonNull private ByteBuffer allocate(final int capacity) {
+        return this.direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Acquire a buffer. Its position will be zero and its limit `length`.
+     * The capacity may be larger than `length`.
+     */
+    @NonNull public ByteBuffer acquire(final int length) {
+        final int index = classIndex(length);
+        if (index < 0) {
+            this.misses.incrementAndGet();
+            return this.allocate(length);
+        }
+
+        // Reuse idle buffer or allocate a new one
+        ByteBuffer buffer = this.classes.get(index).poll();
+        if (buffer != null) {
+            this.classSizes.get(index).decrementAndGet();
+            this.hits.incrementAndGet();
+            buffer.clear();
+        } else {
+            this.misses.incrementAndGet();
+            buffer = this.allocate(1 << (index + MIN_SIZE_SHIFT));
+        }
+        this.outstanding.incrementAndGet();
+        buffer.limit(length);
+        return buffer;
+    }
+
+    /**
+     * Release a buffer previously acquired from this pool.
+     */
+    public void release(@NonNull final ByteBuffer buffer) {
+        final int index = classIndex(buffer.capacity());
+        if (index < 0 || buffer.capacity() != 1 << (index + MIN_SIZE_SHIFT)) {
+            // Not pooled
+            return;
+        }
+        this.outstanding.decrementAndGet();
+
+        // Retain unless the size class is full
+        final AtomicInteger size = this.classSizes.get(index);
+        if (size.incrementAndGet() > this.maxPerClass) {
+            size.decrementAndGet();
+            return;
+        }
+        this.classes.get(index).offer(buffer);
+    }
+
+    /**
+     * Return the amount of requests served by an idle buffer.
+     */
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    /**
+     * Return the amount of requests that required a new allocation.
+     */
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * Return the amount of buffers acquired but not yet released.
+     */
+    public int getOutstanding() {
+        return this.outstanding.get();
+    }
+}
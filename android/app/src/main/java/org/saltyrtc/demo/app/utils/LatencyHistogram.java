@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.utils;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in nanoseconds with power-of-two
+ * buckets. Recording a value does not allocate.
+ *
+ * Bucket `i` counts values in the range `[2^(i-1), 2^i)` (bucket 0 counts
+ * zero), so percentiles are reported as the upper bound of their bucket.
+ */
+@AnyThread
+public class LatencyHistogram {
+    private static final int BUCKETS = 64;
+
+    @NonNull private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    @NonNull private final AtomicLong count = new AtomicLong(0);
+    @NonNull private final AtomicLong sum = new AtomicLong(0);
+    @NonNull private final AtomicLong max = new AtomicLong(0);
+
+    /**
+     * Record a duration.
+     *
+     * @param nanos The duration in nanoseconds. Negative values are clamped
+     *   to zero.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        this.buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(nanos);
+        long current;
+        while (nanos > (current = this.max.get())) {
+            if (this.max.compareAndSet(current, nanos)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Return the amount of recorded durations.
+     */
+    public long getCount() {
+        return this.count.get();
+    }
+
+    /**
+     * Return the mean duration in nanoseconds.
+     */
+    public long getMeanNanos() {
+        final long count = this.count.get();
+        return count == 0 ? 0 : this.sum.get() / count;
+    }
+
+    /**
+     * Return the maximum duration in nanoseconds.
+     */
+    public long getMaxNanos() {
+        return this.max.get();
+    }
+
+    /**
+     * Return the (approximate) duration in nanoseconds below which the given
+     * fraction of durations falls.
+     *
+     * @param fraction The fraction, e.g. 0.99 for the 99th percentile.
+     */
+    public long getPercentileNanos(final double fraction) {
+        final long count = this.count.get();
+        if (count == 0) {
+            return 0;
+        }
+        final long threshold = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += this.buckets.get(i);
+            if (seen >= threshold) {
+                if (i == 0) {
+                    return 0;
+                }
+                final long upperBound = i < BUCKETS - 1 ? (1L << i) - 1 : Long.MAX_VALUE;
+                return Math.min(upperBound, this.max.get());
+            }
+        }
+        return this.max.get();
+    }
+}
@@ -30,7 +30,15 @@ public class LazysodiumCryptoInstance implements CryptoInstance {
         @NonNull byte[] ownPrivateKey,
         @NonNull byte[] otherPublicKey
     ) throws CryptoException {
-        this.sodium = new LazySodiumAndroid(sodium);
+        this(new LazySodiumAndroid(sodium), ownPrivateKey, otherPublicKey);
+    }
+
+    LazysodiumCryptoInstance(
+        @NonNull Box.Native sodium,
+        @NonNull byte[] ownPrivateKey,
+        @NonNull byte[] otherPublicKey
+    ) throws CryptoException {
+        this.sodium = sodium;
 
         // Verify key lengths
         if (otherPublicKey.length != CryptoProvider.PUBLICKEYBYTES) {
@@ -9,8 +9,6 @@ package org.saltyrtc.demo.app.utils;
 
 import com.goterl.lazycode.lazysodium.LazySodiumAndroid;
 import com.goterl.lazycode.lazysodium.SodiumAndroid;
-import com.goterl.lazycode.lazysodium.interfaces.Box;
-import com.goterl.lazycode.lazysodium.interfaces.SecretBox;
 import org.saltyrtc.client.annotations.NonNull;
 import org.saltyrtc.client.crypto.CryptoException;
 import org.saltyrtc.client.crypto.CryptoInstance;
@@ -27,6 +25,10 @@ import org.saltyrtc.client.crypto.CryptoProvider;
 public class LazysodiumCryptoProvider implements CryptoProvider {
     final private static SodiumAndroid sodium = new SodiumAndroid();
 
+    // Note: The wrapper is stateless and can therefore be shared between
+    //       threads and crypto instances.
+    final private static LazySodiumAndroid lazySodium = new LazySodiumAndroid(sodium);
+
     @Override
     public void generateKeypair(
         @NonNull byte[] publickey,
@@ -41,7 +43,6 @@ public class LazysodiumCryptoProvider implements CryptoProvider {
         }
 
         // Generate keypair
-        final Box.Native lazySodium = new LazySodiumAndroid(sodium);
         final boolean success = lazySodium.cryptoBoxKeypair(publickey, privatekey);
         if (!success) {
             throw new CryptoException("Could not generate keypair");
@@ -57,7 +58,6 @@ public class LazysodiumCryptoProvider implements CryptoProvider {
         }
 
         // Derive public key from private key
-        final LazySodiumAndroid lazySodium = new LazySodiumAndroid(sodium);
         byte[] publicKey = new byte[CryptoProvider.PUBLICKEYBYTES];
         final boolean success = lazySodium.cryptoScalarMultBase(publicKey, privateKey);
         if (!success) {
@@ -83,7 +83,6 @@ public class LazysodiumCryptoProvider implements CryptoProvider {
         }
 
         // Encrypt
-        final SecretBox.Native lazySodium = new LazySodiumAndroid(sodium);
         final byte[] output = new byte[input.length + CryptoProvider.BOXOVERHEAD];
         final boolean success = lazySodium.cryptoSecretBoxEasy(
             output, input, input.length, nonce, key);
@@ -110,7 +109,6 @@ public class LazysodiumCryptoProvider implements CryptoProvider {
         }
 
         // Decrypt
-        final SecretBox.Native lazySodium = new LazySodiumAndroid(sodium);
         final byte[] decrypted = new byte[input.length - CryptoProvider.BOXOVERHEAD];
         final boolean success = lazySodium.cryptoSecretBoxOpenEasy(
             decrypted, input, input.length, nonce, key);
@@ -127,6 +125,6 @@ public class LazysodiumCryptoProvider implements CryptoProvider {
         @NonNull byte[] ownPrivateKey,
         @NonNull byte[] otherPublicKey
     ) throws CryptoException {
-        return new LazysodiumCryptoInstance(sodium, ownPrivateKey, otherPublicKey);
+        return new LazysodiumCryptoInstance(lazySodium, ownPrivateKey, otherPublicKey);
     }
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.utils;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads a file channel from its current position to its end via
+ * memory-mapped regions of a fixed size.
+ *
+ * This avoids a read system call per chunk and keeps the file contents out of
+ * the Java heap.
+ */
+public class MappedFileReader implements ReadableByteChannel {
+    private static final long DEFAULT_REGION_LENGTH = 16 * 1024 * 1024;
+
+    @NonNull private final FileChannel channel;
+    private final long regionLength;
+    private long position;
+    @Nullable private MappedByteBuffer region;
+
+    public MappedFileReader(@NonNull final FileChannel channel) throws IOException {
+        this(channel, DEFAULT_REGION_LENGTH);
+    }
+
+    public MappedFileReader(
+        @NonNull final FileChannel channel, final long regionLength) throws IOException {
+        this.channel = channel;
+        this.regionLength = regionLength;
+        this.position = channel.position();
+    }
+
+    @Override
+    public int read(@NonNull final ByteBuffer dst) throws IOException {
+        // Map the next region (if needed)
+        if (this.region == null || !this.region.hasRemaining()) {
+            final long length = Math.min(this.regionLength, this.channel.size() - this.position);
+            if (length <= 0) {
+                return -1;
+            }
+            this.region = this.channel.map(FileChannel.MapMode.READ_ONLY, this.position, length);
+            this.position += length;
+        }
+
+        // Copy as much as possible
+        final MappedByteBuffer region = this.region;
+        final int length = Math.min(dst.remaining(), region.remaining());
+        final ByteBuffer slice = region.duplicate();
+        slice.limit(slice.position() + length);
+        dst.put(slice);
+        region.position(region.position() + length);
+        return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.region = null;
+        this.channel.close();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.utils;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps an executor service and keeps track of its queue depth.
+ */
+@AnyThread
+public class MonitoredExecutor implements Executor {
+    @NonNull private final ExecutorService executor;
+    @NonNull private final AtomicInteger queued = new AtomicInteger(0);
+    @NonNull private final AtomicInteger running = new AtomicInteger(0);
+    @NonNull private final AtomicInteger maxQueued = new AtomicInteger(0);
+    @NonNull private final AtomicLong completed = new AtomicLong(0);
+
+    public MonitoredExecutor(@NonNull final ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(@NonNull final Runnable task) {
+        final int depth = this.queued.incrementAndGet();
+        this.maxQueued.accumulateAndGet(depth, Math::max);
+        try {
+            this.executor.execute(() -> {
+                this.queued.decrementAndGet();
+                this.running.incrementAndGet();
+                try {
+                    task.run();
+                } finally {
+                    this.running.decrementAndGet();
+                    this.completed.incrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException error) {
+            this.queued.decrementAndGet();
+            throw error;
+        }
+    }
+
+    /**
+     * Return the amount of tasks waiting to be run.
+     */
+    public int getQueueDepth() {
+        return this.queued.get();
+    }
+
+    /**
+     * Return the maximum amount of tasks that have been waiting to be run
+     * at the same time.
+     */
+    public int getMaxQueueDepth() {
+        return this.maxQueued.get();
+    }
+
+    /**
+     * Return the amount of tasks currently running.
+     */
+    public int getRunning() {
+        return this.running.get();
+    }
+
+    /**
+     * Return the amount of tasks that have been run.
+     */
+    public long getCompleted() {
+        return this.completed.get();
+    }
+
+    /**
+     * Shut down the underlying executor service.
+     */
+    public void shutdown() {
+        this.executor.shutdown();
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.utils;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks one at a time in submission order on a (possibly shared)
+ * backing executor.
+ *
+ * No thread is dedicated to an instance. A task is only scheduled on the
+ * backing executor while there are tasks pending.
+ */
+@AnyThread
+public class SerialExecutor implements Executor {
+    @NonNull private static final Logger log =
+        LoggerFactory.getLogger("SaltyRTC.Demo.SerialExecutor");
+
+    @NonNull private final SerialQueue queue;
+
+    public SerialExecutor(@NonNull final Executor executor) {
+        this.queue = new SerialQueue(
+            executor, error -> log.error("Uncaught exception in task", error));
+    }
+
+    @Override
+    public void execute(@NonNull final Runnable task) {
+        this.queue.execute(task);
+    }
+
+    /**
+     * Return the amount of tasks waiting to be run (excluding the task
+     * currently running).
+     */
+    public int getQueueDepth() {
+        return Math.max(0, this.queue.getPending() - 1);
+    }
+}
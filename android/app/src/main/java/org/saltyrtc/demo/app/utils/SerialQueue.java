@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.utils;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Runs (synchronous or asynchronous) operations one at a time in submission
+ * order on a (possibly shared) backing executor.
+ *
+ * Producers append to a lock-free multi-producer/single-consumer linked
+ * queue. A single drain task consumes the queue and is only scheduled on the
+ * backing executor while operations are pending. An asynchronous operation
+ * suspends the drain task until its future has been resolved, so no thread is
+ * blocked in the meantime.
+ */
+@AnyThread
+public class SerialQueue {
+    @NonNull private final Executor executor;
+    @NonNull private final AtomicReference<Node> tail;
+    @NonNull private final AtomicInteger pending = new AtomicInteger(0);
+    @NonNull private final Runnable drainTask = this::drain;
+    @Nullable private final ErrorHandler errorHandler;
+
+    // Only accessed by the drain task
+    @NonNull private Node head;
+
+    /**
+     * Handles errors raised by operations.
+     */
+    public interface ErrorHandler {
+        void onError(@NonNull Throwable error);
+    }
+
+    private static final class Node {
+        @Nullable Runnable operation;
+        @Nullable Supplier<CompletableFuture<?>> asyncOperation;
+        @Nullable CompletableFuture<Void> result;
+        @Nullable volatile Node next;
+    }
+
+    /**
+     * Create a serial queue.
+     *
+     * @param executor The executor operations will be run on.
+     * @param errorHandler Optional handler for errors raised by operations.
+     */
+    public SerialQueue(@NonNull final Executor executor, @Nullable final ErrorHandler errorHandler) {
+        this.executor = executor;
+        this.errorHandler = errorHandler;
+        this.head = new Node();
+        this.tail = new AtomicReference<>(this.head);
+    }
+
+    /**
+     * Enqueue an operation.
+     *
+     * @return A future that resolves once the operation has been run.
+     */
+    @NonNull public CompletableFuture<Void> enqueue(@NonNull final Runnable operation) {
+        final Node node = new Node();
+        node.operation = operation;
+        node.result = new CompletableFuture<>();
+        final CompletableFuture<Void> result = node.result;
+        this.offer(node);
+        return result;
+    }
+
+    /**
+     * Enqueue an operation without tracking its completion.
+     */
+    public void execute(@NonNull final Runnable operation) {
+        final Node node = new Node();
+        node.operation = operation;
+        this.offer(node);
+    }
+
+    /**
+     * Enqueue an asynchronous operation. The next operation will not be
+     * started before the future returned by this operation has been resolved.
+     *
+     * @return A future that resolves once the future returned by the
+     *   operation has been resolved.
+     */
+    @NonNull public CompletableFuture<Void> enqueueAsync(
+        @NonNull final Supplier<CompletableFuture<?>> operation) {
+        final Node node = new Node();
+        node.asyncOperation = operation;
+        node.result = new CompletableFuture<>();
+        final CompletableFuture<Void> result = node.result;
+        this.offer(node);
+        return result;
+    }
+
+    /**
+     * Return the amount of operations that have not completed, yet
+     * (including the one currently running).
+     */
+    public int getPending() {
+        return this.pending.get();
+    }
+
+    private void offer(@NonNull final Node node) {
+        // Link node
+        final Node previous = this.tail.getAndSet(node);
+        previous.next = node;
+
+        // Schedule drain task if idle
+        if (this.pending.getAndIncrement() == 0) {
+            this.schedule();
+        }
+    }
+
+    private void schedule() {
+        try {
+            this.executor.execute(this.drainTask);
+        } catch (RejectedExecutionException error) {
+            // Note: Fail all pending operations since nobody would run them.
+            this.failAll(error);
+        }
+    }
+
+    private void drain() {
+        do {
+            final Node node = this.poll();
+
+            // Run synchronous operation
+            final Runnable operation = node.operation;
+            if (operation != null) {
+                node.operation = null;
+                try {
+                    operation.run();
+                    if (node.result != null) {
+                        node.result.complete(null);
+                    }
+                } catch (Throwable error) {
+                    this.fail(node.result, error);
+                }
+                continue;
+            }
+
+            // Run asynchronous operation
+            final Supplier<CompletableFuture<?>> asyncOperation =
+                node.asyncOperation;
+            node.asyncOperation = null;
+            final CompletableFuture<?> future;
+            try {
+                future = Objects.requireNonNull(asyncOperation).get();
+            } catch (Throwable error) {
+                this.fail(node.result, error);
+                continue;
+            }
+            if (future.isDone()) {
+                this.complete(node.result, future);
+                continue;
+            }
+
+            // Suspend until resolved
+            future.whenComplete((ignoredResult, ignoredError) -> {
+                this.complete(node.result, future);
+                if (this.pending.decrementAndGet() > 0) {
+                    this.schedule();
+                }
+            });
+            return;
+        } while (this.pending.decrementAndGet() > 0);
+    }
+
+    @NonNull private Node poll() {
+        // Note: A producer may have swapped the tail but not linked the node
+        //       to its predecessor, yet. That window is tiny, so we spin.
+        Node next;
+        while ((next = this.head.next) == null) {
+            Thread.yield();
+        }
+        this.head = next;
+        return next;
+    }
+
+    private void complete(
+        @Nullable final CompletableFuture<Void> result,
+        @NonNull final CompletableFuture<?> future
+    ) {
+        try {
+            future.join();
+            if (result != null) {
+                result.complete(null);
+            }
+        } catch (Throwable error) {
+            this.fail(result, error.getCause() != null ? error.getCause() : error);
+        }
+    }
+
+    private void fail(
+        @Nullable final CompletableFuture<Void> result,
+        @NonNull final Throwable error
+    ) {
+        if (this.errorHandler != null) {
+            this.errorHandler.onError(error);
+        }
+        if (result != null) {
+            result.completeExceptionally(error);
+        }
+    }
+
+    private void failAll(@NonNull final Throwable error) {
+        do {
+            final Node node = this.poll();
+            node.operation = null;
+            node.asyncOperation = null;
+            this.fail(node.result, error);
+        } while (this.pending.decrementAndGet() > 0);
+    }
+}
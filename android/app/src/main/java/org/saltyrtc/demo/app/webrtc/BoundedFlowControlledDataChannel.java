@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.webrtc;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.webrtc.DataChannel;
+
+import java.nio.BufferOverflowException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * A flow-controlled (sender side) data channel that queues a bounded amount
+ * of messages in application space.
+ *
+ * Messages are queued in a fixed-size ring buffer which is additionally
+ * limited by a byte budget. Once either limit has been reached, further
+ * writes are either rejected right away (fail fast) or deferred until enough
+ * queued messages have been written.
+ *
+ * Once writing a queued message to the data channel failed, the queue is
+ * discarded, waiting writers are rejected and so are all further writes.
+ */
+@AnyThread
+public class BoundedFlowControlledDataChannel extends FlowControlledDataChannel {
+    @NonNull private final DataChannel.Buffer[] ring;
+    private final long byteBudget;
+    private final boolean failFast;
+    private int head = 0;
+    private int size = 0;
+    private long queuedBytes = 0;
+    private boolean drainScheduled = false;
+    @Nullable private RuntimeException error;
+    @NonNull private final CompletableFuture<Void> failure = new CompletableFuture<>();
+
+    // Writers waiting for space (only used if not failing fast)
+    @NonNull private final Queue<PendingWrite> pending = new ArrayDeque<>();
+
+    private static class PendingWrite {
+        @NonNull final DataChannel.Buffer message;
+        final int length;
+        @NonNull final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        PendingWrite(@NonNull final DataChannel.Buffer message, final int length) {
+            this.message = message;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Create a flow-controlled (sender side) data channel with a bounded
+     * buffer.
+     *
+     * @param dc The data channel to be flow-controlled
+     * @param eventExecutor The executor buffered amount changes are
+     *   dispatched on.
+     * @param capacity The maximum amount of queued messages.
+     * @param byteBudget The maximum amount of queued bytes.
+     * @param failFast Whether writes exceeding the limits should be rejected
+     *   immediately instead of being deferred.
+     * @throws IllegalArgumentException in case the capacity or the byte
+     *   budget is not positive.
+     */
+    public BoundedFlowControlledDataChannel(
+        @NonNull final DataChannel dc,
+        @NonNull final Executor eventExecutor,
+        final int capacity,
+        final long byteBudget,
+        final boolean failFast
+    ) {
+        super(dc, eventExecutor);
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        if (byteBudget <= 0) {
+            throw new IllegalArgumentException("Byte budget must be positive: " + byteBudget);
+        }
+        this.ring = new DataChannel.Buffer[capacity];
+        this.byteBudget = byteBudget;
+        this.failFast = failFast;
+    }
+
+    /**
+     * Queue a message for delivery to the remote side.
+     *
+     * @param message The message to be sent.
+     * @return A future that resolves once the message has been accepted into
+     *   the queue. If failing fast, it rejects with a
+     *   `BufferOverflowException` in case the queue is full. It rejects with
+     *   the original exception in case writing to the data channel failed.
+     */
+    @NonNull public CompletableFuture<Void> writeAsync(@NonNull final DataChannel.Buffer message) {
+        final int length = message.data.remaining();
+        synchronized (this) {
+            if (this.error != null) {
+                return failed(this.error);
+            }
+            if (length > this.byteBudget) {
+                return rejected("Message exceeds the byte budget");
+            }
+
+            // Accept if there is space (and nobody is waiting ahead of us)
+            if (this.pending.isEmpty() && this.hasSpace(length)) {
+                this.offer(message, length);
+                this.drain();
+                return this.error != null ?
+                    failed(this.error) : CompletableFuture.completedFuture(null);
+            }
+
+            // Reject or defer
+            if (this.failFast) {
+                return rejected("Queue is full (" + this.size + " messages, " +
+                    this.queuedBytes + " bytes)");
+            }
+            final PendingWrite write = new PendingWrite(message, length);
+            this.pending.add(write);
+            return write.future;
+        }
+    }
+
+    @NonNull private static CompletableFuture<Void> rejected(@NonNull final String reason) {
+        final BufferOverflowException error = new BufferOverflowException();
+        error.initCause(new IllegalStateException(reason));
+        return failed(error);
+    }
+
+    @NonNull private static CompletableFuture<Void> failed(@NonNull final Throwable error) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(error);
+        return future;
+    }
+
+    private boolean hasSpace(final int length) {
+        return this.size < this.ring.length && this.queuedBytes + length <= this.byteBudget;
+    }
+
+    private void offer(@NonNull final DataChannel.Buffer message, final int length) {
+        this.ring[(this.head + this.size) % this.ring.length] = message;
+        this.size += 1;
+        this.queuedBytes += length;
+    }
+
+    /**
+     * Write queued messages until the queue is empty or the data channel
+     * has been paused. Resumes once the data channel is ready again.
+     *
+     * Note: Must be called while holding the lock.
+     */
+    private void drain() {
+        while (this.size > 0) {
+            // Resume once ready
+            final CompletableFuture<?> ready = this.ready();
+            if (!ready.isDone()) {
+                if (!this.drainScheduled) {
+                    this.drainScheduled = true;
+                    ready.thenRun(() -> {
+                        synchronized (this) {
+                            this.drainScheduled = false;
+                            this.drain();
+                        }
+                    });
+                }
+                return;
+            }
+
+            // Dequeue and write message
+            final DataChannel.Buffer message = this.ring[this.head];
+            this.ring[this.head] = null;
+            this.head = (this.head + 1) % this.ring.length;
+            this.size -= 1;
+            this.queuedBytes -= message.data.remaining();
+            try {
+                this.write(message);
+            } catch (RuntimeException error) {
+                this.fail(error);
+                return;
+            }
+
+            // Accept waiting writers
+            @Nullable PendingWrite write;
+            while ((write = this.pending.peek()) != null && this.hasSpace(write.length)) {
+                this.pending.poll();
+                this.offer(write.message, write.length);
+                write.future.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Writing a message failed. Discard the queue and reject all waiting
+     * writers.
+     *
+     * Note: Must be called while holding the lock.
+     */
+    private void fail(@NonNull final RuntimeException error) {
+        this.error = error;
+        Arrays.fill(this.ring, null);
+        this.head = 0;
+        this.size = 0;
+        this.queuedBytes = 0;
+        @Nullable PendingWrite write;
+        while ((write = this.pending.poll()) != null) {
+            write.future.completeExceptionally(error);
+        }
+        this.failure.completeExceptionally(error);
+    }
+
+    /**
+     * Return a future that rejects with the original exception once writing
+     * a queued message to the data channel failed.
+     *
+     * Note: This also covers messages written in the background after the
+     *       data channel became ready again, whose writers have already been
+     *       resolved.
+     */
+    @NonNull public CompletableFuture<Void> failure() {
+        return this.failure;
+    }
+
+    /**
+     * Return the amount of queued messages.
+     */
+    public synchronized int getQueuedMessages() {
+        return this.size;
+    }
+
+    /**
+     * Return the amount of queued bytes.
+     */
+    public synchronized long getQueuedBytes() {
+        return this.queuedBytes;
+    }
+}
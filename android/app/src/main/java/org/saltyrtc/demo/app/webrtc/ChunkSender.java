@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.webrtc;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.saltyrtc.client.crypto.CryptoException;
+import org.saltyrtc.client.exceptions.OverflowException;
+import org.saltyrtc.client.keystore.Box;
+import org.saltyrtc.demo.app.utils.BufferPool;
+import org.saltyrtc.tasks.webrtc.crypto.DataChannelCryptoContext;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Sends the chunks of a single message without blocking any thread.
+ *
+ * Chunks are written as long as the flow-controlled data channel is ready.
+ * Once it has been paused, writing continues as soon as the channel's ready
+ * future resolves (i.e. once the low water mark has been reached). No thread
+ * is held while waiting.
+ *
+ * If a crypto context has been provided, the chunks are encrypted on the
+ * crypto executor ahead of the flow control window. Up to `depth` chunks are
+ * kept in the pipeline, so the data channel does not have to wait for
+ * encryption and encryption does not have to wait for the data channel
+ * unless the pipeline is full or empty.
+ *
+ * Note: The chunker may block while reading from its source, so chunks are
+ *       always pulled from it on the write executor. Only the pulled chunks
+ *       are handed to the crypto executor, which therefore never blocks.
+ *
+ * Note: There is only ever a single reading, a single encrypting and a
+ *       single writing task running, so the chunks are read, encrypted and
+ *       written strictly in order.
+ */
+@AnyThread
+class ChunkSender {
+    @NonNull private final FlowControlledDataChannel fcdc;
+    @NonNull private final Iterator<ByteBuffer> chunker;
+    @NonNull private final Consumer<ByteBuffer> writer;
+    @NonNull private final Executor writeExecutor;
+    @Nullable private final DataChannelCryptoContext crypto;
+    @Nullable private final Executor cryptoExecutor;
+    @Nullable private final BufferPool pool;
+    @Nullable private final TransportMetrics metrics;
+    private final int depth;
+
+    @NonNull private final CompletableFuture<Void> done = new CompletableFuture<>();
+    @NonNull private final AtomicBoolean writing = new AtomicBoolean(false);
+    @NonNull private final AtomicBoolean reading = new AtomicBoolean(false);
+    @NonNull private final AtomicBoolean encrypting = new AtomicBoolean(false);
+    @NonNull private final Queue<ByteBuffer> unsealed = new ConcurrentLinkedQueue<>();
+    @NonNull private final Queue<ByteBuffer> sealed = new ConcurrentLinkedQueue<>();
+    @NonNull private final AtomicInteger pipelined = new AtomicInteger(0);
+    private volatile boolean readAll = false;
+    private volatile boolean sealedAll = false;
+
+    /**
+     * Create a sender for chunks that are written as they are.
+     *
+     * @param fcdc The flow-controlled data channel.
+     * @param chunker Provides the chunks of the message.
+     * @param writer Writes a chunk to the flow-controlled data channel.
+     * @param writeExecutor Executor to run the write loop on.
+     * @param pool The pool the chunks have been acquired from (if any). Each
+     *   chunk will be released once it has been written.
+     */
+    ChunkSender(
+        @NonNull final FlowControlledDataChannel fcdc,
+        @NonNull final Iterator<ByteBuffer> chunker,
+        @NonNull final Consumer<ByteBuffer> writer,
+        @NonNull final Executor writeExecutor,
+        @Nullable final BufferPool pool
+    ) {
+        this(fcdc, chunker, writer, writeExecutor, null, null, 0, pool, null);
+    }
+
+    /**
+     * Create a sender for chunks that are encrypted ahead of writing them.
+     *
+     * @param fcdc The flow-controlled data channel.
+     * @param chunker Provides the chunks of the message.
+     * @param writer Writes a chunk to the flow-controlled data channel.
+     * @param writeExecutor Executor to run the read and the write loop on.
+     * @param crypto The crypto context used to encrypt each chunk.
+     * @param cryptoExecutor Executor to run the encryption loop on.
+     * @param depth The maximum amount of chunks read ahead of writing them.
+     * @param pool The pool the chunks have been acquired from (if any). Each
+     *   chunk will be released once it has been encrypted.
+     * @param metrics Records the encryption latency (optional).
+     */
+    ChunkSender(
+        @NonNull final FlowControlledDataChannel fcdc,
+        @NonNull final Iterator<ByteBuffer> chunker,
+        @NonNull final Consumer<ByteBuffer> writer,
+        @NonNull final Executor writeExecutor,
+        @Nullable final DataChannelCryptoContext crypto,
+        @Nullable final Executor cryptoExecutor,
+        final int depth,
+        @Nullable final BufferPool pool,
+        @Nullable final TransportMetrics metrics
+    ) {
+        this.fcdc = fcdc;
+        this.chunker = chunker;
+        this.writer = writer;
+        this.writeExecutor = writeExecutor;
+        this.crypto = crypto;
+        this.cryptoExecutor = cryptoExecutor;
+        this.depth = depth;
+        this.pool = pool;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Start sending.
+     *
+     * @return A future that resolves once all chunks have been written, or
+     *   rejects in case encrypting or writing a chunk failed.
+     */
+    @NonNull CompletableFuture<Void> start() {
+        if (this.crypto != null) {
+            if (this.cryptoExecutor == null) {
+                this.done.completeExceptionally(new RejectedExecutionException("No executor"));
+            } else {
+                this.scheduleRead();
+            }
+        } else {
+            this.scheduleWrite();
+        }
+        return this.done;
+    }
+
+    /**
+     * Schedule the write loop unless it is already running.
+     */
+    private void scheduleWrite() {
+        if (this.writing.compareAndSet(false, true)) {
+            this.execute(this.writeExecutor, this::write);
+        }
+    }
+
+    /**
+     * Schedule the read loop unless it is already running.
+     */
+    private void scheduleRead() {
+        if (this.reading.compareAndSet(false, true)) {
+            this.execute(this.writeExecutor, this::read);
+        }
+    }
+
+    /**
+     * Schedule the encryption loop unless it is already running.
+     */
+    private void scheduleEncrypt() {
+        if (this.encrypting.compareAndSet(false, true)) {
+            this.execute(this.cryptoExecutor, this::encrypt);
+        }
+    }
+
+    private void execute(@Nullable final Executor executor, @NonNull final Runnable task) {
+        try {
+            if (executor == null) {
+                throw new RejectedExecutionException("No executor");
+            }
+            executor.execute(task);
+        } catch (RejectedExecutionException error) {
+            this.done.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Write chunks until the data channel is paused or no chunk is available.
+     */
+    private void write() {
+        try {
+            while (!this.done.isDone()) {
+                // Wait until we can send (without blocking)
+                final CompletableFuture<?> ready = this.fcdc.ready();
+                if (!ready.isDone()) {
+                    this.writing.set(false);
+                    ready.whenComplete((result, error) -> {
+                        if (error != null) {
+                            this.done.completeExceptionally(error);
+                        } else {
+                            this.scheduleWrite();
+                        }
+                    });
+                    return;
+                }
+
+                // Get next chunk
+                final ByteBuffer chunk = this.poll();
+                if (chunk == null) {
+                    if (this.isExhausted()) {
+                        this.done.complete(null);
+                        return;
+                    }
+
+                    // Wait for the encryptor
+                    // Note: Re-check after resetting the flag since a chunk may
+                    //       have been sealed in the meantime.
+                    this.writing.set(false);
+                    if (!this.sealed.isEmpty() || this.sealedAll) {
+                        this.scheduleWrite();
+                    }
+                    return;
+                }
+
+                // Write chunk
+                // Note: The chunk is copied when handed to the native layer,
+                //       so it can be released right away.
+                this.writer.accept(chunk);
+                if (this.crypto == null && this.pool != null) {
+                    this.pool.release(chunk);
+                }
+            }
+        } catch (RuntimeException error) {
+            this.done.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Read chunks until the pipeline is full or all chunks have been read.
+     */
+    private void read() {
+        try {
+            while (!this.done.isDone()) {
+                // Wait for the writer if the pipeline is full
+                // Note: Re-check after resetting the flag since a chunk may
+                //       have been written in the meantime.
+                if (this.pipelined.get() >= this.depth) {
+                    this.reading.set(false);
+                    if (this.pipelined.get() < this.depth) {
+                        this.scheduleRead();
+                    }
+                    return;
+                }
+
+                // Done?
+                if (!this.chunker.hasNext()) {
+                    this.readAll = true;
+                    this.scheduleEncrypt();
+                    return;
+                }
+
+                // Hand chunk to the encryptor
+                this.unsealed.offer(this.chunker.next());
+                this.pipelined.incrementAndGet();
+                this.scheduleEncrypt();
+            }
+        } catch (RuntimeException error) {
+            this.done.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Encrypt chunks until no read chunk is available.
+     */
+    private void encrypt() {
+        try {
+            final DataChannelCryptoContext crypto = Objects.requireNonNull(this.crypto);
+            while (!this.done.isDone()) {
+                // Get next chunk
+                // Note: The flag must be read before polling, so no chunk can
+                //       be read in between.
+                final boolean readAll = this.readAll;
+                final ByteBuffer chunk = this.unsealed.poll();
+                if (chunk == null) {
+                    if (readAll) {
+                        this.sealedAll = true;
+                        this.scheduleWrite();
+                        return;
+                    }
+
+                    // Wait for the reader
+                    // Note: Re-check after resetting the flag since a chunk may
+                    //       have been read in the meantime.
+                    this.encrypting.set(false);
+                    if (!this.unsealed.isEmpty() || this.readAll) {
+                        this.scheduleEncrypt();
+                    }
+                    return;
+                }
+
+                // Encrypt chunk and hand it to the writer
+                final long start = System.nanoTime();
+                final Box box = crypto.encrypt(DataChannelContext.bufferToBytes(chunk));
+                if (this.metrics != null) {
+                    this.metrics.onEncrypted(System.nanoTime() - start);
+                }
+                if (this.pool != null) {
+                    this.pool.release(chunk);
+                }
+                this.sealed.offer(ByteBuffer.wrap(box.toBytes()));
+                this.scheduleWrite();
+            }
+        } catch (OverflowException | CryptoException | RuntimeException error) {
+            this.done.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Return the next chunk to be written, if any is available.
+     */
+    @Nullable private ByteBuffer poll() {
+        if (this.crypto == null) {
+            return this.chunker.hasNext() ? this.chunker.next() : null;
+        }
+        final ByteBuffer chunk = this.sealed.poll();
+        if (chunk != null) {
+            // Continue reading since a slot has been freed
+            this.pipelined.decrementAndGet();
+            this.scheduleRead();
+        }
+        return chunk;
+    }
+
+    /**
+     * Return whether all chunks have been written.
+     */
+    private boolean isExhausted() {
+        if (this.crypto == null) {
+            return !this.chunker.hasNext();
+        }
+        return this.sealedAll && this.sealed.isEmpty();
+    }
+}
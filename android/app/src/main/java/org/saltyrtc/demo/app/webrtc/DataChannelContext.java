@@ -20,17 +20,42 @@ import org.saltyrtc.client.exceptions.ValidationError;
 import org.saltyrtc.client.keystore.Box;
 import org.saltyrtc.demo.app.transport.ChunkMode;
 import org.saltyrtc.demo.app.transport.CryptoMode;
+import org.saltyrtc.demo.app.transport.MessageBatcher;
+import org.saltyrtc.demo.app.transport.MessageCompressor;
+import org.saltyrtc.demo.app.transport.MessageHeader;
+import org.saltyrtc.demo.app.transport.ReliableOrderedChunker;
+import org.saltyrtc.demo.app.transport.ReliableOrderedUnchunker;
+import org.saltyrtc.demo.app.transport.SegmentWriter;
+import org.saltyrtc.demo.app.transport.StreamChunker;
+import org.saltyrtc.demo.app.utils.BufferPool;
+import org.saltyrtc.demo.app.utils.MappedFileReader;
+import org.saltyrtc.demo.app.utils.SerialExecutor;
+import org.saltyrtc.demo.app.utils.SerialQueue;
 import org.saltyrtc.tasks.webrtc.WebRTCTask;
 import org.saltyrtc.tasks.webrtc.crypto.DataChannelCryptoContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.webrtc.DataChannel;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * Wraps a flow-controlled (sender-side) data channel, applies additional
@@ -39,16 +64,52 @@ import java.util.concurrent.ExecutionException;
  */
 @AnyThread
 public class DataChannelContext {
+    /**
+     * Amount of sealed chunks the encryption stage may run ahead of the
+     * data channel in chunk-then-encrypt mode.
+     */
+    private static final int PIPELINE_DEPTH = 4;
+    private static final int DEFAULT_MAX_MESSAGE_SIZE = 64 * 1024;
+    private static final int MIN_MAX_MESSAGE_SIZE = 1024;
+    public static final int MAX_CHUNK_LENGTH = 256 * 1024;
+    private static final int MAC_LENGTH = 16;
+    private static final int UNRELIABLE_UNORDERED_HEADER_LENGTH = 9;
+    private static final long UNRELIABLE_MAX_AGE_MS = 30_000;
+    private static final long UNRELIABLE_GC_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
     @NonNull private final Logger log;
     @NonNull private final CryptoMode cryptoMode;
+    @NonNull private final ChunkMode chunkMode;
+    private final boolean framed;
     @NonNull private final DataChannel dc;
     @NonNull public final FlowControlledDataChannel fcdc;
     @Nullable private final DataChannelCryptoContext crypto;
-    @NonNull private final Unchunker unchunker;
-    @NonNull private CompletableFuture<?> queue;
-    private int chunkLength;
+    @NonNull private final SerialExecutor writeExecutor;
+    @NonNull private final SerialExecutor cryptoExecutor;
+    @NonNull private final BufferPool pool = new BufferPool(false, 2 * PIPELINE_DEPTH);
+    @NonNull private final Consumer<ByteBuffer> unchunker;
+    @Nullable private final ReliableOrderedUnchunker reliableOrderedUnchunker;
+    @Nullable private final Unchunker unreliableUnchunker;
+    @NonNull private final Map<Integer, PendingMessage> unreliablePending = new HashMap<>();
+    @NonNull private final AtomicLong unreliableLength = new AtomicLong();
+    private boolean unreliableReassembled = false;
+    private long unreliableGcNanos = System.nanoTime();
+    @NonNull private final SerialQueue queue;
+    @NonNull private final TransportMetrics metrics;
+    private volatile int chunkLength;
     private long messageId = 0;
 
+    // Coalescing of small messages (if enabled)
+    @NonNull private final ScheduledExecutorService scheduler;
+    private volatile boolean coalescing = false;
+    @Nullable private MessageBatcher batcher;
+    private long maxBatchDelayMs;
+    @Nullable private CompletableFuture<Void> batchFuture;
+    @Nullable private ScheduledFuture<?> batchTimer;
+
+    // Compression (if enabled)
+    @Nullable private volatile MessageCompressor compressor;
+
     public DataChannelContext(
         @NonNull final CryptoMode cryptoMode,
         @NonNull final ChunkMode chunkMode,
@@ -56,34 +117,67 @@ public class DataChannelContext {
         @NonNull final WebRTCTask task,
         @NonNull final Unchunker.MessageListener messageListener
     ) {
+        this(cryptoMode, chunkMode, dc, task, messageListener, TransportExecutors.getShared());
+    }
+
+    public DataChannelContext(
+        @NonNull final CryptoMode cryptoMode,
+        @NonNull final ChunkMode chunkMode,
+        @NonNull final DataChannel dc,
+        @NonNull final WebRTCTask task,
+        @NonNull final Unchunker.MessageListener messageListener,
+        @NonNull final TransportExecutors executors
+    ) {
+        this(cryptoMode, chunkMode, dc,
+            cryptoMode != CryptoMode.NONE ? task.createCryptoContext(dc.id()) : null,
+            messageListener, executors);
+    }
+
+    /**
+     * Create a data channel context with a crypto context provided by the
+     * caller (e.g. a fake crypto context for tests and benchmarks).
+     *
+     * @param crypto The crypto context. Required unless the crypto mode is
+     *   `NONE`.
+     */
+    DataChannelContext(
+        @NonNull final CryptoMode cryptoMode,
+        @NonNull final ChunkMode chunkMode,
+        @NonNull final DataChannel dc,
+        @Nullable final DataChannelCryptoContext crypto,
+        @NonNull final Unchunker.MessageListener messageListener,
+        @NonNull final TransportExecutors executors
+    ) {
+        if (cryptoMode != CryptoMode.NONE && crypto == null) {
+            throw new IllegalArgumentException("Crypto context required for " + cryptoMode);
+        }
         this.log = LoggerFactory.getLogger("SaltyRTC.Demo.DCC." + dc.id());
         this.cryptoMode = cryptoMode;
+        this.chunkMode = chunkMode;
+        this.framed = isFramed(cryptoMode, chunkMode);
         this.dc = dc;
 
+        // Create per-channel executors
+        this.writeExecutor = executors.newWriteExecutor();
+        this.cryptoExecutor = executors.newCryptoExecutor();
+        this.scheduler = executors.getScheduler();
+
         // Wrap as flow-controlled data channel
-        this.fcdc = new FlowControlledDataChannel(dc);
+        this.fcdc = new FlowControlledDataChannel(dc, executors.getEventExecutor());
 
-        // Create crypto context (if needed)
-        switch (cryptoMode) {
-            case CHUNK_THEN_ENCRYPT:
-            case ENCRYPT_THEN_CHUNK:
-                this.crypto = task.createCryptoContext(dc.id());
-                break;
-            default:
-                this.crypto = null;
-                break;
-        }
+        // Create metrics
+        this.metrics = new TransportMetrics(
+            this.fcdc::getTimePausedNanos, this::getPendingOperations, this::getReassemblyLength);
 
-        // Create unchunker
-        // TODO: Add support for reliable/ordered
-        if (chunkMode != ChunkMode.UNRELIABLE_UNORDERED) {
-            throw new RuntimeException("Unsupported mode: " + chunkMode);
-        }
-        this.unchunker = new Unchunker();
-        this.unchunker.onMessage(buffer -> {
+        // Store crypto context (if needed)
+        this.crypto = cryptoMode != CryptoMode.NONE ? crypto : null;
+
+        // Handle reassembled message
+        final Unchunker.MessageListener reassembledListener = buffer -> {
             // Decrypt message (if needed)
             if (this.cryptoMode == CryptoMode.ENCRYPT_THEN_CHUNK) {
                 final Box box = new Box(buffer, DataChannelCryptoContext.NONCE_LENGTH);
+                final long start = System.nanoTime();
                 try {
                     buffer = ByteBuffer.wrap(Objects.requireNonNull(this.crypto).decrypt(box));
                 } catch (ValidationError | ProtocolException error) {
@@ -93,105 +187,685 @@ public class DataChannelContext {
                     log.error("Unable to encrypt", error);
                     return;
                 }
+                this.metrics.onDecrypted(System.nanoTime() - start);
+            }
+            this.metrics.onMessageReceived();
+
+            // Strip header (if any)
+            byte flags = MessageHeader.PLAIN;
+            if (this.framed) {
+                try {
+                    flags = MessageHeader.getFlags(buffer);
+                } catch (IllegalArgumentException error) {
+                    log.error("Invalid message header received", error);
+                    return;
+                }
+                buffer.position(buffer.position() + MessageHeader.LENGTH);
+                buffer = buffer.slice();
+            }
+
+            // Decompress message (if needed)
+            if (MessageHeader.isSet(flags, MessageHeader.DEFLATE)) {
+                final MessageCompressor compressor = this.compressor;
+                if (compressor == null) {
+                    log.error("Compressed message received but compression has not been " +
+                        "enabled");
+                    return;
+                }
+                try {
+                    buffer = compressor.decompress(buffer);
+                } catch (IllegalArgumentException error) {
+                    log.error("Invalid compressed message received", error);
+                    return;
+                } catch (IllegalStateException error) {
+                    log.warn("Compressed message received after close", error);
+                    return;
+                }
             }
 
             // Hand out message
-            log.debug("Data channel " + dc.label() + " incoming message of length "
-                + buffer.remaining());
+            if (log.isDebugEnabled()) {
+                log.debug("Data channel " + dc.label() + " incoming message of length "
+                    + buffer.remaining());
+            }
+
+            // Split batch (if needed)
+            if (MessageHeader.isSet(flags, MessageHeader.BATCH)) {
+                try {
+                    MessageBatcher.split(buffer, messageListener);
+                } catch (IllegalArgumentException error) {
+                    log.error("Invalid batch received", error);
+                }
+                return;
+            }
             messageListener.onMessage(buffer);
-        });
+        };
+
+        // Create unchunker
+        switch (chunkMode) {
+            case RELIABLE_ORDERED: {
+                final ReliableOrderedUnchunker unchunker = new ReliableOrderedUnchunker();
+                unchunker.onMessage(reassembledListener);
+                this.unchunker = unchunker::add;
+                this.reliableOrderedUnchunker = unchunker;
+                this.unreliableUnchunker = null;
+                break;
+            }
+            case UNRELIABLE_UNORDERED: {
+                final Unchunker unchunker = new Unchunker();
+                unchunker.onMessage(message -> {
+                    this.unreliableReassembled = true;
+                    reassembledListener.onMessage(message);
+                });
+                this.unchunker = chunk -> this.addUnreliableChunk(unchunker, chunk);
+                this.unreliableUnchunker = unchunker;
+                this.reliableOrderedUnchunker = null;
+                break;
+            }
+            default:
+                throw new RuntimeException("Unsupported mode: " + chunkMode);
+        }
 
         // Determine chunk length
-        // Note: Hard-coded because webrtc.org...
+        // Note: Until the remote peer's maximum message size has been
+        //       provided, we fall back to the default of RFC 8841.
         // Important: We need to do this here because the "open" state may not
         //            be fired in case we're receiving a data channel.
-        this.chunkLength = 64 * 1024;
+        this.chunkLength = this.toChunkLength(DEFAULT_MAX_MESSAGE_SIZE);
+
+        // Create write queue
+        this.queue = new SerialQueue(
+            this.writeExecutor, error -> log.error("Exception in write queue", error));
+    }
 
-        // Initialise queue
-        this.queue = this.fcdc.ready();
+    /**
+     * Derive the chunk length from the maximum message size.
+     *
+     * Note: In chunk-then-encrypt mode, the chunk must leave room for the
+     *       nonce and the MAC.
+     */
+    private int toChunkLength(final long maxMessageSize) {
+        int chunkLength = (int) Math.min(maxMessageSize, MAX_CHUNK_LENGTH);
+        if (this.cryptoMode == CryptoMode.CHUNK_THEN_ENCRYPT) {
+            chunkLength -= DataChannelCryptoContext.NONCE_LENGTH + MAC_LENGTH;
+        }
+        return chunkLength;
+    }
+
+    /**
+     * Return whether messages are preceded by a {@link MessageHeader} in the
+     * given modes. This is the case for all but the legacy modes.
+     */
+    static boolean isFramed(
+        @NonNull final CryptoMode cryptoMode, @NonNull final ChunkMode chunkMode) {
+        return cryptoMode != CryptoMode.ENCRYPT_THEN_CHUNK
+            || chunkMode != ChunkMode.UNRELIABLE_UNORDERED;
+    }
+
+    /**
+     * Set the maximum message size the remote peer is able to receive (e.g.
+     * from the `a=max-message-size` attribute of its SDP). The chunk length
+     * is derived from it but capped at 256 KiB. This only affects messages
+     * sent after the call.
+     */
+    public void setMaxMessageSize(final long maxMessageSize) {
+        if (maxMessageSize < MIN_MAX_MESSAGE_SIZE) {
+            throw new IllegalArgumentException("Maximum message size too small: " +
+                maxMessageSize);
+        }
+        final int chunkLength = this.toChunkLength(maxMessageSize);
+        log.debug("Chunk length: " + chunkLength);
+        this.chunkLength = chunkLength;
+    }
+
+    /**
+     * Return the metrics of this channel.
+     */
+    @NonNull public TransportMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    private long getPendingOperations() {
+        return this.queue.getPending();
+    }
+
+    private long getReassemblyLength() {
+        final ReliableOrderedUnchunker unchunker = this.reliableOrderedUnchunker;
+        return unchunker != null ? unchunker.getBufferedLength() : this.unreliableLength.get();
+    }
+
+    /**
+     * Payload length buffered for an incomplete unreliable/unordered message.
+     */
+    private static class PendingMessage {
+        int length = 0;
+        long updatedNanos;
+    }
+
+    /**
+     * Add a chunk to the unreliable/unordered unchunker and keep track of the
+     * payload length it buffers per message.
+     *
+     * Note: The library's unchunker does not expose its buffered length, so
+     *       we sum it up from the chunks of each message and subtract the sum
+     *       once a chunk completed the message or the message has been
+     *       garbage collected. This is only called from the receive path, so
+     *       the map does not need to be synchronised.
+     */
+    private void addUnreliableChunk(
+        @NonNull final Unchunker unchunker,
+        @NonNull final ByteBuffer chunk
+    ) {
+        if (chunk.remaining() < UNRELIABLE_UNORDERED_HEADER_LENGTH) {
+            unchunker.add(chunk); // Throws
+            return;
+        }
+        final int id = chunk.getInt(chunk.position() + 1);
+        final int length = chunk.remaining() - UNRELIABLE_UNORDERED_HEADER_LENGTH;
+        this.unreliableReassembled = false;
+        unchunker.add(chunk);
+        final long now = System.nanoTime();
+        if (this.unreliableReassembled) {
+            final PendingMessage pending = this.unreliablePending.remove(id);
+            if (pending != null) {
+                this.unreliableLength.addAndGet(-pending.length);
+            }
+        } else {
+            PendingMessage pending = this.unreliablePending.get(id);
+            if (pending == null) {
+                pending = new PendingMessage();
+                this.unreliablePending.put(id, pending);
+            }
+            pending.length += length;
+            pending.updatedNanos = now;
+            this.unreliableLength.addAndGet(length);
+        }
+
+        // Remove messages that have not been updated for a while
+        if (now - this.unreliableGcNanos >= UNRELIABLE_GC_INTERVAL_NANOS) {
+            this.collectUnreliableGarbage(UNRELIABLE_MAX_AGE_MS);
+        }
+    }
+
+    /**
+     * Remove incomplete unreliable/unordered messages (e.g. of which a chunk
+     * has been lost) that have not been updated for the given amount of
+     * milliseconds.
+     *
+     * Note: Must be called from the receive path.
+     */
+    void collectUnreliableGarbage(final long maxAgeMs) {
+        final Unchunker unchunker = this.unreliableUnchunker;
+        if (unchunker == null) {
+            return;
+        }
+        final long now = System.nanoTime();
+        this.unreliableGcNanos = now;
+        final int chunks = unchunker.gc(maxAgeMs);
+        final long maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMs);
+        final Iterator<PendingMessage> iterator = this.unreliablePending.values().iterator();
+        while (iterator.hasNext()) {
+            final PendingMessage pending = iterator.next();
+            if (now - pending.updatedNanos >= maxAgeNanos) {
+                iterator.remove();
+                this.unreliableLength.addAndGet(-pending.length);
+            }
+        }
+        if (chunks > 0) {
+            log.debug("Removed " + chunks + " chunks of incomplete messages");
+        }
+    }
+
+    /**
+     * Return the current chunk length.
+     */
+    public int getChunkLength() {
+        return this.chunkLength;
     }
 
     /**
      * Enqueue an operation to be run in order on this channel's write queue.
+     *
+     * Note: Pending coalesced messages are flushed first. Messages sent via
+     *       {@link #send(ByteBuffer)} from the operation are framed like
+     *       coalesced messages while coalescing is enabled.
      */
     public CompletableFuture<?> enqueue(@NonNull final Runnable operation) {
-        this.queue = this.queue.thenRunAsync(operation);
-        this.queue.exceptionally(error -> {
-            log.error("Exception in write queue", error);
-            return null;
+        if (this.coalescing) {
+            this.flush();
+        }
+        return this.queue.enqueue(operation);
+    }
+
+    /**
+     * Enqueue an asynchronous operation to be run in order on this channel's
+     * write queue. The next operation will not be started before the future
+     * returned by this operation has been resolved.
+     */
+    public CompletableFuture<?> enqueueAsync(
+        @NonNull final Supplier<CompletableFuture<?>> operation) {
+        if (this.coalescing) {
+            this.flush();
+        }
+        return this.queue.enqueueAsync(operation);
+    }
+
+    /**
+     * Enable coalescing of small messages sent via
+     * {@link #sendAsync(ByteBuffer)}. Pending messages are packed into a
+     * single batch which is encrypted and sent as one message once the
+     * batch is full or the delay has elapsed, whichever comes first. The
+     * batch is marked in its {@link MessageHeader}, so the receiver splits it
+     * again regardless of whether it has enabled coalescing itself. Each
+     * message is prefixed with its length, so coalescing applies to all
+     * messages, including large ones and those sent via
+     * {@link #send(ByteBuffer)} directly.
+     *
+     * Note: This is not supported in the legacy modes (encrypt-then-chunk
+     *       with unreliable/unordered chunking mode) since they carry no
+     *       header.
+     *
+     * Important: Sending from a channel or stream is not supported while
+     *            coalescing since the length of a streamed message is not
+     *            known in advance. A remote peer streaming incoming messages
+     *            (see {@link #receiveInto}) discards batches.
+     *
+     * @param maxDelayMs The maximum amount of milliseconds a message may be
+     *   held back.
+     * @param maxBatchLength The maximum length of a batch in bytes.
+     * @throws IllegalStateException in the legacy modes.
+     */
+    public synchronized void enableCoalescing(final long maxDelayMs, final int maxBatchLength) {
+        if (!this.framed) {
+            throw new IllegalStateException("Coalescing is not supported in the legacy modes");
+        }
+        this.batcher = new MessageBatcher(maxBatchLength);
+        this.maxBatchDelayMs = maxDelayMs;
+        this.coalescing = true;
+    }
+
+    /**
+     * Enable deflate compression of outgoing messages before they are being
+     * encrypted (and decompression of incoming messages). Messages that would
+     * not shrink are sent uncompressed.
+     *
+     * Compressed messages are marked in their {@link MessageHeader}. A remote
+     * peer that has not enabled compression discards them (and logs an
+     * error) rather than handing them out, but still receives uncompressed
+     * messages.
+     *
+     * Important: The remote peer must enable compression as well. When
+     *            streaming incoming messages, compression must be enabled
+     *            before calling {@link #receiveInto}. This is not supported
+     *            in the legacy modes (encrypt-then-chunk with
+     *            unreliable/unordered chunking mode) since they carry no
+     *            header.
+     *
+     * @param level The compression level (0-9 or `Deflater.DEFAULT_COMPRESSION`).
+     * @throws IllegalStateException in the legacy modes.
+     */
+    public void enableCompression(final int level) {
+        this.enableCompression(level, MessageCompressor.DEFAULT_MAX_DECOMPRESSED_LENGTH);
+    }
+
+    /**
+     * Enable deflate compression with a custom limit for the length of
+     * decompressed incoming messages.
+     *
+     * @see #enableCompression(int)
+     *
+     * @param level The compression level (0-9 or `Deflater.DEFAULT_COMPRESSION`).
+     * @param maxDecompressedLength The maximum length of a decompressed
+     *   incoming message. Longer messages are discarded.
+     * @throws IllegalStateException in the legacy modes.
+     */
+    public void enableCompression(final int level, final int maxDecompressedLength) {
+        if (!this.framed) {
+            throw new IllegalStateException("Compression is not supported in the legacy modes");
+        }
+        this.compressor = new MessageCompressor(level, maxDecompressedLength);
+    }
+
+    /**
+     * Return the compressor (for compression ratio and CPU time metrics), if
+     * compression has been enabled.
+     */
+    @Nullable public MessageCompressor getCompressor() {
+        return this.compressor;
+    }
+
+    /**
+     * Coalesce a message into the current batch.
+     *
+     * @return A future that resolves once the batch has been sent.
+     */
+    @NonNull private synchronized CompletableFuture<?> coalesce(@NonNull final ByteBuffer buffer) {
+        final MessageBatcher batcher = Objects.requireNonNull(this.batcher);
+
+        // Flush the current batch if the message does not fit
+        if (!batcher.fits(buffer)) {
+            this.flush();
+
+            // Send messages too large for a batch on their own
+            if (!batcher.fits(buffer)) {
+                return this.sendAsyncNow(true, MessageBatcher.createPrefix(buffer), buffer);
+            }
+        }
+
+        // Add to batch
+        batcher.add(buffer);
+        CompletableFuture<Void> future = this.batchFuture;
+        if (future == null) {
+            future = new CompletableFuture<>();
+            this.batchFuture = future;
+        }
+
+        // Flush once full or schedule a flush for the first message
+        if (batcher.getLength() + MessageBatcher.LENGTH_PREFIX >= batcher.getMaxBatchLength()) {
+            this.flush();
+        } else if (this.batchTimer == null) {
+            final CompletableFuture<Void> expected = future;
+            this.batchTimer = this.scheduler.schedule(() -> {
+                synchronized (this) {
+                    // Note: The batch may have been flushed in the meantime.
+                    if (this.batchFuture == expected) {
+                        this.flush();
+                    }
+                }
+            }, this.maxBatchDelayMs, TimeUnit.MILLISECONDS);
+        }
+        return future;
+    }
+
+    /**
+     * Enqueue the current batch of coalesced messages (if any) on the
+     * write queue.
+     */
+    public synchronized void flush() {
+        if (this.batcher == null || this.batcher.isEmpty()) {
+            return;
+        }
+        final ByteBuffer batch = this.batcher.take();
+        final CompletableFuture<Void> future = Objects.requireNonNull(this.batchFuture);
+        this.batchFuture = null;
+        if (this.batchTimer != null) {
+            this.batchTimer.cancel(false);
+            this.batchTimer = null;
+        }
+        this.sendAsyncNow(true, null, batch).whenComplete((result, error) -> {
+            if (error != null) {
+                future.completeExceptionally(error);
+            } else {
+                future.complete(null);
+            }
         });
-        return this.queue;
     }
 
     /**
      * Send a message asynchronously via this channel's write queue. The
      * message will be fragmented into chunks.
+     *
+     * If coalescing has been enabled, the message may be held back and sent
+     * as part of a batch. The returned future then resolves once the
+     * batch has been sent.
      */
     @NonNull public CompletableFuture<?> sendAsync(@NonNull final ByteBuffer buffer) {
-        return this.enqueue(() -> {
+        if (this.coalescing) {
+            return this.coalesce(buffer);
+        }
+        return this.sendAsyncNow(false, null, buffer);
+    }
+
+    @NonNull private CompletableFuture<?> sendAsyncNow(
+        final boolean batch, @Nullable final ByteBuffer prefix, @NonNull final ByteBuffer buffer) {
+        return this.queue.enqueueAsync(() -> this.sendMessage(batch, prefix, buffer)
+            .exceptionally(error -> {
+                final Throwable cause = error instanceof CompletionException ?
+                    error.getCause() : error;
+                if (cause instanceof OverflowException) {
+                    log.error("CSN overflow", cause);
+                } else if (cause instanceof CryptoException) {
+                    log.error("Unable to encrypt", cause);
+                } else {
+                    throw new CompletionException(cause);
+                }
+                return null;
+            }));
+    }
+
+    /**
+     * Send a message read from a channel asynchronously via this channel's
+     * write queue. The message will be read, fragmented into chunks and
+     * encrypted incrementally, so memory usage is bounded by the flow
+     * control window rather than by the message length. The source will be
+     * closed once the message has been sent (or sending failed).
+     *
+     * Note: This is not supported in encrypt-then-chunk mode since the whole
+     *       message would need to be encrypted at once. It is not supported
+     *       while coalescing either (see {@link #enableCoalescing}).
+     */
+    @NonNull public CompletableFuture<?> sendAsync(@NonNull final ReadableByteChannel source) {
+        return this.enqueueAsync(() -> this.send(source).whenComplete((result, error) -> {
             try {
-                this.send(buffer);
-            } catch (OverflowException error) {
-                log.error("CSN overflow", error);
-            } catch (CryptoException error) {
-                log.error("Unable to encrypt", error);
+                source.close();
+            } catch (IOException closeError) {
+                log.warn("Unable to close source", closeError);
             }
-        });
+            if (error != null) {
+                log.error("Unable to send stream", error);
+            }
+        }));
     }
 
     /**
-     * Send a message synchronously, fragmented into chunks.
+     * Send a message read from an input stream asynchronously via this
+     * channel's write queue.
+     *
+     * @see #sendAsync(ReadableByteChannel)
      */
-    public void send(@NonNull ByteBuffer buffer) throws OverflowException, CryptoException {
-        log.debug("Data channel " + this.dc.label() + " outgoing message of length " +
-            buffer.remaining());
+    @NonNull public CompletableFuture<?> sendAsync(@NonNull final InputStream source) {
+        return this.sendAsync(Channels.newChannel(source));
+    }
 
-        // Encrypt message (if needed)
+    /**
+     * Send the contents of a file (from its current position) asynchronously
+     * via this channel's write queue. The file will be read via memory-mapped
+     * regions.
+     *
+     * @see #sendAsync(ReadableByteChannel)
+     */
+    @NonNull public CompletableFuture<?> sendAsync(@NonNull final FileChannel source) {
+        final ReadableByteChannel reader;
+        try {
+            reader = new MappedFileReader(source);
+        } catch (IOException error) {
+            final CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(error);
+            return future;
+        }
+        return this.sendAsync(reader);
+    }
+
+    /**
+     * Send a message read from a channel, fragmented into chunks.
+     *
+     * Note: This does not block (apart from reading the source). Do not send
+     *       another message before the returned future has been resolved
+     *       (use `sendAsync` instead).
+     *
+     * @return A future that resolves once all chunks have been written.
+     */
+    @NonNull public CompletableFuture<Void> send(@NonNull final ReadableByteChannel source) {
         if (this.cryptoMode == CryptoMode.ENCRYPT_THEN_CHUNK) {
-            final Box box = Objects.requireNonNull(this.crypto).encrypt(bufferToBytes(buffer));
-            buffer = ByteBuffer.wrap(box.toBytes());
+            final CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(new IllegalStateException(
+                "Streaming is not supported in encrypt-then-chunk mode"));
+            return future;
+        }
+        if (this.coalescing) {
+            final CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(new IllegalStateException(
+                "Streaming is not supported while coalescing"));
+            return future;
+        }
+        // Note: Checked here since the compressor hides the source's type.
+        if (source instanceof SelectableChannel && !((SelectableChannel) source).isBlocking()) {
+            final CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(new IllegalArgumentException(
+                "Non-blocking sources are not supported"));
+            return future;
         }
+        if (log.isDebugEnabled()) {
+            log.debug("Data channel " + this.dc.label() + " outgoing stream");
+        }
+        final MessageCompressor compressor = this.compressor;
+        final ReadableByteChannel input = compressor != null ?
+            compressor.compress(source) : source;
+        final ByteBuffer header = this.framed ? MessageHeader.create(
+            compressor != null ? MessageHeader.DEFLATE : MessageHeader.PLAIN) : null;
+        final Iterator<ByteBuffer> chunker = new StreamChunker(
+            this.chunkMode, this.messageId++, header, input, this.chunkLength,
+            this.getChunkPool());
+        return this.createSender(chunker, true).start()
+            .thenRun(this.metrics::onMessageSent);
+    }
 
-        // Write chunks
-        // TODO: Add support for reliable/ordered
-        final Chunker chunker = new Chunker(this.messageId++, buffer, this.chunkLength);
-        while (chunker.hasNext()) {
-            // Wait until we can send
-            // Note: This will block!
-            try {
-                this.fcdc.ready().get();
-            } catch (InterruptedException | ExecutionException error) {
-                error.printStackTrace();
-                return;
+    /**
+     * Send a message, fragmented into chunks.
+     *
+     * Note: This does not block. Chunks are written as long as the data
+     *       channel is ready and writing resumes once the low water mark has
+     *       been reached. Do not send another message before the returned
+     *       future has been resolved (use `sendAsync` instead).
+     *
+     * While coalescing, the message is framed as a batch containing only
+     * this message.
+     *
+     * @return A future that resolves once all chunks have been written, or
+     *   rejects with an `OverflowException` or `CryptoException` if
+     *   encryption failed.
+     */
+    @NonNull public CompletableFuture<Void> send(@NonNull final ByteBuffer buffer) {
+        final boolean coalescing = this.coalescing;
+        return this.sendMessage(
+            coalescing, coalescing ? MessageBatcher.createPrefix(buffer) : null, buffer);
+    }
+
+    /**
+     * Send a message preceded by a prefix (if any), fragmented into chunks.
+     *
+     * @param batch Whether the prefix and the message form a batch.
+     */
+    @NonNull private CompletableFuture<Void> sendMessage(
+        final boolean batch, @Nullable ByteBuffer prefix, @NonNull ByteBuffer buffer) {
+        if (log.isDebugEnabled()) {
+            log.debug("Data channel " + this.dc.label() + " outgoing message of length " +
+                buffer.remaining());
+        }
+
+        // Compress message (if needed)
+        // Note: The prefix is compressed along with the message. A message
+        //       that would not shrink is sent as is.
+        byte flags = batch ? MessageHeader.BATCH : MessageHeader.PLAIN;
+        final MessageCompressor compressor = this.compressor;
+        if (compressor != null) {
+            final ByteBuffer compressed = compressor.compress(
+                prefix != null ? prepend(prefix, buffer) : buffer);
+            if (compressed != null) {
+                buffer = compressed;
+                prefix = null;
+                flags |= MessageHeader.DEFLATE;
             }
-            buffer = chunker.next();
+        }
 
-            // Encrypt chunk (if needed)
-            if (this.cryptoMode == CryptoMode.CHUNK_THEN_ENCRYPT) {
+        // Precede with header (if needed)
+        if (this.framed) {
+            final ByteBuffer header = MessageHeader.create(flags);
+            prefix = prefix != null ? prepend(header, prefix) : header;
+        }
+
+        // Prepend the prefix unless the chunker can write it into the first chunk
+        // Note: In encrypt-then-chunk mode, this replaces the copy made for
+        //       encryption. Otherwise, the message is copied once more.
+        if (prefix != null && (this.cryptoMode == CryptoMode.ENCRYPT_THEN_CHUNK
+            || this.chunkMode != ChunkMode.RELIABLE_ORDERED)) {
+            buffer = prepend(prefix, buffer);
+            prefix = null;
+        }
+
+        // Encrypt message (if needed)
+        if (this.cryptoMode == CryptoMode.ENCRYPT_THEN_CHUNK) {
+            try {
+                final long start = System.nanoTime();
                 final Box box = Objects.requireNonNull(this.crypto).encrypt(bufferToBytes(buffer));
+                this.metrics.onEncrypted(System.nanoTime() - start);
                 buffer = ByteBuffer.wrap(box.toBytes());
+            } catch (OverflowException | CryptoException error) {
+                final CompletableFuture<Void> future = new CompletableFuture<>();
+                future.completeExceptionally(error);
+                return future;
             }
+        }
 
-            // Write chunk
-            final DataChannel.Buffer chunk = new DataChannel.Buffer(buffer, true);
-            log.debug("Data channel " + this.dc.label() + " outgoing chunk of length " +
-                chunk.data.remaining());
-            this.fcdc.write(chunk);
+        // Write chunks
+        // Note: In chunk-then-encrypt mode, encryption is pipelined ahead of
+        //       writing the chunks.
+        final Iterator<ByteBuffer> chunker = this.createChunker(prefix, buffer);
+        final boolean pooled =
+            this.chunkMode == ChunkMode.RELIABLE_ORDERED && this.getChunkPool() != null;
+        return this.createSender(chunker, pooled).start()
+            .thenRun(this.metrics::onMessageSent);
+    }
+
+    /**
+     * Create a sender for chunks depending on the crypto mode.
+     *
+     * @param pooled Whether the chunks have been acquired from the buffer pool.
+     */
+    @NonNull private ChunkSender createSender(
+        @NonNull final Iterator<ByteBuffer> chunker, final boolean pooled) {
+        final BufferPool pool = pooled ? this.getChunkPool() : null;
+        if (this.cryptoMode == CryptoMode.CHUNK_THEN_ENCRYPT) {
+            return new ChunkSender(
+                this.fcdc, chunker, this::writeChunk, this.writeExecutor,
+                this.crypto, this.cryptoExecutor, PIPELINE_DEPTH, pool, this.metrics);
+        } else {
+            return new ChunkSender(
+                this.fcdc, chunker, this::writeChunk, this.writeExecutor, pool);
         }
     }
 
+    /**
+     * Write a single chunk to the flow-controlled data channel.
+     */
+    private void writeChunk(@NonNull final ByteBuffer buffer) {
+        final DataChannel.Buffer chunk = new DataChannel.Buffer(buffer, true);
+        final int length = chunk.data.remaining();
+        // Note: Per-chunk tracing is guarded since building the message
+        //       (including the label which is fetched via JNI) allocates.
+        if (log.isTraceEnabled()) {
+            log.trace("Data channel " + this.dc.label() + " outgoing chunk of length " + length);
+        }
+        this.metrics.onChunkSent(length);
+        this.fcdc.write(chunk);
+    }
+
     /**
      * Hand in a chunk for reassembly.
      *
      * @param buffer The chunk to be added to the reassembly buffer.
      */
     public void receive(@NonNull ByteBuffer buffer) {
-        log.debug("Data channel " + dc.label() + " incoming chunk of length " +
-            buffer.remaining());
+        final int length = buffer.remaining();
+        if (log.isTraceEnabled()) {
+            log.trace("Data channel " + dc.label() + " incoming chunk of length " + length);
+        }
+        this.metrics.onChunkReceived(length);
 
         // Decrypt chunk (if needed)
         if (this.cryptoMode == CryptoMode.CHUNK_THEN_ENCRYPT) {
             final Box box = new Box(buffer, DataChannelCryptoContext.NONCE_LENGTH);
+            final long start = System.nanoTime();
             try {
                 buffer = ByteBuffer.wrap(Objects.requireNonNull(this.crypto).decrypt(box));
             } catch (ValidationError | ProtocolException error) {
@@ -201,29 +875,153 @@ public class DataChannelContext {
                 log.error("Unable to encrypt", error);
                 return;
             }
+            this.metrics.onDecrypted(System.nanoTime() - start);
         }
 
         // Reassemble
-        this.unchunker.add(buffer);
+        try {
+            this.unchunker.accept(buffer);
+        } catch (IllegalArgumentException error) {
+            log.error("Invalid chunk received", error);
+        }
+    }
+
+    /**
+     * Stream incoming messages into sinks instead of reassembling them.
+     *
+     * Each chunk is decrypted and written to the message's sink as it
+     * arrives, so memory usage does not depend on the message length. The
+     * message listener will no longer be called.
+     *
+     * Note: This requires chunk-then-encrypt (or no encryption) and
+     *       reliable/ordered chunking mode. It should be called before any
+     *       chunk has been received. Incoming batches (see
+     *       {@link #enableCoalescing}) are discarded.
+     *
+     * @param provider Provides a sink for each incoming message.
+     * @throws IllegalStateException in case the modes do not allow for
+     *   streaming.
+     */
+    public synchronized void receiveInto(@NonNull final SegmentWriter.SinkProvider provider) {
+        if (this.cryptoMode == CryptoMode.ENCRYPT_THEN_CHUNK) {
+            throw new IllegalStateException(
+                "Streaming is not supported in encrypt-then-chunk mode");
+        }
+        if (this.reliableOrderedUnchunker == null) {
+            throw new IllegalStateException(
+                "Streaming requires reliable/ordered chunking mode");
+        }
+        final MessageCompressor compressor = this.compressor;
+        final SegmentWriter writer = new SegmentWriter(provider);
+        this.reliableOrderedUnchunker.onSegment(MessageHeader.stripping(
+            writer, compressor != null ? compressor.decompressing(writer) : null));
+    }
+
+    /**
+     * Return the pool chunks are acquired from, if any.
+     *
+     * Note: In chunk-then-encrypt mode, chunks are allocated with their exact
+     *       length instead. The crypto context only accepts byte arrays, so
+     *       a chunk in a larger pooled buffer would have to be copied before
+     *       being encrypted.
+     */
+    @Nullable private BufferPool getChunkPool() {
+        return this.cryptoMode == CryptoMode.CHUNK_THEN_ENCRYPT ? null : this.pool;
+    }
+
+    /**
+     * Create a chunker for a message depending on the chunk mode.
+     *
+     * @param prefix Precedes the message (only supported in reliable/ordered
+     *   chunking mode).
+     */
+    @NonNull Iterator<ByteBuffer> createChunker(
+        @Nullable final ByteBuffer prefix, @NonNull final ByteBuffer buffer) {
+        switch (this.chunkMode) {
+            case RELIABLE_ORDERED:
+                return new ReliableOrderedChunker(
+                    prefix, buffer, this.chunkLength, this.getChunkPool());
+            case UNRELIABLE_UNORDERED: {
+                final Chunker chunker = new Chunker(this.messageId++, buffer, this.chunkLength);
+                return new Iterator<ByteBuffer>() {
+                    @Override
+                    public boolean hasNext() {
+                        return chunker.hasNext();
+                    }
+
+                    @Override
+                    @NonNull public ByteBuffer next() {
+                        return chunker.next();
+                    }
+                };
+            }
+            default:
+                throw new RuntimeException("Unsupported mode: " + this.chunkMode);
+        }
+    }
+
+    /**
+     * Return a copy of a message preceded by a prefix. The positions of the
+     * prefix and the message are not altered.
+     */
+    @NonNull private static ByteBuffer prepend(
+        @NonNull final ByteBuffer prefix, @NonNull final ByteBuffer buffer) {
+        final ByteBuffer joined = ByteBuffer.allocate(prefix.remaining() + buffer.remaining());
+        joined.put(prefix.duplicate());
+        joined.put(buffer.duplicate());
+        joined.flip();
+        return joined;
     }
 
     /**
      * Convert a ByteBuffer to a byte array.
+     *
+     * Note: The buffer's backing array is returned as is if it exactly covers
+     *       the remaining bytes. Otherwise, only the remaining bytes are
+     *       copied. The buffer's position is not altered.
      */
-    @NonNull static private byte[] bufferToBytes(@NonNull final ByteBuffer buffer) {
-        // Strip the buffer's array from unnecessary bytes
-        // TODO: Fix the crypto API to use ByteBuffer - this is terrible.
-        byte[] bytes = buffer.array();
-        if (buffer.position() != 0 || buffer.remaining() != bytes.length) {
-            bytes = Arrays.copyOf(buffer.array(), buffer.remaining());
+    @NonNull static byte[] bufferToBytes(@NonNull final ByteBuffer buffer) {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+            && buffer.remaining() == buffer.array().length) {
+            return buffer.array();
         }
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
         return bytes;
     }
 
     /**
-     * Close the underlying data channel.
+     * Return the amount of tasks waiting on this channel's write executor.
+     */
+    public int getWriteQueueDepth() {
+        return this.writeExecutor.getQueueDepth();
+    }
+
+    /**
+     * Return the amount of tasks waiting on this channel's crypto executor.
+     */
+    public int getCryptoQueueDepth() {
+        return this.cryptoExecutor.getQueueDepth();
+    }
+
+    /**
+     * Return the pool chunks are acquired from (for hit/miss and outstanding
+     * buffer counters). It is not used in chunk-then-encrypt mode.
+     */
+    @NonNull public BufferPool getBufferPool() {
+        return this.pool;
+    }
+
+    /**
+     * Close the underlying data channel and release the compressor (if any).
      */
     public void close() {
         this.dc.close();
+
+        // Release the native memory of the compressor (if any)
+        final MessageCompressor compressor = this.compressor;
+        if (compressor != null) {
+            compressor.close();
+        }
     }
 }
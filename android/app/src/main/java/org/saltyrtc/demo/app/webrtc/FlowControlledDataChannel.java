@@ -16,17 +16,42 @@ import org.slf4j.LoggerFactory;
 import org.webrtc.DataChannel;
 
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A flow-controlled (sender side) data channel.
  */
 @AnyThread
 public class FlowControlledDataChannel {
+    static final long DEFAULT_LOW_WATER_MARK = 256 * 1024;
+    static final long DEFAULT_HIGH_WATER_MARK = 1024 * 1024;
+    private static final long MIN_SAMPLE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final double DRAIN_RATE_GAIN = 0.125;
+
     @NonNull final Logger log;
     @NonNull private final DataChannel dc;
-    private final long lowWaterMark;
-    private final long highWaterMark;
-    @NonNull private CompletableFuture<?> readyFuture = CompletableFuture.completedFuture(null);
+    @NonNull private final Executor eventExecutor;
+    private volatile long lowWaterMark;
+    private volatile long highWaterMark;
+    @NonNull private volatile CompletableFuture<?> readyFuture =
+        CompletableFuture.completedFuture(null);
+
+    // Adaptive water marks (if enabled)
+    private boolean adaptive = false;
+    private long targetDelayNanos;
+    private long minHighWaterMark;
+    private long maxHighWaterMark;
+    private long writtenBytes = 0;
+
+    // Time spent paused above the high water mark
+    private boolean paused = false;
+    private long pausedSinceNanos = 0;
+    private long timePausedNanos = 0;
+    private long lastBufferedAmount = 0;
+    private long lastSampleNanos = 0;
+    private double drainRate = 0; // bytes per nanosecond
 
     /**
      * Create a flow-controlled (sender side) data channel.
@@ -34,7 +59,19 @@ public class FlowControlledDataChannel {
      * @param dc The data channel to be flow-controlled
      */
     FlowControlledDataChannel(@NonNull final DataChannel dc) {
-        this(dc, 256 * 1024, 1024 * 1024);
+        this(dc, DEFAULT_LOW_WATER_MARK, DEFAULT_HIGH_WATER_MARK);
+    }
+
+    /**
+     * Create a flow-controlled (sender side) data channel.
+     *
+     * @param dc The data channel to be flow-controlled
+     * @param eventExecutor The executor buffered amount changes are
+     *   dispatched on.
+     */
+    FlowControlledDataChannel(
+        @NonNull final DataChannel dc, @NonNull final Executor eventExecutor) {
+        this(dc, DEFAULT_LOW_WATER_MARK, DEFAULT_HIGH_WATER_MARK, eventExecutor);
     }
 
     /**
@@ -48,12 +85,106 @@ public class FlowControlledDataChannel {
      */
     FlowControlledDataChannel(
         @NonNull final DataChannel dc, final long lowWaterMark, final long highWaterMark) {
+        this(dc, lowWaterMark, highWaterMark, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Create a flow-controlled (sender side) data channel.
+     *
+     * @param dc The data channel to be flow-controlled
+     * @param lowWaterMark The low water mark unpauses the data channel once
+     *   the buffered amount of bytes becomes less or equal to it.
+     * @param highWaterMark The high water mark pauses the data channel once
+     *   the buffered amount of bytes becomes greater or equal to it.
+     * @param eventExecutor The executor buffered amount changes are
+     *   dispatched on.
+     */
+    FlowControlledDataChannel(
+        @NonNull final DataChannel dc,
+        final long lowWaterMark,
+        final long highWaterMark,
+        @NonNull final Executor eventExecutor
+    ) {
         this.log = LoggerFactory.getLogger("SaltyRTC.Demo.FCDC." + dc.id());
         this.dc = dc;
+        this.eventExecutor = eventExecutor;
         this.lowWaterMark = lowWaterMark;
         this.highWaterMark = highWaterMark;
     }
 
+    /**
+     * Enable adaptive water marks.
+     *
+     * The drain rate of the data channel's buffer is estimated from the
+     * buffered amount changes. The high water mark is then resized so that
+     * the buffered data takes roughly `targetDelayMs` to drain (similar to a
+     * bandwidth-delay product estimate). The low water mark is kept at a
+     * quarter of the high water mark.
+     *
+     * This fills the pipe on high-bandwidth links while preventing excessive
+     * queueing latency on slow links.
+     *
+     * Note: The round-trip time is not estimated since webrtc.org does not
+     *       expose the SCTP association's RTT on data channels. The target
+     *       delay stands in for it.
+     *
+     * @param targetDelayMs The target queueing delay in milliseconds.
+     * @param minHighWaterMark The lower bound for the high water mark.
+     * @param maxHighWaterMark The upper bound for the high water mark.
+     */
+    public synchronized void enableAdaptiveWaterMarks(
+        final long targetDelayMs, final long minHighWaterMark, final long maxHighWaterMark) {
+        if (minHighWaterMark > maxHighWaterMark) {
+            throw new IllegalArgumentException("Minimum exceeds maximum high water mark");
+        }
+        this.adaptive = true;
+        this.targetDelayNanos = TimeUnit.MILLISECONDS.toNanos(targetDelayMs);
+        this.minHighWaterMark = minHighWaterMark;
+        this.maxHighWaterMark = maxHighWaterMark;
+        this.lastBufferedAmount = this.dc.bufferedAmount();
+        this.lastSampleNanos = System.nanoTime();
+        this.writtenBytes = 0;
+    }
+
+    /**
+     * Update the drain rate estimate and resize the water marks accordingly.
+     *
+     * Note: Must be called while holding the lock.
+     */
+    private void updateWaterMarks(final long bufferedAmount) {
+        final long now = System.nanoTime();
+        final long elapsed = now - this.lastSampleNanos;
+        if (elapsed < MIN_SAMPLE_INTERVAL_NANOS) {
+            return;
+        }
+
+        // Only sample while the buffer has not run empty, since the link may
+        // have been idle otherwise
+        final long drained = this.lastBufferedAmount + this.writtenBytes - bufferedAmount;
+        if (this.lastBufferedAmount > 0 && bufferedAmount > 0 && drained > 0) {
+            final double rate = (double) drained / elapsed;
+            this.drainRate = this.drainRate == 0 ?
+                rate : this.drainRate + DRAIN_RATE_GAIN * (rate - this.drainRate);
+
+            // Resize towards the target queueing delay
+            final long highWaterMark = Math.max(this.minHighWaterMark, Math.min(
+                this.maxHighWaterMark, (long) (this.drainRate * this.targetDelayNanos)));
+            this.highWaterMark = highWaterMark;
+            this.lowWaterMark = highWaterMark / 4;
+        }
+        this.lastBufferedAmount = bufferedAmount;
+        this.lastSampleNanos = now;
+        this.writtenBytes = 0;
+    }
+
+    /**
+     * Return the estimated drain rate in bytes per second (only available if
+     * adaptive water marks are enabled).
+     */
+    public synchronized long getDrainRate() {
+        return (long) (this.drainRate * TimeUnit.SECONDS.toNanos(1));
+    }
+
     /**
      * Return the low water mark.
      */
@@ -68,6 +199,17 @@ public class FlowControlledDataChannel {
         return this.highWaterMark;
     }
 
+    /**
+     * Return the total time in nanoseconds the data channel has been paused
+     * above the high water mark (including an ongoing pause).
+     */
+    public synchronized long getTimePausedNanos() {
+        if (this.paused) {
+            return this.timePausedNanos + (System.nanoTime() - this.pausedSinceNanos);
+        }
+        return this.timePausedNanos;
+    }
+
     /**
      * A future whether the data channel is ready to be written on.
      */
@@ -89,11 +231,12 @@ public class FlowControlledDataChannel {
         //       calls.
         synchronized (this) {
             // Throw if paused
-            if (!this.readyFuture.isDone()) {
+            if (this.paused) {
                 throw new IllegalStateError("Unable to write, data channel is paused!");
             }
 
             // Try sending
+            final int length = message.data.remaining();
             // Note: Technically we should be able to catch an Exception in case the
             //       underlying buffer is full. However, webrtc.org is utterly
             //       outdated and just closes when its buffer would overflow. Thus,
@@ -104,11 +247,19 @@ public class FlowControlledDataChannel {
                 throw new IllegalStateError("Unable to send... because... webrtc.org stuff");
             }
 
+            if (this.adaptive) {
+                this.writtenBytes += length;
+            }
+
             // Pause once high water mark has been reached
             final long bufferedAmount = this.dc.bufferedAmount();
             if (bufferedAmount >= this.highWaterMark) {
                 this.readyFuture = new CompletableFuture<>();
-                log.debug(this.dc.label() + " paused (buffered=" + bufferedAmount + ")");
+                this.paused = true;
+                this.pausedSinceNanos = System.nanoTime();
+                if (log.isDebugEnabled()) {
+                    log.debug(this.dc.label() + " paused (buffered=" + bufferedAmount + ")");
+                }
             }
         }
     }
@@ -123,14 +274,34 @@ public class FlowControlledDataChannel {
         // instance from (B). So, this... pleasant workaround prevents
         // deadlocking the send call.
         CompletableFuture.runAsync(() -> {
+            final CompletableFuture<?> resumed;
             synchronized (this) {
                 final long bufferedAmount = this.dc.bufferedAmount();
+                if (this.adaptive) {
+                    this.updateWaterMarks(bufferedAmount);
+                }
+
                 // Unpause once low water mark has been reached
-                if (bufferedAmount <= this.lowWaterMark && !this.readyFuture.isDone()) {
-                    log.debug(this.dc.label() + " resumed (buffered=" + bufferedAmount + ")");
-                    this.readyFuture.complete(null);
+                // Note: The future is swapped under the lock, so concurrent
+                //       events cannot end the same pause twice.
+                if (bufferedAmount <= this.lowWaterMark && this.paused) {
+                    if (log.isDebugEnabled()) {
+                        log.debug(this.dc.label() + " resumed (buffered=" + bufferedAmount + ")");
+                    }
+                    resumed = this.readyFuture;
+                    this.readyFuture = CompletableFuture.completedFuture(null);
+                    this.paused = false;
+                    this.timePausedNanos += System.nanoTime() - this.pausedSinceNanos;
+                } else {
+                    resumed = null;
                 }
             }
-        });
+
+            // Note: Resolved outside of the lock since writers waiting for
+            //       the future continue on this thread.
+            if (resumed != null) {
+                resumed.complete(null);
+            }
+        }, this.eventExecutor);
     }
 }
@@ -0,0 +1,453 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.webrtc;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.saltyrtc.chunkedDc.Unchunker;
+import org.saltyrtc.demo.app.transport.ChunkMode;
+import org.saltyrtc.demo.app.transport.CryptoMode;
+import org.saltyrtc.tasks.webrtc.WebRTCTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.webrtc.DataChannel;
+import org.webrtc.PeerConnection;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transfers large messages striped across several negotiated data channels.
+ *
+ * Each channel has its own flow control window and crypto context, so a
+ * single transfer is not limited to one SCTP stream. A message is split into
+ * stripes of up to `stripeLength` bytes which are distributed round-robin
+ * across the channels. Each stripe carries a 12 byte header:
+ *
+ * - transfer id (4 bytes, big endian)
+ * - total message length (4 bytes, big endian)
+ * - offset of the stripe within the message (4 bytes, big endian)
+ *
+ * Stripes are created lazily once the channel they have been assigned to
+ * is ready to send them, so only a few stripes are held in memory at a time.
+ *
+ * Received stripes are written into place and the messages are handed out
+ * in transfer order once complete. At most `MAX_PENDING_TRANSFERS` transfers
+ * are being reassembled at a time (the sender keeps fewer transfers in
+ * flight to leave some slack for stripes still in transit). A transfer that
+ * made no progress within the transfer timeout is discarded, so it does not
+ * hold back the transfers following it forever.
+ *
+ * Important: The remote peer must negotiate the same amount of channels with
+ *            the same IDs and use the same stripe length.
+ */
+@AnyThread
+public class StripedTransport {
+    @NonNull private static final Logger log = LoggerFactory.getLogger("SaltyRTC.Demo.Striped");
+    private static final int HEADER_LENGTH = 12;
+    private static final int DEFAULT_STRIPE_LENGTH = 1024 * 1024;
+    private static final int DEFAULT_MAX_MESSAGE_LENGTH = 256 * 1024 * 1024;
+    static final int MAX_PENDING_TRANSFERS = 16;
+    static final int MAX_OUTGOING_TRANSFERS = MAX_PENDING_TRANSFERS / 2;
+    static final long TRANSFER_TIMEOUT_MS = 30_000;
+
+    @NonNull private final List<DataChannelContext> channels = new ArrayList<>();
+    @NonNull private final Unchunker.MessageListener listener;
+    private final int stripeLength;
+    private final int maxMessageLength;
+    private int nextOutgoingId = 0;
+    private int nextChannel = 0;
+
+    // Futures of the transfers in flight, indexed by transfer id
+    @NonNull private final CompletableFuture<?>[] outgoing =
+        new CompletableFuture<?>[MAX_OUTGOING_TRANSFERS];
+
+    // Reassembly state
+    @NonNull private final Map<Integer, Reassembly> incoming = new HashMap<>();
+    private int nextIncomingId = 0;
+    private long nextIncomingUpdatedNanos = System.nanoTime();
+    @Nullable private ScheduledFuture<?> expiryTimer;
+
+    /**
+     * A message being reassembled.
+     */
+    private static class Reassembly {
+        @NonNull final ByteBuffer buffer;
+        @NonNull final BitSet received = new BitSet();
+        int remaining;
+        long updatedNanos;
+
+        Reassembly(final int length, final int stripeCount, final long nowNanos) {
+            this.buffer = ByteBuffer.allocate(length);
+            this.remaining = stripeCount;
+            this.updatedNanos = nowNanos;
+        }
+    }
+
+    /**
+     * Create negotiated data channels and stripe transfers across them.
+     *
+     * @param pc The peer connection to create the data channels on.
+     * @param task The WebRTC task (used to create the crypto contexts).
+     * @param executors The executors used by the data channels.
+     * @param firstId The ID of the first negotiated data channel. Subsequent
+     *   channels use consecutive IDs.
+     * @param count The amount of data channels.
+     * @param listener Receives fully reassembled messages.
+     */
+    public StripedTransport(
+        @NonNull final PeerConnection pc,
+        @NonNull final WebRTCTask task,
+        @NonNull final TransportExecutors executors,
+        final int firstId,
+        final int count,
+        @NonNull final Unchunker.MessageListener listener
+    ) {
+        this(pc, task, executors, firstId, count, DEFAULT_STRIPE_LENGTH,
+            DEFAULT_MAX_MESSAGE_LENGTH, listener);
+    }
+
+    /**
+     * Create negotiated data channels and stripe transfers across them.
+     *
+     * @param pc The peer connection to create the data channels on.
+     * @param task The WebRTC task (used to create the crypto contexts).
+     * @param executors The executors used by the data channels.
+     * @param firstId The ID of the first negotiated data channel. Subsequent
+     *   channels use consecutive IDs.
+     * @param count The amount of data channels.
+     * @param stripeLength The maximum payload length of a stripe.
+     * @param maxMessageLength The maximum length of an incoming message.
+     * @param listener Receives fully reassembled messages.
+     */
+    public StripedTransport(
+        @NonNull final PeerConnection pc,
+        @NonNull final WebRTCTask task,
+        @NonNull final TransportExecutors executors,
+        final int firstId,
+        final int count,
+        final int stripeLength,
+        final int maxMessageLength,
+        @NonNull final Unchunker.MessageListener listener
+    ) {
+        this(stripeLength, maxMessageLength, listener);
+        if (count < 1) {
+            throw new IllegalArgumentException("At least one channel is required");
+        }
+
+        for (int i = 0; i < count; ++i) {
+            // Create negotiated data channel
+            final DataChannel.Init parameters = new DataChannel.Init();
+            parameters.id = firstId + i;
+            parameters.negotiated = true;
+            parameters.ordered = true;
+            final DataChannel dc = pc.createDataChannel("striped-" + i, parameters);
+
+            // Note: Stripes are encrypted chunk-wise, so they can be
+            //       decrypted (and released) as they arrive.
+            final DataChannelContext dcc = new DataChannelContext(
+                CryptoMode.CHUNK_THEN_ENCRYPT, ChunkMode.RELIABLE_ORDERED,
+                dc, task, this::onStripe, executors);
+            this.channels.add(dcc);
+
+            // Bind events
+            dc.registerObserver(new DataChannel.Observer() {
+                @Override
+                public void onBufferedAmountChange(final long bufferedAmount) {
+                    dcc.fcdc.bufferedAmountChange();
+                }
+
+                @Override
+                public void onStateChange() {
+                    switch (dc.state()) {
+                        case OPEN:
+                            log.debug("Data channel " + dc.label() + " open");
+                            break;
+                        case CLOSED:
+                            log.debug("Data channel " + dc.label() + " closed");
+                            dc.dispose();
+                            break;
+                        default:
+                            break;
+                    }
+                }
+
+                @Override
+                public void onMessage(@NonNull final DataChannel.Buffer buffer) {
+                    dcc.receive(buffer.data);
+                }
+            });
+        }
+
+        // Discard stalled transfers
+        final long interval = TRANSFER_TIMEOUT_MS / 2;
+        this.expiryTimer = executors.getScheduler().scheduleWithFixedDelay(
+            () -> this.expireTransfers(System.nanoTime()),
+            interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create a striped transport without any channels (e.g. to feed stripes
+     * directly in tests).
+     */
+    StripedTransport(
+        final int stripeLength,
+        final int maxMessageLength,
+        @NonNull final Unchunker.MessageListener listener
+    ) {
+        if (stripeLength < 1) {
+            throw new IllegalArgumentException("Stripe length must be positive");
+        }
+        this.listener = listener;
+        this.stripeLength = stripeLength;
+        this.maxMessageLength = maxMessageLength;
+    }
+
+    /**
+     * Return the amount of channels the transfers are striped across.
+     */
+    public int getChannelCount() {
+        return this.channels.size();
+    }
+
+    /**
+     * Set the maximum message size the remote peer is able to receive. The
+     * chunk length of each channel is derived from it.
+     */
+    public void setMaxMessageSize(final long maxMessageSize) {
+        for (final DataChannelContext dcc : this.channels) {
+            dcc.setMaxMessageSize(maxMessageSize);
+        }
+    }
+
+    /**
+     * Return the amount of stripes a message of the given length is split
+     * into. An empty message results in a single empty stripe.
+     */
+    private int getStripeCount(final int length) {
+        return Math.max(1, (int) (((long) length + this.stripeLength - 1) / this.stripeLength));
+    }
+
+    /**
+     * Send a message striped across all channels.
+     *
+     * Note: Each stripe is copied from the message once its channel is ready
+     *       to send it, so the message must not be modified until the
+     *       returned future has been resolved.
+     *
+     * Note: At most `MAX_OUTGOING_TRANSFERS` transfers are in flight. Further
+     *       transfers are started once all stripes of the transfer
+     *       `MAX_OUTGOING_TRANSFERS` ahead have been written.
+     *
+     * @return A future that resolves once all stripes have been written.
+     */
+    @NonNull public synchronized CompletableFuture<?> sendAsync(@NonNull final ByteBuffer buffer) {
+        final int id = this.nextOutgoingId++;
+        final ByteBuffer message = buffer.slice();
+        final int slot = Math.floorMod(id, this.outgoing.length);
+        @Nullable final CompletableFuture<?> previous = this.outgoing[slot];
+        final CompletableFuture<?> future;
+        if (previous == null || previous.isDone()) {
+            future = this.sendStripes(id, message);
+        } else {
+            // Note: The outcome of the previous transfer is irrelevant here.
+            future = previous
+                .handle((result, error) -> null)
+                .thenCompose(ignored -> this.sendStripes(id, message));
+        }
+        this.outgoing[slot] = future;
+        return future;
+    }
+
+    /**
+     * Enqueue the stripes of a message on the channels.
+     */
+    @NonNull private synchronized CompletableFuture<?> sendStripes(
+        final int id, @NonNull final ByteBuffer message) {
+        final int stripeCount = this.getStripeCount(message.remaining());
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[stripeCount];
+        for (int index = 0; index < stripeCount; ++index) {
+            // Send via the next channel, creating the stripe once it is due
+            final int offset = index * this.stripeLength;
+            final DataChannelContext dcc = this.channels.get(this.nextChannel);
+            this.nextChannel = (this.nextChannel + 1) % this.channels.size();
+            futures[index] = dcc.enqueueAsync(
+                () -> dcc.send(this.createStripe(id, message, offset)));
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    /**
+     * Create the stripe of a message starting at the given offset.
+     */
+    @NonNull ByteBuffer createStripe(
+        final int id, @NonNull final ByteBuffer message, final int offset) {
+        final int length = message.remaining();
+        final int stripeLength = Math.min(this.stripeLength, length - offset);
+        final ByteBuffer stripe = ByteBuffer.allocate(HEADER_LENGTH + stripeLength);
+        stripe.putInt(id);
+        stripe.putInt(length);
+        stripe.putInt(offset);
+        final ByteBuffer payload = message.duplicate();
+        payload.position(offset);
+        payload.limit(offset + stripeLength);
+        stripe.put(payload);
+        stripe.flip();
+        return stripe;
+    }
+
+    /**
+     * Handle an incoming stripe.
+     */
+    void onStripe(@NonNull final ByteBuffer stripe) {
+        // Note: Locked since the channels may fire their events on different
+        //       threads. This also ensures messages are handed out in order.
+        synchronized (this) {
+            if (stripe.remaining() < HEADER_LENGTH) {
+                log.error("Invalid stripe received (too short)");
+                return;
+            }
+            final int id = stripe.getInt();
+            final int length = stripe.getInt();
+            final int offset = stripe.getInt();
+            if (id - this.nextIncomingId < 0) {
+                log.error("Stripe received for already completed or discarded transfer " + id);
+                return;
+            }
+            if (id - this.nextIncomingId >= MAX_PENDING_TRANSFERS) {
+                log.error("Stripe received for transfer " + id + " too far ahead of transfer " +
+                    this.nextIncomingId);
+                return;
+            }
+
+            // Validate header
+            // Note: This must happen before allocating the reassembly buffer
+            //       since the length is untrusted.
+            if (length < 0 || length > this.maxMessageLength) {
+                log.error("Invalid stripe received (message length " + length + ")");
+                return;
+            }
+            if (offset < 0 || offset % this.stripeLength != 0 || offset > length
+                || stripe.remaining() != Math.min(this.stripeLength, length - offset)) {
+                log.error("Invalid stripe received (out of bounds)");
+                return;
+            }
+            final int index = offset / this.stripeLength;
+
+            // Write stripe into place (unless it is a duplicate)
+            final long nowNanos = System.nanoTime();
+            @Nullable Reassembly reassembly = this.incoming.get(id);
+            if (reassembly == null) {
+                // Note: Nothing was waiting for the next transfer before, so
+                //       its timeout starts now.
+                if (this.incoming.isEmpty()) {
+                    this.nextIncomingUpdatedNanos = nowNanos;
+                }
+                reassembly = new Reassembly(length, this.getStripeCount(length), nowNanos);
+                this.incoming.put(id, reassembly);
+            } else if (reassembly.buffer.capacity() != length) {
+                log.error("Invalid stripe received (message length mismatch)");
+                return;
+            }
+            if (reassembly.received.get(index)) {
+                log.error("Duplicate stripe received for transfer " + id);
+                return;
+            }
+            reassembly.received.set(index);
+            reassembly.remaining -= 1;
+            reassembly.updatedNanos = nowNanos;
+            if (id == this.nextIncomingId) {
+                this.nextIncomingUpdatedNanos = nowNanos;
+            }
+            final ByteBuffer target = reassembly.buffer.duplicate();
+            target.position(offset);
+            target.put(stripe);
+
+            // Hand out completed messages in order
+            this.handOutCompleted(nowNanos);
+        }
+    }
+
+    /**
+     * Hand out completed messages in transfer order.
+     *
+     * Note: Must be called while holding the lock.
+     */
+    private void handOutCompleted(final long nowNanos) {
+        while (true) {
+            final Reassembly next = this.incoming.get(this.nextIncomingId);
+            if (next == null || next.remaining > 0) {
+                break;
+            }
+            this.incoming.remove(this.nextIncomingId++);
+            this.nextIncomingUpdatedNanos = nowNanos;
+            this.listener.onMessage(next.buffer);
+        }
+    }
+
+    /**
+     * Discard transfers that made no progress within the transfer timeout.
+     * If the next transfer in order has been discarded (or never started)
+     * while later transfers are waiting, it is skipped.
+     */
+    void expireTransfers(final long nowNanos) {
+        synchronized (this) {
+            final long deadline = nowNanos - TimeUnit.MILLISECONDS.toNanos(TRANSFER_TIMEOUT_MS);
+
+            // Discard stalled transfers (complete ones are merely waiting)
+            final Iterator<Map.Entry<Integer, Reassembly>> iterator =
+                this.incoming.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<Integer, Reassembly> entry = iterator.next();
+                final Reassembly reassembly = entry.getValue();
+                if (reassembly.remaining > 0 && reassembly.updatedNanos - deadline < 0) {
+                    log.error("Discarding stalled transfer " + entry.getKey());
+                    iterator.remove();
+                }
+            }
+
+            // Skip missing transfers to unblock the ones following them
+            if (this.incoming.isEmpty() || this.nextIncomingUpdatedNanos - deadline >= 0) {
+                return;
+            }
+            while (!this.incoming.containsKey(this.nextIncomingId)) {
+                log.error("Skipping stalled transfer " + this.nextIncomingId);
+                this.nextIncomingId += 1;
+            }
+            this.nextIncomingUpdatedNanos = nowNanos;
+            this.handOutCompleted(nowNanos);
+        }
+    }
+
+    /**
+     * Close all underlying data channels.
+     */
+    public void close() {
+        final ScheduledFuture<?> expiryTimer;
+        synchronized (this) {
+            expiryTimer = this.expiryTimer;
+            this.expiryTimer = null;
+        }
+        if (expiryTimer != null) {
+            expiryTimer.cancel(false);
+        }
+        for (final DataChannelContext dcc : this.channels) {
+            dcc.close();
+        }
+    }
+}
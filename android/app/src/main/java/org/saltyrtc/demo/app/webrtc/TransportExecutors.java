@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.webrtc;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.saltyrtc.demo.app.utils.MonitoredExecutor;
+import org.saltyrtc.demo.app.utils.SerialExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The executors used by the data channel transports of a connection.
+ *
+ * - Writes are dispatched on per-channel serial executors backed by the
+ *   write pool. If the runtime supports virtual threads, they back the write
+ *   pool. Otherwise, a cached thread pool is used.
+ * - Encryption is dispatched on per-channel serial executors backed by a
+ *   fixed pool sized to the amount of available processors.
+ * - Events (e.g. buffered amount changes) are dispatched on a single event
+ *   thread.
+ * - Delayed tasks (e.g. flushing coalesced messages) are dispatched on a
+ *   single scheduler thread.
+ *
+ * This keeps crypto, writes and event dispatching of a connection from
+ * competing with each other and with other users of the common pool.
+ */
+@AnyThread
+public class TransportExecutors {
+    @NonNull private static final Logger log =
+        LoggerFactory.getLogger("SaltyRTC.Demo.TransportExecutors");
+
+    @Nullable private static TransportExecutors shared;
+
+    @NonNull private final MonitoredExecutor writePool;
+    @NonNull private final MonitoredExecutor cryptoPool;
+    @NonNull private final MonitoredExecutor eventPool;
+    @NonNull private final ScheduledExecutorService scheduler;
+
+    public TransportExecutors(
+        @NonNull final ExecutorService writePool,
+        @NonNull final ExecutorService cryptoPool,
+        @NonNull final ExecutorService eventPool,
+        @NonNull final ScheduledExecutorService scheduler
+    ) {
+        this.writePool = new MonitoredExecutor(writePool);
+        this.cryptoPool = new MonitoredExecutor(cryptoPool);
+        this.eventPool = new MonitoredExecutor(eventPool);
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Create the default set of executors.
+     *
+     * @param name Prefix for the names of the threads.
+     * @param preferVirtualThreads Whether virtual threads should back the
+     *   write pool if supported by the runtime.
+     */
+    @NonNull public static TransportExecutors create(
+        @NonNull final String name, final boolean preferVirtualThreads) {
+        ExecutorService writePool = preferVirtualThreads ? newVirtualThreadExecutor() : null;
+        if (writePool == null) {
+            writePool = Executors.newCachedThreadPool(threadFactory(name + ".Write"));
+        }
+        final ExecutorService cryptoPool = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), threadFactory(name + ".Crypto"));
+        final ExecutorService eventPool = Executors.newSingleThreadExecutor(
+            threadFactory(name + ".Event"));
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            threadFactory(name + ".Scheduler"));
+        return new TransportExecutors(writePool, cryptoPool, eventPool, scheduler);
+    }
+
+    /**
+     * Return the process-wide set of executors used when no executors have
+     * been provided explicitly. It is created lazily and never shut down.
+     */
+    @NonNull public static synchronized TransportExecutors getShared() {
+        if (shared == null) {
+            shared = create("SaltyRTC.Demo.Shared", true);
+        }
+        return shared;
+    }
+
+    /**
+     * Create a virtual thread per task executor, if supported by the runtime.
+     */
+    @Nullable private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor")
+                .invoke(null);
+        } catch (ReflectiveOperationException | ClassCastException error) {
+            log.debug("Virtual threads not supported, falling back to a thread pool");
+            return null;
+        }
+    }
+
+    @NonNull private static ThreadFactory threadFactory(@NonNull final String name) {
+        final AtomicInteger counter = new AtomicInteger(0);
+        return runnable -> {
+            final Thread thread = new Thread(runnable, name + "." + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Create a serial executor for the writes of a single channel.
+     */
+    @NonNull public SerialExecutor newWriteExecutor() {
+        return new SerialExecutor(this.writePool);
+    }
+
+    /**
+     * Create a serial executor for the encryption of a single channel.
+     */
+    @NonNull public SerialExecutor newCryptoExecutor() {
+        return new SerialExecutor(this.cryptoPool);
+    }
+
+    /**
+     * Return the executor used to dispatch events.
+     */
+    @NonNull public MonitoredExecutor getEventExecutor() {
+        return this.eventPool;
+    }
+
+    /**
+     * Return the executor used to run delayed tasks.
+     */
+    @NonNull public ScheduledExecutorService getScheduler() {
+        return this.scheduler;
+    }
+
+    /**
+     * Return the write pool (for queue depth metrics).
+     */
+    @NonNull public MonitoredExecutor getWritePool() {
+        return this.writePool;
+    }
+
+    /**
+     * Return the crypto pool (for queue depth metrics).
+     */
+    @NonNull public MonitoredExecutor getCryptoPool() {
+        return this.cryptoPool;
+    }
+
+    /**
+     * Shut down all pools. Pending tasks will still be run but no new tasks
+     * will be accepted.
+     */
+    public void shutdown() {
+        this.writePool.shutdown();
+        this.cryptoPool.shutdown();
+        this.eventPool.shutdown();
+        this.scheduler.shutdown();
+    }
+}
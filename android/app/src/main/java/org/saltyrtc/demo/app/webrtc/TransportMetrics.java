@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.webrtc;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+
+import org.saltyrtc.demo.app.utils.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics of a data channel transport.
+ *
+ * Counters and histograms are updated on the hot path without allocating.
+ * Gauges (e.g. queue depth) are only sampled when taking a snapshot.
+ */
+@AnyThread
+public class TransportMetrics {
+    @NonNull private static final Logger log =
+        LoggerFactory.getLogger("SaltyRTC.Demo.TransportMetrics");
+
+    @NonNull private final AtomicLong bytesSent = new AtomicLong(0);
+    @NonNull private final AtomicLong chunksSent = new AtomicLong(0);
+    @NonNull private final AtomicLong messagesSent = new AtomicLong(0);
+    @NonNull private final AtomicLong bytesReceived = new AtomicLong(0);
+    @NonNull private final AtomicLong chunksReceived = new AtomicLong(0);
+    @NonNull private final AtomicLong messagesReceived = new AtomicLong(0);
+    @NonNull private final LatencyHistogram encryptLatency = new LatencyHistogram();
+    @NonNull private final LatencyHistogram decryptLatency = new LatencyHistogram();
+    @NonNull private final LongSupplier timePausedNanos;
+    @NonNull private final LongSupplier queueDepth;
+    @NonNull private final LongSupplier reassemblyLength;
+
+    /**
+     * Receives periodic snapshots.
+     */
+    public interface SnapshotListener {
+        void onSnapshot(@NonNull Snapshot snapshot);
+    }
+
+    /**
+     * An immutable snapshot of the metrics.
+     */
+    public static class Snapshot {
+        public final long timestampNanos;
+        public final long bytesSent;
+        public final long chunksSent;
+        public final long messagesSent;
+        public final long bytesReceived;
+        public final long chunksReceived;
+        public final long messagesReceived;
+        public final long encryptCount;
+        public final long encryptMeanNanos;
+        public final long encryptP50Nanos;
+        public final long encryptP99Nanos;
+        public final long encryptMaxNanos;
+        public final long decryptCount;
+        public final long decryptMeanNanos;
+        public final long decryptP50Nanos;
+        public final long decryptP99Nanos;
+        public final long decryptMaxNanos;
+        public final long timePausedNanos;
+        public final long queueDepth;
+        public final long reassemblyLength;
+
+        Snapshot(@NonNull final TransportMetrics metrics) {
+            this.timestampNanos = System.nanoTime();
+            this.bytesSent = metrics.bytesSent.get();
+            this.chunksSent = metrics.chunksSent.get();
+            this.messagesSent = metrics.messagesSent.get();
+            this.bytesReceived = metrics.bytesReceived.get();
+            this.chunksReceived = metrics.chunksReceived.get();
+            this.messagesReceived = metrics.messagesReceived.get();
+            this.encryptCount = metrics.encryptLatency.getCount();
+            this.encryptMeanNanos = metrics.encryptLatency.getMeanNanos();
+            this.encryptP50Nanos = metrics.encryptLatency.getPercentileNanos(0.5);
+            this.encryptP99Nanos = metrics.encryptLatency.getPercentileNanos(0.99);
+            this.encryptMaxNanos = metrics.encryptLatency.getMaxNanos();
+            this.decryptCount = metrics.decryptLatency.getCount();
+            this.decryptMeanNanos = metrics.decryptLatency.getMeanNanos();
+            this.decryptP50Nanos = metrics.decryptLatency.getPercentileNanos(0.5);
+            this.decryptP99Nanos = metrics.decryptLatency.getPercentileNanos(0.99);
+            this.decryptMaxNanos = metrics.decryptLatency.getMaxNanos();
+            this.timePausedNanos = metrics.timePausedNanos.getAsLong();
+            this.queueDepth = metrics.queueDepth.getAsLong();
+            this.reassemblyLength = metrics.reassemblyLength.getAsLong();
+        }
+
+        /**
+         * Return the amount of bytes sent per second since a previous
+         * snapshot.
+         */
+        public double getSendRate(@NonNull final Snapshot previous) {
+            return rate(this.bytesSent - previous.bytesSent, previous);
+        }
+
+        /**
+         * Return the amount of bytes received per second since a previous
+         * snapshot.
+         */
+        public double getReceiveRate(@NonNull final Snapshot previous) {
+            return rate(this.bytesReceived - previous.bytesReceived, previous);
+        }
+
+        private double rate(final long bytes, @NonNull final Snapshot previous) {
+            final long elapsedNanos = this.timestampNanos - previous.timestampNanos;
+            if (elapsedNanos <= 0) {
+                return 0;
+            }
+            return bytes * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        }
+
+        @Override
+        @NonNull public String toString() {
+            return "sent=" + this.bytesSent + "B/" + this.chunksSent + "c/" +
+                this.messagesSent + "m" +
+                ", received=" + this.bytesReceived + "B/" + this.chunksReceived + "c/" +
+                this.messagesReceived + "m" +
+                ", encrypt(n=" + this.encryptCount + ", mean=" + this.encryptMeanNanos +
+                "ns, p50=" + this.encryptP50Nanos + "ns, p99=" + this.encryptP99Nanos +
+                "ns, max=" + this.encryptMaxNanos + "ns)" +
+                ", decrypt(n=" + this.decryptCount + ", mean=" + this.decryptMeanNanos +
+                "ns, p50=" + this.decryptP50Nanos + "ns, p99=" + this.decryptP99Nanos +
+                "ns, max=" + this.decryptMaxNanos + "ns)" +
+                ", paused=" + TimeUnit.NANOSECONDS.toMillis(this.timePausedNanos) + "ms" +
+                ", queue=" + this.queueDepth +
+                ", reassembly=" + this.reassemblyLength + "B";
+        }
+    }
+
+    /**
+     * Create transport metrics.
+     *
+     * @param timePausedNanos Provides the time spent paused above the high
+     *   water mark.
+     * @param queueDepth Provides the current depth of the write queue.
+     * @param reassemblyLength Provides the current length of the reassembly
+     *   buffer.
+     */
+    TransportMetrics(
+        @NonNull final LongSupplier timePausedNanos,
+        @NonNull final LongSupplier queueDepth,
+        @NonNull final LongSupplier reassemblyLength
+    ) {
+        this.timePausedNanos = timePausedNanos;
+        this.queueDepth = queueDepth;
+        this.reassemblyLength = reassemblyLength;
+    }
+
+    void onChunkSent(final int length) {
+        this.bytesSent.addAndGet(length);
+        this.chunksSent.incrementAndGet();
+    }
+
+    void onMessageSent() {
+        this.messagesSent.incrementAndGet();
+    }
+
+    void onChunkReceived(final int length) {
+        this.bytesReceived.addAndGet(length);
+        this.chunksReceived.incrementAndGet();
+    }
+
+    void onMessageReceived() {
+        this.messagesReceived.incrementAndGet();
+    }
+
+    void onEncrypted(final long nanos) {
+        this.encryptLatency.record(nanos);
+    }
+
+    void onDecrypted(final long nanos) {
+        this.decryptLatency.record(nanos);
+    }
+
+    /**
+     * Return the encryption latency histogram.
+     */
+    @NonNull public LatencyHistogram getEncryptLatency() {
+        return this.encryptLatency;
+    }
+
+    /**
+     * Return the decryption latency histogram.
+     */
+    @NonNull public LatencyHistogram getDecryptLatency() {
+        return this.decryptLatency;
+    }
+
+    /**
+     * Take a snapshot of the current metrics.
+     */
+    @NonNull public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Periodically hand out snapshots until the returned future is
+     * cancelled.
+     *
+     * @param scheduler The executor to take snapshots on.
+     * @param periodMs The period in milliseconds.
+     * @param listener Receives the snapshots.
+     */
+    @NonNull public ScheduledFuture<?> scheduleSnapshots(
+        @NonNull final ScheduledExecutorService scheduler,
+        final long periodMs,
+        @NonNull final SnapshotListener listener
+    ) {
+        return scheduler.scheduleAtFixedRate(() -> {
+            try {
+                listener.onSnapshot(this.snapshot());
+            } catch (RuntimeException error) {
+                // Note: An uncaught exception would cancel further snapshots.
+                log.error("Exception in snapshot listener", error);
+            }
+        }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+}
@@ -10,10 +10,11 @@ package org.saltyrtc.demo.app.webrtc;
 import android.support.annotation.AnyThread;
 import android.support.annotation.NonNull;
 
+import org.saltyrtc.demo.app.utils.SerialQueue;
 import org.webrtc.DataChannel;
 
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 
 /**
  * A flow-controlled (sender side) data channel that allows to queue an
@@ -25,7 +26,10 @@ import java.util.concurrent.ExecutionException;
  */
 @AnyThread
 public class UnboundedFlowControlledDataChannel extends FlowControlledDataChannel {
-    @NonNull private CompletableFuture<?> queue = this.ready();
+    // Note: Operations run directly on the producing thread or on the thread
+    //       that resolved the ready future.
+    @NonNull private final SerialQueue queue = new SerialQueue(
+        Runnable::run, error -> log.error("Exception in write queue", error));
 
     /**
      * Create a flow-controlled (sender side) data channel with an infinite
@@ -52,37 +56,36 @@ public class UnboundedFlowControlledDataChannel extends FlowControlledDataChanne
         super(dc, lowWaterMark, highWaterMark);
     }
 
+    /**
+     * Create a flow-controlled (sender side) data channel with an infinite
+     * buffer.
+     *
+     * @param dc The data channel to be flow-controlled
+     * @param eventExecutor The executor buffered amount changes are
+     *   dispatched on.
+     */
+    public UnboundedFlowControlledDataChannel(
+        @NonNull final DataChannel dc, @NonNull final Executor eventExecutor) {
+        super(dc, eventExecutor);
+    }
+
     /**
      * Write a message to the data channel's internal or application buffer for
      * delivery to the remote side.
      *
-     * Warning: This method is not thread-safe.
-     *
      * @param message The message to be sent.
      */
     public void write(@NonNull final DataChannel.Buffer message) {
-        // Note: This very simple technique allows for ordered message
-        //       queueing by using future chaining.
-        this.queue = this.queue.thenRunAsync(() -> {
-            // Wait until ready
-            try {
-                this.ready().get();
-            } catch (ExecutionException error) {
-                // Should not happen
-                log.error("Woops!", error);
-                return;
-            } catch (InterruptedException error) {
-                // Can happen when the channel has been closed abruptly
-                log.error("Unable to send pending chunk! Channel closed abruptly?", error);
-                return;
+        // Note: Messages are queued in order in a lock-free queue which is
+        //       drained by a single task. Waiting for the data channel to
+        //       become ready does not block any thread.
+        this.queue.enqueueAsync(() -> {
+            final CompletableFuture<?> ready = this.ready();
+            if (ready.isDone()) {
+                super.write(message);
+                return ready;
             }
-
-            // Write message
-            super.write(message);
-        });
-        this.queue.exceptionally(error -> {
-            log.error("Exception in write queue", error);
-            return null;
+            return ready.thenRun(() -> super.write(message));
         });
     }
 }
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.signaling;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.saltyrtc.tasks.webrtc.messages.Candidate;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks when batches of ICE candidates are sent.
+ *
+ * Note: Lower bounds are exact since a scheduled flush never runs early.
+ *       The only upper bound (the window is not extended by further
+ *       candidates) leaves half a window of slack.
+ */
+public class IceCandidateBatcherTest {
+    private static final long WINDOW_MS = 200;
+    private static final long TIMEOUT_MS = 10_000;
+
+    private final BlockingQueue<Candidate[]> batches = new LinkedBlockingQueue<>();
+    private ScheduledExecutorService scheduler;
+
+    @Before
+    public void setUp() {
+        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        this.scheduler.shutdownNow();
+    }
+
+    private IceCandidateBatcher createBatcher(final long windowMs) {
+        return new IceCandidateBatcher(this.scheduler, windowMs, this.batches::add);
+    }
+
+    private static Candidate createCandidate(final int index) {
+        return new Candidate("candidate:" + index, "data", 0);
+    }
+
+    private Candidate[] takeBatch() throws InterruptedException {
+        final Candidate[] batch = this.batches.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("Batch not sent in time", batch);
+        return batch;
+    }
+
+    private void assertNoBatch(final long waitMs) throws InterruptedException {
+        assertNull("Unexpected batch", this.batches.poll(waitMs, TimeUnit.MILLISECONDS));
+    }
+
+    private static long elapsedMs(final long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    @Test
+    public void testBurstIsSentAsOneBatchOnceTheWindowElapsed() throws Exception {
+        final IceCandidateBatcher batcher = this.createBatcher(WINDOW_MS);
+        final Candidate[] candidates = {
+            createCandidate(0), createCandidate(1), createCandidate(2),
+        };
+        final long start = System.nanoTime();
+        for (final Candidate candidate : candidates) {
+            batcher.add(candidate);
+        }
+        assertArrayEquals(candidates, this.takeBatch());
+        assertTrue(elapsedMs(start) >= WINDOW_MS);
+        this.assertNoBatch(2 * WINDOW_MS);
+    }
+
+    @Test
+    public void testWindowStartsWithTheFirstCandidate() throws Exception {
+        final IceCandidateBatcher batcher = this.createBatcher(WINDOW_MS);
+        final Candidate first = createCandidate(0);
+        final Candidate second = createCandidate(1);
+        final long start = System.nanoTime();
+        batcher.add(first);
+        Thread.sleep(WINDOW_MS / 2);
+
+        // Adding a candidate must not extend the window
+        final long secondStart = System.nanoTime();
+        batcher.add(second);
+        assertArrayEquals(new Candidate[] { first, second }, this.takeBatch());
+        assertTrue(elapsedMs(start) >= WINDOW_MS);
+        assertTrue(elapsedMs(secondStart) < WINDOW_MS);
+    }
+
+    @Test
+    public void testNextCandidateStartsANewWindow() throws Exception {
+        final IceCandidateBatcher batcher = this.createBatcher(WINDOW_MS);
+        final Candidate first = createCandidate(0);
+        final Candidate second = createCandidate(1);
+        batcher.add(first);
+        assertArrayEquals(new Candidate[] { first }, this.takeBatch());
+
+        final long start = System.nanoTime();
+        batcher.add(second);
+        assertArrayEquals(new Candidate[] { second }, this.takeBatch());
+        assertTrue(elapsedMs(start) >= WINDOW_MS);
+    }
+
+    @Test
+    public void testFlushSendsImmediatelyAndCancelsTheWindow() throws Exception {
+        final IceCandidateBatcher batcher = this.createBatcher(WINDOW_MS);
+        final Candidate candidate = createCandidate(0);
+        batcher.add(candidate);
+        batcher.flush();
+
+        // Note: The listener is called synchronously.
+        assertArrayEquals(new Candidate[] { candidate }, this.batches.poll());
+        this.assertNoBatch(2 * WINDOW_MS);
+
+        // Flushing an empty batch does not send anything
+        batcher.flush();
+        assertNull(this.batches.poll());
+    }
+
+    @Test
+    public void testCandidatesAreSentImmediatelyWithoutWindow() {
+        final IceCandidateBatcher batcher = this.createBatcher(0);
+        for (int i = 0; i < 3; ++i) {
+            final Candidate candidate = createCandidate(i);
+            batcher.add(candidate);
+            assertArrayEquals(new Candidate[] { candidate }, this.batches.poll());
+        }
+    }
+
+    @Test
+    public void testCandidatesAreSentImmediatelyIfSchedulingFails() {
+        final IceCandidateBatcher batcher = this.createBatcher(WINDOW_MS);
+        this.scheduler.shutdown();
+        final Candidate candidate = createCandidate(0);
+        batcher.add(candidate);
+        assertArrayEquals(new Candidate[] { candidate }, this.batches.poll());
+    }
+
+    @Test
+    public void testCloseDiscardsThePendingBatch() throws Exception {
+        final IceCandidateBatcher batcher = this.createBatcher(WINDOW_MS);
+        batcher.add(createCandidate(0));
+        batcher.close();
+        this.assertNoBatch(2 * WINDOW_MS);
+
+        // Further candidates are ignored
+        batcher.add(createCandidate(1));
+        batcher.flush();
+        this.assertNoBatch(2 * WINDOW_MS);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.transport;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.saltyrtc.demo.app.utils.TestMessages.createMessage;
+
+/**
+ * Packs messages into batches and splits them again.
+ */
+public class MessageBatcherTest {
+    private static List<byte[]> split(final ByteBuffer batch) {
+        final List<byte[]> messages = new ArrayList<>();
+        MessageBatcher.split(batch, buffer -> {
+            final byte[] message = new byte[buffer.remaining()];
+            buffer.get(message);
+            messages.add(message);
+        });
+        return messages;
+    }
+
+    @Test
+    public void testBatchRoundTrip() {
+        final MessageBatcher batcher = new MessageBatcher(1024);
+        final byte[][] messages = {
+            createMessage(10, 0), createMessage(0, 1), createMessage(100, 2),
+        };
+        for (final byte[] message : messages) {
+            final ByteBuffer buffer = ByteBuffer.wrap(message);
+            batcher.add(buffer);
+            assertEquals(0, buffer.position());
+        }
+        assertEquals(3, batcher.getCount());
+        assertEquals(3 * MessageBatcher.LENGTH_PREFIX + 110, batcher.getLength());
+
+        final ByteBuffer batch = batcher.take();
+        assertTrue(batcher.isEmpty());
+        assertEquals(0, batcher.getLength());
+        final List<byte[]> split = split(batch);
+        assertEquals(messages.length, split.size());
+        for (int i = 0; i < messages.length; ++i) {
+            assertArrayEquals(messages[i], split.get(i));
+        }
+        assertEquals("Batch position must not be altered", 0, batch.position());
+    }
+
+    @Test
+    public void testBatchLengthIsBounded() {
+        final MessageBatcher batcher = new MessageBatcher(64);
+        final ByteBuffer message = ByteBuffer.wrap(createMessage(64 - 4, 0));
+        assertTrue(batcher.fits(message));
+        batcher.add(message);
+        assertEquals(64, batcher.getLength());
+        assertFalse(batcher.fits(ByteBuffer.allocate(0)));
+        try {
+            batcher.add(ByteBuffer.allocate(0));
+            fail("Expected message not to fit");
+        } catch (IllegalArgumentException expected) {
+            // Expected
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testTakeEmptyBatch() {
+        new MessageBatcher(64).take();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBatchLengthMustExceedPrefix() {
+        new MessageBatcher(MessageBatcher.LENGTH_PREFIX);
+    }
+
+    @Test
+    public void testPrefixAndSingle() {
+        final byte[] message = createMessage(300, 3);
+        final ByteBuffer buffer = ByteBuffer.wrap(message);
+        final ByteBuffer prefix = MessageBatcher.createPrefix(buffer);
+        assertEquals(MessageBatcher.LENGTH_PREFIX, prefix.remaining());
+
+        // Prefix followed by the message is a batch of one
+        final ByteBuffer framed = ByteBuffer.allocate(prefix.remaining() + message.length);
+        framed.put(prefix).put(message).flip();
+        assertEquals(framed, MessageBatcher.single(buffer));
+        final List<byte[]> split = split(framed);
+        assertEquals(1, split.size());
+        assertArrayEquals(message, split.get(0));
+    }
+
+    @Test
+    public void testSplitEmptyBatch() {
+        assertEquals(0, split(ByteBuffer.allocate(0)).size());
+    }
+
+    @Test
+    public void testSplitTruncatedPrefix() {
+        final ByteBuffer batch = ByteBuffer.allocate(4 + 2 + 3);
+        batch.putInt(2).put((byte) 1).put((byte) 2).put((byte) 0).put((byte) 0).put((byte) 0);
+        batch.flip();
+        this.assertMalformed(batch);
+    }
+
+    @Test
+    public void testSplitTruncatedMessage() {
+        final ByteBuffer batch = ByteBuffer.allocate(4 + 2);
+        batch.putInt(3).put((byte) 1).put((byte) 2);
+        batch.flip();
+        this.assertMalformed(batch);
+    }
+
+    @Test
+    public void testSplitLengthBeyondSignedRange() {
+        // Note: The prefix is unsigned, so this must not wrap to -1.
+        final ByteBuffer batch = ByteBuffer.allocate(4 + 8);
+        batch.putInt(0xffffffff).putLong(0);
+        batch.flip();
+        this.assertMalformed(batch);
+    }
+
+    private void assertMalformed(final ByteBuffer batch) {
+        try {
+            split(batch);
+            fail("Expected malformed batch to be rejected");
+        } catch (IllegalArgumentException expected) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.transport;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Compresses and decompresses messages, including oversized and streamed
+ * ones.
+ */
+public class MessageCompressorTest {
+    private static final int MAX_LENGTH = 64 * 1024;
+
+    /**
+     * Read a channel until it has been exhausted.
+     */
+    private static byte[] readAll(final ReadableByteChannel channel) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final ByteBuffer buffer = ByteBuffer.allocate(1000);
+        while (channel.read(buffer) >= 0) {
+            buffer.flip();
+            output.write(buffer.array(), 0, buffer.limit());
+            buffer.clear();
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Collects the decompressed segments of each message.
+     */
+    private static class Collector implements ReliableOrderedUnchunker.SegmentListener {
+        final ByteArrayOutputStream message = new ByteArrayOutputStream();
+        int messages = 0;
+
+        @Override
+        public void onSegment(final ByteBuffer segment, final boolean endOfMessage) {
+            final byte[] bytes = new byte[segment.remaining()];
+            segment.get(bytes);
+            this.message.write(bytes, 0, bytes.length);
+            if (endOfMessage) {
+                this.messages += 1;
+            }
+        }
+    }
+
+    @Test
+    public void testRoundTrip() {
+        final MessageCompressor compressor = new MessageCompressor(
+            Deflater.DEFAULT_COMPRESSION, MAX_LENGTH);
+        final byte[] message = new byte[MAX_LENGTH];
+        final ByteBuffer compressed = compressor.compress(ByteBuffer.wrap(message));
+        assertNotNull(compressed);
+        assertTrue(compressed.remaining() < message.length);
+        final ByteBuffer decompressed = compressor.decompress(compressed);
+        assertEquals(ByteBuffer.wrap(message), decompressed);
+    }
+
+    @Test
+    public void testIncompressibleMessageIsSkipped() {
+        final MessageCompressor compressor = new MessageCompressor(
+            Deflater.DEFAULT_COMPRESSION, MAX_LENGTH);
+        final byte[] message = new byte[1000];
+        new Random(0).nextBytes(message);
+        final ByteBuffer buffer = ByteBuffer.wrap(message);
+        assertNull(compressor.compress(buffer));
+        assertEquals(0, buffer.position());
+        assertEquals(1, compressor.getSkippedMessages());
+        assertEquals(message.length, compressor.getUncompressedBytes());
+        assertEquals(message.length, compressor.getCompressedBytes());
+        assertNull(compressor.compress(ByteBuffer.allocate(0)));
+    }
+
+    @Test
+    public void testCpuTimeIsMeasured() throws IOException {
+        // Note: Each reading of the clock advances it by a microsecond.
+        final AtomicLong clock = new AtomicLong();
+        final MessageCompressor compressor = new MessageCompressor(
+            Deflater.DEFAULT_COMPRESSION, MAX_LENGTH, () -> clock.addAndGet(1000));
+        final ByteBuffer compressed = compressor.compress(ByteBuffer.allocate(1000));
+        assertNotNull(compressed);
+        assertEquals(1000, compressor.getCompressCpuNanos());
+        assertEquals(0, compressor.getDecompressCpuNanos());
+        compressor.decompress(compressed);
+        assertEquals(1000, compressor.getCompressCpuNanos());
+        assertEquals(1000, compressor.getDecompressCpuNanos());
+
+        // Streamed compression and decompression are measured as well
+        final byte[] streamed = readAll(compressor.compress(
+            new ArrayChannel(new byte[1000], 1000)));
+        assertTrue(compressor.getCompressCpuNanos() > 1000);
+        compressor.decompressing(new Collector()).onSegment(ByteBuffer.wrap(streamed), true);
+        assertTrue(compressor.getDecompressCpuNanos() > 1000);
+    }
+
+    @Test
+    public void testDecompressRejectsOversizedMessage() {
+        final MessageCompressor sender = new MessageCompressor(
+            Deflater.DEFAULT_COMPRESSION, Integer.MAX_VALUE);
+        final MessageCompressor receiver = new MessageCompressor(
+            Deflater.DEFAULT_COMPRESSION, MAX_LENGTH);
+
+        // Just above the limit: ~1 KiB on the wire
+        final ByteBuffer compressed = sender.compress(ByteBuffer.allocate(MAX_LENGTH + 1));
+        assertTrue(compressed.remaining() < 1024);
+        try {
+            receiver.decompress(compressed);
+            fail("Expected oversized message to be rejected");
+        } catch (IllegalArgumentException expected) {
+            // Expected
+        }
+
+        // The receiver must still be usable afterwards
+        final ByteBuffer message = ByteBuffer.allocate(MAX_LENGTH);
+        assertEquals(message, receiver.decompress(sender.compress(message)));
+    }
+
+    @Test
+    public void testStreamedDecompressionDiscardsOversizedMessage() {
+        final MessageCompressor sender = new MessageCompressor(
+            Deflater.DEFAULT_COMPRESSION, Integer.MAX_VALUE);
+        final MessageCompressor receiver = new MessageCompressor(
+            Deflater.DEFAULT_COMPRESSION, MAX_LENGTH);
+        final Collector collector = new Collector();
+        final ReliableOrderedUnchunker.SegmentListener listener =
+            receiver.decompressing(collector);
+
+        // An oversized message is cut off at the limit
+        listener.onSegment(sender.compress(ByteBuffer.allocate(4 * MAX_LENGTH)), true);
+        assertEquals(1, collector.messages);
+        assertTrue(collector.message.size() <= MAX_LENGTH);
+
+        // ...and the next message is decompressed again
+        collector.message.reset();
+        final byte[] message = new byte[1000];
+        listener.onSegment(sender.compress(ByteBuffer.wrap(message)), true);
+        assertEquals(2, collector.messages);
+        assertArrayEquals(message, collector.message.toByteArray());
+    }
+
+    @Test
+    public void testStreamedCompressionRoundTrip() throws IOException {
+        final MessageCompressor compressor = new MessageCompressor(
+            Deflater.DEFAULT_COMPRESSION, MAX_LENGTH);
+        final byte[] message = new byte[MAX_LENGTH];
+        for (int i = 0; i < message.length; ++i) {
+            message[i] = (byte) (i % 7);
+        }
+        final byte[] compressed = readAll(compressor.compress(
+            new ArrayChannel(message, 3000)));
+        final ByteBuffer decompressed = compressor.decompress(ByteBuffer.wrap(compressed));
+        assertEquals(ByteBuffer.wrap(message), decompressed);
+    }
+
+    @Test
+    public void testStreamedCompressionReturnsZeroForEmptyNonBlockingReads()
+        throws IOException {
+        final MessageCompressor compressor = new MessageCompressor(
+            Deflater.DEFAULT_COMPRESSION, MAX_LENGTH);
+        final ArrayChannel source = new ArrayChannel(new byte[100], 100);
+        source.stalled = true;
+        final ReadableByteChannel channel = compressor.compress(source);
+        final ByteBuffer buffer = ByteBuffer.allocate(1000);
+        assertEquals(0, channel.read(buffer));
+        source.stalled = false;
+        assertTrue(channel.read(buffer) > 0);
+    }
+
+    @Test
+    public void testClose() throws IOException {
+        final MessageCompressor compressor = new MessageCompressor(
+            Deflater.DEFAULT_COMPRESSION, MAX_LENGTH);
+        final ByteBuffer compressed = compressor.compress(ByteBuffer.allocate(100));
+        final ReadableByteChannel channel = compressor.compress(
+            new ArrayChannel(new byte[100], 100));
+        compressor.close();
+        try {
+            compressor.compress(ByteBuffer.allocate(100));
+            fail("Expected closed compressor to throw");
+        } catch (IllegalStateException expected) {
+            // Expected
+        }
+        try {
+            compressor.decompress(compressed);
+            fail("Expected closed compressor to throw");
+        } catch (IllegalStateException expected) {
+            // Expected
+        }
+        try {
+            readAll(channel);
+            fail("Expected closed compressor to throw");
+        } catch (ClosedChannelException expected) {
+            // Expected
+        }
+    }
+
+    /**
+     * Provides an array in reads of limited length. While stalled, reads
+     * return 0 bytes like a non-blocking channel without data available.
+     */
+    private static class ArrayChannel implements ReadableByteChannel {
+        private final ByteBuffer source;
+        private final int maxRead;
+        boolean stalled = false;
+
+        ArrayChannel(final byte[] source, final int maxRead) {
+            this.source = ByteBuffer.wrap(source);
+            this.maxRead = maxRead;
+        }
+
+        @Override
+        public int read(final ByteBuffer dst) {
+            if (!this.source.hasRemaining()) {
+                return -1;
+            }
+            if (this.stalled) {
+                return 0;
+            }
+            final int length = Math.min(this.maxRead,
+                Math.min(dst.remaining(), this.source.remaining()));
+            final ByteBuffer slice = this.source.duplicate();
+            slice.limit(slice.position() + length);
+            dst.put(slice);
+            this.source.position(this.source.position() + length);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+    }
+}
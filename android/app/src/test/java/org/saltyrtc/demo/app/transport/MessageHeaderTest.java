@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.transport;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads message headers and strips them from streamed messages.
+ */
+public class MessageHeaderTest {
+    private final List<byte[]> messages = new ArrayList<>();
+    private final ByteArrayOutputStream current = new ByteArrayOutputStream();
+
+    private final ReliableOrderedUnchunker.SegmentListener collector = (segment, eom) -> {
+        final byte[] bytes = new byte[segment.remaining()];
+        segment.get(bytes);
+        this.current.write(bytes, 0, bytes.length);
+        if (eom) {
+            this.messages.add(this.current.toByteArray());
+            this.current.reset();
+        }
+    };
+
+    private static ByteBuffer segment(final int... bytes) {
+        final ByteBuffer segment = ByteBuffer.allocate(bytes.length);
+        for (final int value : bytes) {
+            segment.put((byte) value);
+        }
+        segment.flip();
+        return segment;
+    }
+
+    @Test
+    public void testGetFlags() {
+        final ByteBuffer message = segment(MessageHeader.BATCH, 1, 2);
+        final byte flags = MessageHeader.getFlags(message);
+        assertTrue(MessageHeader.isSet(flags, MessageHeader.BATCH));
+        assertEquals("Position must not be altered", 0, message.position());
+        assertFalse(MessageHeader.isSet(
+            MessageHeader.getFlags(MessageHeader.create(MessageHeader.PLAIN)),
+            MessageHeader.BATCH));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingHeader() {
+        MessageHeader.getFlags(ByteBuffer.allocate(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownFlags() {
+        MessageHeader.getFlags(segment(0x80));
+    }
+
+    @Test
+    public void testStrippingSegments() {
+        final ReliableOrderedUnchunker.SegmentListener listener =
+            MessageHeader.stripping(this.collector, null);
+
+        // Header in a segment of its own, followed by a message in one segment
+        listener.onSegment(segment(MessageHeader.PLAIN), false);
+        listener.onSegment(segment(1, 2), true);
+        listener.onSegment(segment(MessageHeader.PLAIN, 3), true);
+        assertEquals(2, this.messages.size());
+        assertArrayEquals(new byte[] { 1, 2 }, this.messages.get(0));
+        assertArrayEquals(new byte[] { 3 }, this.messages.get(1));
+    }
+
+    @Test
+    public void testStrippingDiscardsInvalidMessages() {
+        final ReliableOrderedUnchunker.SegmentListener listener =
+            MessageHeader.stripping(this.collector, null);
+
+        // Batches, compressed messages without an inflating listener, unknown
+        // flags and missing headers are discarded
+        listener.onSegment(segment(MessageHeader.BATCH, 1), false);
+        listener.onSegment(segment(2), true);
+        listener.onSegment(segment(MessageHeader.DEFLATE, 3), true);
+        listener.onSegment(segment(0x80, 1), true);
+        listener.onSegment(segment(), true);
+        for (final byte[] message : this.messages) {
+            assertEquals(0, message.length);
+        }
+
+        // The next message is received
+        listener.onSegment(segment(MessageHeader.PLAIN, 4), true);
+        assertArrayEquals(new byte[] { 4 }, this.messages.get(this.messages.size() - 1));
+    }
+
+    @Test
+    public void testStrippingRoutesCompressedMessages() {
+        final List<byte[]> compressed = new ArrayList<>();
+        final ReliableOrderedUnchunker.SegmentListener listener = MessageHeader.stripping(
+            this.collector, (segment, eom) -> {
+                final byte[] bytes = new byte[segment.remaining()];
+                segment.get(bytes);
+                if (bytes.length > 0) {
+                    compressed.add(bytes);
+                }
+            });
+
+        // Compressed messages go to the inflating listener, others do not
+        listener.onSegment(segment(MessageHeader.DEFLATE, 1), false);
+        listener.onSegment(segment(2), true);
+        listener.onSegment(segment(MessageHeader.PLAIN, 3), true);
+        assertEquals(2, compressed.size());
+        assertArrayEquals(new byte[] { 1 }, compressed.get(0));
+        assertArrayEquals(new byte[] { 2 }, compressed.get(1));
+        assertEquals(1, this.messages.size());
+        assertArrayEquals(new byte[] { 3 }, this.messages.get(0));
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.transport;
+
+import org.junit.Test;
+import org.saltyrtc.demo.app.utils.BufferPool;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.saltyrtc.demo.app.utils.TestMessages.createMessage;
+
+/**
+ * Fragments messages into reliable/ordered chunks and reassembles them.
+ */
+public class ReliableOrderedChunkerTest {
+    private static final int CHUNK_LENGTH = 16;
+    private static final int PAYLOAD_LENGTH = CHUNK_LENGTH - ReliableOrderedChunker.HEADER_LENGTH;
+
+    private static List<ByteBuffer> chunk(final Iterator<ByteBuffer> chunker) {
+        final List<ByteBuffer> chunks = new ArrayList<>();
+        while (chunker.hasNext()) {
+            chunks.add(chunker.next());
+        }
+        return chunks;
+    }
+
+    /**
+     * Check the header of each chunk: The mode bits must be set on all of
+     * them, the end-of-message bit only on the last one.
+     */
+    private static void assertHeaders(final List<ByteBuffer> chunks) {
+        for (int i = 0; i < chunks.size(); ++i) {
+            final ByteBuffer chunk = chunks.get(i);
+            assertTrue(chunk.remaining() <= CHUNK_LENGTH);
+            final byte options = chunk.get(chunk.position());
+            assertEquals(ReliableOrderedChunker.MODE_RELIABLE_ORDERED,
+                options & ReliableOrderedChunker.MODE_BITMASK);
+            final boolean last = i == chunks.size() - 1;
+            assertEquals("End of message of chunk " + i, last,
+                (options & ReliableOrderedChunker.END_OF_MESSAGE) != 0);
+        }
+    }
+
+    private static List<byte[]> unchunk(final List<ByteBuffer> chunks) {
+        final List<byte[]> messages = new ArrayList<>();
+        final ReliableOrderedUnchunker unchunker = new ReliableOrderedUnchunker();
+        unchunker.onMessage(buffer -> {
+            final byte[] message = new byte[buffer.remaining()];
+            buffer.get(message);
+            messages.add(message);
+        });
+        for (final ByteBuffer chunk : chunks) {
+            unchunker.add(chunk);
+        }
+        assertEquals(0, unchunker.getBufferedLength());
+        return messages;
+    }
+
+    @Test
+    public void testRoundTrip() {
+        final int[] lengths = {
+            1, PAYLOAD_LENGTH - 1, PAYLOAD_LENGTH, PAYLOAD_LENGTH + 1, 3 * PAYLOAD_LENGTH,
+            1000,
+        };
+        for (final int length : lengths) {
+            final byte[] message = createMessage(length, length);
+            final ByteBuffer buffer = ByteBuffer.wrap(message);
+            final List<ByteBuffer> chunks = chunk(
+                new ReliableOrderedChunker(buffer, CHUNK_LENGTH));
+            assertEquals("Chunks of length " + length,
+                (length + PAYLOAD_LENGTH - 1) / PAYLOAD_LENGTH, chunks.size());
+            assertHeaders(chunks);
+            assertEquals("Message position must not be altered", 0, buffer.position());
+
+            final List<byte[]> messages = unchunk(chunks);
+            assertEquals(1, messages.size());
+            assertArrayEquals("Message of length " + length, message, messages.get(0));
+        }
+    }
+
+    @Test
+    public void testEmptyMessage() {
+        final List<ByteBuffer> chunks = chunk(
+            new ReliableOrderedChunker(ByteBuffer.allocate(0), CHUNK_LENGTH));
+        assertEquals(1, chunks.size());
+        assertEquals(ReliableOrderedChunker.HEADER_LENGTH, chunks.get(0).remaining());
+        assertHeaders(chunks);
+
+        final List<byte[]> messages = unchunk(chunks);
+        assertEquals(1, messages.size());
+        assertEquals(0, messages.get(0).length);
+    }
+
+    @Test
+    public void testSequentialMessages() {
+        final byte[][] messages = {
+            createMessage(40, 0), createMessage(0, 1), createMessage(5, 2),
+        };
+        final List<ByteBuffer> chunks = new ArrayList<>();
+        for (final byte[] message : messages) {
+            chunks.addAll(chunk(new ReliableOrderedChunker(
+                ByteBuffer.wrap(message), CHUNK_LENGTH)));
+        }
+        final List<byte[]> reassembled = unchunk(chunks);
+        assertEquals(messages.length, reassembled.size());
+        for (int i = 0; i < messages.length; ++i) {
+            assertArrayEquals(messages[i], reassembled.get(i));
+        }
+    }
+
+    @Test
+    public void testPrefix() {
+        final byte[] message = createMessage(50, 0);
+        final int[] prefixLengths = {
+            0, 1, PAYLOAD_LENGTH - 1, PAYLOAD_LENGTH, 2 * PAYLOAD_LENGTH + 3,
+        };
+        for (final int prefixLength : prefixLengths) {
+            final byte[] prefix = createMessage(prefixLength, 7);
+            final ByteBuffer prefixBuffer = ByteBuffer.wrap(prefix);
+            final ByteBuffer buffer = ByteBuffer.wrap(message);
+            final List<ByteBuffer> chunks = chunk(new ReliableOrderedChunker(
+                prefixBuffer, buffer, CHUNK_LENGTH, null));
+            final int length = prefixLength + message.length;
+            assertEquals("Chunks of prefix length " + prefixLength,
+                (length + PAYLOAD_LENGTH - 1) / PAYLOAD_LENGTH, chunks.size());
+            assertHeaders(chunks);
+            assertEquals("Prefix position must not be altered", 0, prefixBuffer.position());
+            assertEquals("Message position must not be altered", 0, buffer.position());
+
+            // The prefix precedes the message
+            final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            expected.write(prefix, 0, prefix.length);
+            expected.write(message, 0, message.length);
+            final List<byte[]> messages = unchunk(chunks);
+            assertEquals(1, messages.size());
+            assertArrayEquals("Prefix length " + prefixLength,
+                expected.toByteArray(), messages.get(0));
+        }
+    }
+
+    @Test
+    public void testPrefixOfEmptyMessage() {
+        final byte[] prefix = createMessage(PAYLOAD_LENGTH + 1, 0);
+        final List<ByteBuffer> chunks = chunk(new ReliableOrderedChunker(
+            ByteBuffer.wrap(prefix), ByteBuffer.allocate(0), CHUNK_LENGTH, null));
+        assertEquals(2, chunks.size());
+        assertHeaders(chunks);
+        assertArrayEquals(prefix, unchunk(chunks).get(0));
+    }
+
+    @Test
+    public void testPooledChunks() {
+        final BufferPool pool = new BufferPool(false, 4);
+        final byte[] message = createMessage(3 * PAYLOAD_LENGTH, 0);
+        final List<ByteBuffer> chunks = chunk(new ReliableOrderedChunker(
+            ByteBuffer.wrap(message), CHUNK_LENGTH, pool));
+        assertEquals(3, pool.getOutstanding());
+        assertHeaders(chunks);
+        assertArrayEquals(message, unchunk(chunks).get(0));
+    }
+
+    @Test
+    public void testNextAfterLastChunk() {
+        final ReliableOrderedChunker chunker = new ReliableOrderedChunker(
+            ByteBuffer.allocate(PAYLOAD_LENGTH), CHUNK_LENGTH);
+        chunker.next();
+        assertFalse(chunker.hasNext());
+        try {
+            chunker.next();
+            fail("Expected no further chunk");
+        } catch (NoSuchElementException expected) {
+            // Expected
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testChunkLengthMustExceedHeader() {
+        new ReliableOrderedChunker(ByteBuffer.allocate(1), ReliableOrderedChunker.HEADER_LENGTH);
+    }
+
+    @Test
+    public void testSegments() {
+        final byte[] message = createMessage(2 * PAYLOAD_LENGTH + 1, 0);
+        final List<ByteBuffer> chunks = chunk(new ReliableOrderedChunker(
+            ByteBuffer.wrap(message), CHUNK_LENGTH));
+        final ReliableOrderedUnchunker unchunker = new ReliableOrderedUnchunker();
+        unchunker.onMessage(buffer -> fail("Unexpected message"));
+        final ByteArrayOutputStream segments = new ByteArrayOutputStream();
+        final List<Boolean> endOfMessage = new ArrayList<>();
+        unchunker.onSegment((segment, last) -> {
+            final byte[] bytes = new byte[segment.remaining()];
+            segment.get(bytes);
+            segments.write(bytes, 0, bytes.length);
+            endOfMessage.add(last);
+        });
+        for (final ByteBuffer chunk : chunks) {
+            unchunker.add(chunk);
+            assertEquals(0, unchunker.getBufferedLength());
+        }
+        assertArrayEquals(message, segments.toByteArray());
+        assertEquals(3, endOfMessage.size());
+        assertFalse(endOfMessage.get(0));
+        assertFalse(endOfMessage.get(1));
+        assertTrue(endOfMessage.get(2));
+    }
+
+    @Test
+    public void testBufferedLength() {
+        final List<ByteBuffer> chunks = chunk(new ReliableOrderedChunker(
+            ByteBuffer.allocate(2 * PAYLOAD_LENGTH), CHUNK_LENGTH));
+        final ReliableOrderedUnchunker unchunker = new ReliableOrderedUnchunker();
+        unchunker.add(chunks.get(0));
+        assertEquals(PAYLOAD_LENGTH, unchunker.getBufferedLength());
+        unchunker.add(chunks.get(1));
+        assertEquals(0, unchunker.getBufferedLength());
+    }
+
+    @Test
+    public void testMessageLengthIsBounded() {
+        final ReliableOrderedUnchunker unchunker = new ReliableOrderedUnchunker(
+            2 * PAYLOAD_LENGTH);
+        final List<byte[]> messages = new ArrayList<>();
+        unchunker.onMessage(buffer -> {
+            final byte[] message = new byte[buffer.remaining()];
+            buffer.get(message);
+            messages.add(message);
+        });
+
+        // An oversized message is rejected once it exceeds the limit...
+        final List<ByteBuffer> chunks = chunk(new ReliableOrderedChunker(
+            ByteBuffer.allocate(4 * PAYLOAD_LENGTH), CHUNK_LENGTH));
+        unchunker.add(chunks.get(0));
+        unchunker.add(chunks.get(1));
+        try {
+            unchunker.add(chunks.get(2));
+            fail("Expected oversized message to be rejected");
+        } catch (IllegalArgumentException expected) {
+            // Expected
+        }
+        assertEquals(0, unchunker.getBufferedLength());
+
+        // ...its remaining chunks are discarded...
+        unchunker.add(chunks.get(3));
+        assertEquals(0, messages.size());
+
+        // ...and the next message is reassembled again
+        final byte[] message = createMessage(2 * PAYLOAD_LENGTH, 0);
+        for (final ByteBuffer chunk : chunk(new ReliableOrderedChunker(
+            ByteBuffer.wrap(message), CHUNK_LENGTH))) {
+            unchunker.add(chunk);
+        }
+        assertEquals(1, messages.size());
+        assertArrayEquals(message, messages.get(0));
+    }
+
+    @Test
+    public void testInvalidChunks() {
+        final ReliableOrderedUnchunker unchunker = new ReliableOrderedUnchunker();
+        final ByteBuffer[] invalid = {
+            // Too short
+            ByteBuffer.allocate(0),
+            // Unreliable/unordered mode bits
+            ByteBuffer.wrap(new byte[] { ReliableOrderedChunker.END_OF_MESSAGE, 1, 2 }),
+            // Partial mode bits
+            ByteBuffer.wrap(new byte[] { 0x02 | ReliableOrderedChunker.END_OF_MESSAGE, 1 }),
+        };
+        for (final ByteBuffer chunk : invalid) {
+            try {
+                unchunker.add(chunk);
+                fail("Expected invalid chunk to be rejected");
+            } catch (IllegalArgumentException expected) {
+                // Expected
+            }
+        }
+        assertEquals(0, unchunker.getBufferedLength());
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Acquires and releases buffers of various size classes.
+ */
+public class BufferPoolTest {
+    @Test
+    public void testSizeClassSelection() {
+        final BufferPool pool = new BufferPool(false, 4);
+        final int[][] cases = {
+            // length, expected capacity
+            { 0, 1024 },
+            { 1, 1024 },
+            { 1024, 1024 },
+            { 1025, 2048 },
+            { 65535, 65536 },
+            { 65536, 65536 },
+            { 65537, 131072 },
+            { 256 * 1024, 256 * 1024 },
+        };
+        for (final int[] c : cases) {
+            final ByteBuffer buffer = pool.acquire(c[0]);
+            assertEquals("Length " + c[0], c[1], buffer.capacity());
+            assertEquals(0, buffer.position());
+            assertEquals(c[0], buffer.limit());
+        }
+        assertEquals(cases.length, pool.getOutstanding());
+    }
+
+    @Test
+    public void testOversizedBuffersAreNotPooled() {
+        final BufferPool pool = new BufferPool(false, 4);
+        final ByteBuffer buffer = pool.acquire(256 * 1024 + 1);
+        assertEquals(256 * 1024 + 1, buffer.capacity());
+        assertEquals(0, pool.getOutstanding());
+        pool.release(buffer);
+        assertEquals(0, pool.getOutstanding());
+        assertNotSame(buffer, pool.acquire(256 * 1024 + 1));
+        assertEquals(2, pool.getMisses());
+    }
+
+    @Test
+    public void testReleasedBuffersAreReused() {
+        final BufferPool pool = new BufferPool(false, 4);
+        final ByteBuffer buffer = pool.acquire(3000);
+        buffer.put(new byte[100]);
+        pool.release(buffer);
+        assertEquals(0, pool.getOutstanding());
+
+        // Same size class, different length
+        final ByteBuffer reused = pool.acquire(2500);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(2500, reused.limit());
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+
+        // Different size class
+        assertNotSame(buffer, pool.acquire(5000));
+        assertEquals(2, pool.getMisses());
+    }
+
+    @Test
+    public void testIdleBuffersPerClassAreBounded() {
+        final BufferPool pool = new BufferPool(false, 2);
+        final ByteBuffer[] buffers = {
+            pool.acquire(1024), pool.acquire(1024), pool.acquire(1024),
+        };
+        for (final ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+        assertEquals(0, pool.getOutstanding());
+        for (int i = 0; i < buffers.length; ++i) {
+            pool.acquire(1024);
+        }
+        assertEquals(2, pool.getHits());
+        assertEquals(4, pool.getMisses());
+    }
+
+    @Test
+    public void testForeignBuffersAreIgnored() {
+        final BufferPool pool = new BufferPool(false, 4);
+        pool.acquire(1024);
+        pool.release(ByteBuffer.allocate(1000));
+        assertEquals(1, pool.getOutstanding());
+        assertEquals(1024, pool.acquire(1000).capacity());
+        assertEquals(0, pool.getHits());
+    }
+
+    @Test
+    public void testDirectBuffers() {
+        assertTrue(new BufferPool(true, 4).acquire(100).isDirect());
+        assertFalse(new BufferPool(false, 4).acquire(100).isDirect());
+    }
+}
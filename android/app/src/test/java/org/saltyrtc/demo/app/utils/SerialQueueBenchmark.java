@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Measures the throughput of enqueueing trivial operations from several
+ * producer threads at once.
+ *
+ * The serial queue is compared against a single-thread executor, which is
+ * what the queue replaced. Each invocation enqueues a fixed amount of
+ * operations split evenly across the producers and waits for the last of
+ * them, so the score is in operations per millisecond.
+ *
+ * Run via `./gradlew jmh -Pjmh.include=SerialQueueBenchmark`.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerialQueueBenchmark {
+    private static final int OPERATIONS = 48_000;
+
+    @Param({ "1", "4", "16" })
+    public int producers;
+
+    @Param({ "serial", "executor" })
+    public String queue;
+
+    private ExecutorService backingExecutor;
+    private ExecutorService producerExecutor;
+    private Function<Runnable, CompletableFuture<Void>> enqueue;
+    private CyclicBarrier start;
+    private long counter = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.producerExecutor = Executors.newFixedThreadPool(this.producers);
+        if ("serial".equals(this.queue)) {
+            this.backingExecutor = Executors.newFixedThreadPool(4);
+            final SerialQueue serialQueue = new SerialQueue(this.backingExecutor, null);
+            this.enqueue = serialQueue::enqueue;
+        } else {
+            this.backingExecutor = Executors.newSingleThreadExecutor();
+            this.enqueue = operation -> CompletableFuture.runAsync(
+                operation, this.backingExecutor);
+        }
+        this.start = new CyclicBarrier(this.producers);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.producerExecutor.shutdown();
+        this.backingExecutor.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPERATIONS)
+    public long enqueue() throws Exception {
+        final int operations = OPERATIONS / this.producers;
+        final Runnable operation = () -> this.counter++;
+        @SuppressWarnings("unchecked")
+        final CompletableFuture<CompletableFuture<Void>>[] last =
+            new CompletableFuture[this.producers];
+        for (int i = 0; i < this.producers; ++i) {
+            last[i] = CompletableFuture.supplyAsync(() -> {
+                try {
+                    this.start.await();
+                } catch (Exception error) {
+                    throw new IllegalStateException(error);
+                }
+                CompletableFuture<Void> result = null;
+                for (int n = 0; n < operations; ++n) {
+                    result = this.enqueue.apply(operation);
+                }
+                return result;
+            }, this.producerExecutor);
+        }
+        for (final CompletableFuture<CompletableFuture<Void>> future : last) {
+            future.get().get();
+        }
+        return this.counter;
+    }
+}
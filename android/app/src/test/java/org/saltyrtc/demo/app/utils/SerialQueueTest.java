@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs operations through a serial queue backed by a thread pool.
+ */
+public class SerialQueueTest {
+    private static final long TIMEOUT_MS = 10_000;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        this.executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        this.executor.shutdown();
+    }
+
+    @Test
+    public void testOrderingUnderContention() throws Exception {
+        final int producers = 16;
+        final int operations = 10_000;
+        final SerialQueue queue = new SerialQueue(this.executor, null);
+        final AtomicInteger running = new AtomicInteger(0);
+        final AtomicInteger overlaps = new AtomicInteger(0);
+
+        // Note: Not thread-safe on purpose, the queue must serialise access.
+        final List<List<Integer>> sequences = new ArrayList<>();
+        for (int i = 0; i < producers; ++i) {
+            sequences.add(new ArrayList<>());
+        }
+
+        // Start all producers at once
+        final ExecutorService producerExecutor = Executors.newFixedThreadPool(producers);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<CompletableFuture<Void>> last = new ArrayList<>();
+        for (int i = 0; i < producers; ++i) {
+            final List<Integer> sequence = sequences.get(i);
+            last.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException error) {
+                    throw new IllegalStateException(error);
+                }
+                CompletableFuture<Void> result = null;
+                for (int n = 0; n < operations; ++n) {
+                    final int value = n;
+                    result = queue.enqueue(() -> {
+                        if (running.incrementAndGet() != 1) {
+                            overlaps.incrementAndGet();
+                        }
+                        sequence.add(value);
+                        running.decrementAndGet();
+                    });
+                }
+                return result;
+            }, producerExecutor).thenCompose(result -> result));
+        }
+        start.countDown();
+        CompletableFuture.allOf(last.toArray(new CompletableFuture<?>[0]))
+            .get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        producerExecutor.shutdown();
+
+        // Each producer's operations ran exactly once and in submission order
+        assertEquals(0, overlaps.get());
+        for (final List<Integer> sequence : sequences) {
+            assertEquals(operations, sequence.size());
+            for (int n = 0; n < operations; ++n) {
+                assertEquals(n, (int) sequence.get(n));
+            }
+        }
+        assertEquals(0, queue.getPending());
+    }
+
+    @Test
+    public void testAsyncOperationSuspendsQueue() throws Exception {
+        final SerialQueue queue = new SerialQueue(this.executor, null);
+        final CompletableFuture<Void> pending = new CompletableFuture<>();
+        final List<String> order = new ArrayList<>();
+        final CompletableFuture<Void> first = queue.enqueueAsync(() -> {
+            order.add("async");
+            return pending;
+        });
+        final CompletableFuture<Void> second = queue.enqueue(() -> order.add("sync"));
+
+        // The second operation must wait for the first one's future
+        Thread.sleep(50);
+        assertFalse(first.isDone());
+        assertFalse(second.isDone());
+        assertEquals(2, queue.getPending());
+
+        pending.complete(null);
+        second.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertTrue(first.isDone());
+        assertEquals(2, order.size());
+        assertEquals("async", order.get(0));
+        assertEquals("sync", order.get(1));
+    }
+
+    @Test
+    public void testErrorsDoNotStopQueue() throws Exception {
+        final List<Throwable> errors = new ArrayList<>();
+        final SerialQueue queue = new SerialQueue(this.executor, errors::add);
+        final CompletableFuture<Void> failing = queue.enqueue(() -> {
+            throw new IllegalStateException("Boom");
+        });
+        final CompletableFuture<Void> failingAsync = queue.enqueueAsync(() -> {
+            final CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(new IllegalArgumentException("Bang"));
+            return future;
+        });
+        final CompletableFuture<Void> succeeding = queue.enqueue(() -> {});
+        succeeding.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        try {
+            failing.get();
+            fail("Expected operation to fail");
+        } catch (ExecutionException error) {
+            assertTrue(error.getCause() instanceof IllegalStateException);
+        }
+        try {
+            failingAsync.get();
+            fail("Expected operation to fail");
+        } catch (ExecutionException error) {
+            assertTrue(error.getCause() instanceof IllegalArgumentException);
+        }
+        assertEquals(2, errors.size());
+    }
+
+    @Test
+    public void testRejectedExecutionFailsOperations() {
+        this.executor.shutdown();
+        final SerialQueue queue = new SerialQueue(this.executor, null);
+        final CompletableFuture<Void> result = queue.enqueue(() -> {});
+        assertTrue(result.isCompletedExceptionally());
+        try {
+            result.join();
+            fail("Expected operation to fail");
+        } catch (Exception error) {
+            assertTrue(error.getCause() instanceof RejectedExecutionException);
+        }
+        assertEquals(0, queue.getPending());
+    }
+}
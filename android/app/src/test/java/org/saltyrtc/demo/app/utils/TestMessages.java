@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.utils;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Creates messages for tests and benchmarks.
+ */
+public final class TestMessages {
+    private TestMessages() {}
+
+    /**
+     * Create a message of the given length filled with a pattern derived
+     * from the seed.
+     */
+    @NonNull public static byte[] createMessage(final int length, final int seed) {
+        final byte[] message = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            message[i] = (byte) (i * 31 + seed);
+        }
+        return message;
+    }
+}
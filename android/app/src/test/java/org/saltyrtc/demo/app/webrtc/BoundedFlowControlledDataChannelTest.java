@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.webrtc;
+
+import org.junit.Test;
+import org.webrtc.DataChannel;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks the bounds of the signalling queue and the handling of failed
+ * writes.
+ */
+public class BoundedFlowControlledDataChannelTest {
+    private static final Executor DIRECT = Runnable::run;
+
+    private static DataChannel.Buffer createMessage(final int length) {
+        return new DataChannel.Buffer(ByteBuffer.allocate(length), true);
+    }
+
+    private static Throwable getError(final CompletableFuture<Void> future) throws Exception {
+        try {
+            future.get();
+        } catch (ExecutionException error) {
+            return error.getCause();
+        }
+        fail("Expected future to be rejected");
+        return null;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCapacityMustBePositive() {
+        new BoundedFlowControlledDataChannel(mock(DataChannel.class), DIRECT, 0, 1024, true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testByteBudgetMustBePositive() {
+        new BoundedFlowControlledDataChannel(mock(DataChannel.class), DIRECT, 4, 0, true);
+    }
+
+    @Test
+    public void testMessagesAreWrittenWhileReady() throws Exception {
+        final DataChannel dc = mock(DataChannel.class);
+        when(dc.send(any())).thenReturn(true);
+        final BoundedFlowControlledDataChannel bfcdc = new BoundedFlowControlledDataChannel(
+            dc, DIRECT, 2, 1024, true);
+        for (int i = 0; i < 4; ++i) {
+            bfcdc.writeAsync(createMessage(100)).get();
+        }
+        assertEquals(0, bfcdc.getQueuedMessages());
+        assertEquals(0, bfcdc.getQueuedBytes());
+    }
+
+    @Test
+    public void testOversizedMessageIsRejected() throws Exception {
+        final BoundedFlowControlledDataChannel bfcdc = new BoundedFlowControlledDataChannel(
+            mock(DataChannel.class), DIRECT, 2, 1024, false);
+        assertTrue(getError(bfcdc.writeAsync(createMessage(1025)))
+            instanceof BufferOverflowException);
+    }
+
+    @Test
+    public void testFailedWriteRejectsFurtherWrites() throws Exception {
+        final DataChannel dc = mock(DataChannel.class);
+        when(dc.send(any())).thenReturn(false);
+        final BoundedFlowControlledDataChannel bfcdc = new BoundedFlowControlledDataChannel(
+            dc, DIRECT, 2, 1024, true);
+
+        // The write fails synchronously, so the writer is rejected...
+        final Throwable error = getError(bfcdc.writeAsync(createMessage(100)));
+        assertTrue(error instanceof RuntimeException);
+        assertTrue(bfcdc.failure().isCompletedExceptionally());
+        assertEquals(0, bfcdc.getQueuedMessages());
+        assertEquals(0, bfcdc.getQueuedBytes());
+
+        // ...and so is every further writer
+        assertEquals(error, getError(bfcdc.writeAsync(createMessage(100))));
+    }
+
+    @Test
+    public void testFailedBackgroundWriteIsReported() throws Exception {
+        final DataChannel dc = mock(DataChannel.class);
+        when(dc.send(any())).thenReturn(true);
+        when(dc.bufferedAmount()).thenReturn(Long.MAX_VALUE);
+        final BoundedFlowControlledDataChannel bfcdc = new BoundedFlowControlledDataChannel(
+            dc, DIRECT, 2, 1024, false);
+
+        // Pause above the high water mark and queue a message
+        bfcdc.writeAsync(createMessage(100)).get();
+        bfcdc.writeAsync(createMessage(100)).get();
+        assertEquals(1, bfcdc.getQueuedMessages());
+        final CompletableFuture<Void> waiting = bfcdc.writeAsync(createMessage(1000));
+        assertFalse(waiting.isDone());
+
+        // Resume, but fail to write the queued message
+        when(dc.send(any())).thenReturn(false);
+        when(dc.bufferedAmount()).thenReturn(0L);
+        bfcdc.bufferedAmountChange();
+        assertTrue(bfcdc.failure().isCompletedExceptionally());
+        assertTrue(getError(waiting) instanceof RuntimeException);
+        assertEquals(0, bfcdc.getQueuedMessages());
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.webrtc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.saltyrtc.demo.app.transport.ChunkMode;
+import org.saltyrtc.demo.app.transport.CryptoMode;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the heap allocated per incoming chunk by the receive path of a
+ * data channel context, including its per-chunk logging.
+ *
+ * The chunk is streamed into a sink that discards it, so neither
+ * reassembly nor the message listener allocate. With debug and trace
+ * logging disabled (as in production), `gc.alloc.rate.norm` should be
+ * ~0 bytes per operation.
+ *
+ * As a control, `receiveWithUnguardedLogging` additionally builds the log
+ * message the way the receive path did before its logging was guarded.
+ *
+ * Run via `./gradlew jmh -Pjmh.include=ChunkAllocationBenchmark
+ * -Pjmh.args="-prof gc"`.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkAllocationBenchmark {
+    private LoopbackTransport transport;
+    private ByteBuffer chunk;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.transport = new LoopbackTransport(
+            CryptoMode.NONE, ChunkMode.RELIABLE_ORDERED, 0, 0, buffer -> {});
+        this.transport.receiver.receiveInto(DiscardingChannel::new);
+
+        // Use the first chunk of a two chunk message, so the message never
+        // ends and the sink is opened only once.
+        final int chunkLength = this.transport.sender.getChunkLength();
+        this.chunk = this.transport.sender.createChunker(
+            null, ByteBuffer.allocate(2 * chunkLength)).next();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.transport.close();
+    }
+
+    @Benchmark
+    public void receive() {
+        // Note: The receive path does not alter the chunk's position.
+        this.transport.receiver.receive(this.chunk);
+    }
+
+    @Benchmark
+    public void receiveWithUnguardedLogging(final Blackhole blackhole) {
+        blackhole.consume("Data channel " + this.transport.remoteChannel.label()
+            + " incoming chunk of length " + this.chunk.remaining());
+        this.transport.receiver.receive(this.chunk);
+    }
+
+    /**
+     * Discards everything written to it.
+     */
+    private static class DiscardingChannel implements WritableByteChannel {
+        @Override
+        public int write(final ByteBuffer source) {
+            final int length = source.remaining();
+            source.position(source.limit());
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+    }
+}
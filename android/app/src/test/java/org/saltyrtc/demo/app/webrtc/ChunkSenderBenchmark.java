@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.webrtc;
+
+import android.support.annotation.NonNull;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.saltyrtc.client.crypto.CryptoException;
+import org.saltyrtc.client.exceptions.OverflowException;
+import org.saltyrtc.demo.app.transport.ReliableOrderedChunker;
+import org.saltyrtc.demo.app.utils.TestMessages;
+import org.saltyrtc.tasks.webrtc.crypto.DataChannelCryptoContext;
+import org.webrtc.DataChannel;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of chunk-then-encrypt sending over a loopback
+ * data channel whose bandwidth is in the same order as the encryption
+ * throughput.
+ *
+ * Pipelining pays off once the data buffered between the water marks
+ * drains faster than a chunk can be encrypted. Otherwise, the buffer hides
+ * the encryption time. This is why the high water mark defaults to a single
+ * chunk here (the low water mark is a quarter of it).
+ *
+ * A depth of 0 encrypts each chunk on the write thread right before writing
+ * it (i.e. without a pipeline). Otherwise, encryption runs ahead on the
+ * crypto executor by up to `depth` chunks. The `bytes` counter is reported
+ * in bytes per second.
+ *
+ * Run via `./gradlew jmh -Pjmh.include=ChunkSenderBenchmark`.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkSenderBenchmark {
+    private static final int CHUNK_LENGTH = 64 * 1024;
+    private static final int HEADER_LENGTH = 1;
+    private static final int MESSAGE_LENGTH = 1024 * 1024;
+
+    @Param({ "0", "1", "4" })
+    public int depth;
+
+    // Link bandwidth in bytes per second
+    @Param({ "50000000" })
+    public long bandwidth;
+
+    // Simulated encryption cost (20 ns per byte is ~50 MB/s)
+    @Param({ "20" })
+    public long cryptoNanosPerByte;
+
+    @Param({ "65536" })
+    public long highWaterMark;
+
+    private ExecutorService writeExecutor;
+    private ExecutorService cryptoExecutor;
+    private LoopbackDataChannel localChannel;
+    private FlowControlledDataChannel fcdc;
+    private DataChannelCryptoContext crypto;
+    private ByteBuffer message;
+    private int chunkCount;
+    private final Semaphore received = new Semaphore(0);
+
+    /**
+     * Bytes delivered, reported as a rate.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long bytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.writeExecutor = Executors.newSingleThreadExecutor();
+        this.cryptoExecutor = Executors.newSingleThreadExecutor();
+        final LoopbackDataChannel[] channels = LoopbackDataChannel.createPair(
+            "benchmark", 1, this.bandwidth, 0);
+        this.localChannel = channels[0];
+        this.fcdc = new FlowControlledDataChannel(
+            this.localChannel, this.highWaterMark / 4, this.highWaterMark, this.writeExecutor);
+        this.localChannel.registerObserver(new DataChannel.Observer() {
+            @Override
+            public void onBufferedAmountChange(final long bufferedAmount) {
+                ChunkSenderBenchmark.this.fcdc.bufferedAmountChange();
+            }
+
+            @Override
+            public void onStateChange() {}
+
+            @Override
+            public void onMessage(@NonNull final DataChannel.Buffer buffer) {}
+        });
+        channels[1].registerObserver(new DataChannel.Observer() {
+            @Override
+            public void onBufferedAmountChange(final long bufferedAmount) {}
+
+            @Override
+            public void onStateChange() {}
+
+            @Override
+            public void onMessage(@NonNull final DataChannel.Buffer buffer) {
+                ChunkSenderBenchmark.this.received.release();
+            }
+        });
+        this.crypto = FakeCryptoContext.create(this.cryptoNanosPerByte);
+        this.message = ByteBuffer.wrap(TestMessages.createMessage(MESSAGE_LENGTH, 0));
+        final int payloadLength = CHUNK_LENGTH - HEADER_LENGTH;
+        this.chunkCount = (MESSAGE_LENGTH + payloadLength - 1) / payloadLength;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.localChannel.close();
+        this.writeExecutor.shutdown();
+        this.cryptoExecutor.shutdown();
+    }
+
+    @Benchmark
+    public void send(final Counters counters) throws Exception {
+        final Iterator<ByteBuffer> chunker = new ReliableOrderedChunker(
+            this.message, CHUNK_LENGTH);
+        final ChunkSender sender;
+        if (this.depth == 0) {
+            sender = new ChunkSender(
+                this.fcdc, new EncryptingIterator(chunker, this.crypto), this::write,
+                this.writeExecutor, null);
+        } else {
+            sender = new ChunkSender(
+                this.fcdc, chunker, this::write, this.writeExecutor,
+                this.crypto, this.cryptoExecutor, this.depth, null, null);
+        }
+        sender.start().get(10, TimeUnit.SECONDS);
+        if (!this.received.tryAcquire(this.chunkCount, 10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Chunks not received in time");
+        }
+        counters.bytes += MESSAGE_LENGTH;
+    }
+
+    private void write(@NonNull final ByteBuffer chunk) {
+        this.fcdc.write(new DataChannel.Buffer(chunk, true));
+    }
+
+    /**
+     * Encrypts each chunk when it is requested by the writer.
+     */
+    private static class EncryptingIterator implements Iterator<ByteBuffer> {
+        @NonNull private final Iterator<ByteBuffer> chunker;
+        @NonNull private final DataChannelCryptoContext crypto;
+
+        EncryptingIterator(
+            @NonNull final Iterator<ByteBuffer> chunker,
+            @NonNull final DataChannelCryptoContext crypto
+        ) {
+            this.chunker = chunker;
+            this.crypto = crypto;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.chunker.hasNext();
+        }
+
+        @Override
+        @NonNull public ByteBuffer next() {
+            try {
+                final byte[] chunk = DataChannelContext.bufferToBytes(this.chunker.next());
+                return ByteBuffer.wrap(this.crypto.encrypt(chunk).toBytes());
+            } catch (OverflowException | CryptoException error) {
+                throw new IllegalStateException(error);
+            }
+        }
+    }
+}
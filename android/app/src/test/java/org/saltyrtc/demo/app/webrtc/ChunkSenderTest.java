@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.webrtc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.saltyrtc.client.crypto.CryptoException;
+import org.saltyrtc.client.keystore.Box;
+import org.saltyrtc.demo.app.transport.ReliableOrderedChunker;
+import org.saltyrtc.demo.app.utils.BufferPool;
+import org.saltyrtc.demo.app.utils.TestMessages;
+import org.saltyrtc.tasks.webrtc.crypto.DataChannelCryptoContext;
+import org.webrtc.DataChannel;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Sends the chunks of a message via a loopback data channel, with and
+ * without the encryption pipeline.
+ */
+public class ChunkSenderTest {
+    private static final long TIMEOUT_MS = 10_000;
+    private static final int CHUNK_LENGTH = 1024;
+    private static final int HEADER_LENGTH = 1;
+
+    private final BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+    private final BufferPool pool = new BufferPool(false, 8);
+    private ExecutorService executor;
+    private LoopbackDataChannel localChannel;
+    private FlowControlledDataChannel fcdc;
+
+    @Before
+    public void setUp() {
+        this.executor = Executors.newCachedThreadPool();
+        final LoopbackDataChannel[] channels = LoopbackDataChannel.createPair(
+            "chunks", 1, 4 * 1024 * 1024, 0);
+        this.localChannel = channels[0];
+        this.fcdc = new FlowControlledDataChannel(
+            this.localChannel, 8 * CHUNK_LENGTH, 32 * CHUNK_LENGTH, this.executor);
+        this.localChannel.registerObserver(new Observer() {
+            @Override
+            public void onBufferedAmountChange(final long bufferedAmount) {
+                ChunkSenderTest.this.fcdc.bufferedAmountChange();
+            }
+        });
+        channels[1].registerObserver(new Observer() {
+            @Override
+            public void onMessage(final DataChannel.Buffer buffer) {
+                final byte[] chunk = new byte[buffer.data.remaining()];
+                buffer.data.get(chunk);
+                ChunkSenderTest.this.received.add(chunk);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        this.localChannel.close();
+        this.executor.shutdown();
+    }
+
+    private Consumer<ByteBuffer> writer() {
+        return chunk -> this.fcdc.write(new DataChannel.Buffer(chunk, true));
+    }
+
+    /**
+     * Take the chunks of a message and concatenate their payloads.
+     */
+    private byte[] takeMessage(final DataChannelCryptoContext crypto) throws Exception {
+        final ByteArrayOutputStream message = new ByteArrayOutputStream();
+        while (true) {
+            byte[] chunk = this.received.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertNotNull("Chunk not received in time", chunk);
+            if (crypto != null) {
+                chunk = crypto.decrypt(new Box(
+                    ByteBuffer.wrap(chunk), DataChannelCryptoContext.NONCE_LENGTH));
+            }
+            message.write(chunk, HEADER_LENGTH,
+                chunk.length - HEADER_LENGTH);
+            if ((chunk[0] & 0x01) != 0) {
+                return message.toByteArray();
+            }
+        }
+    }
+
+    @Test
+    public void testWritesChunksInOrder() throws Exception {
+        final byte[] message = TestMessages.createMessage(100 * CHUNK_LENGTH + 3, 0);
+        final ChunkSender sender = new ChunkSender(
+            this.fcdc,
+            new ReliableOrderedChunker(ByteBuffer.wrap(message), CHUNK_LENGTH, this.pool),
+            this.writer(), this.executor, this.pool);
+        sender.start().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertArrayEquals(message, this.takeMessage(null));
+        assertEquals(0, this.pool.getOutstanding());
+        assertTrue("Flow control did not pause", this.fcdc.getTimePausedNanos() > 0);
+    }
+
+    @Test
+    public void testPipelineEncryptsChunksInOrder() throws Exception {
+        final DataChannelCryptoContext crypto = FakeCryptoContext.create();
+        final byte[] message = TestMessages.createMessage(100 * CHUNK_LENGTH + 3, 1);
+        final ChunkSender sender = new ChunkSender(
+            this.fcdc,
+            new ReliableOrderedChunker(ByteBuffer.wrap(message), CHUNK_LENGTH, this.pool),
+            this.writer(), this.executor, crypto, this.executor, 4, this.pool, null);
+        sender.start().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertArrayEquals(message, this.takeMessage(FakeCryptoContext.create()));
+        assertEquals(0, this.pool.getOutstanding());
+    }
+
+    @Test
+    public void testPipelineRunsAheadUpToDepth() throws Exception {
+        final int depth = 3;
+        final AtomicInteger encrypted = new AtomicInteger(0);
+        final AtomicInteger written = new AtomicInteger(0);
+        final AtomicInteger maxLead = new AtomicInteger(0);
+        final DataChannelCryptoContext fake = FakeCryptoContext.create();
+        final DataChannelCryptoContext crypto = mock(DataChannelCryptoContext.class);
+        when(crypto.encrypt(any(byte[].class))).thenAnswer(invocation -> {
+            encrypted.incrementAndGet();
+            return fake.encrypt(invocation.getArgument(0));
+        });
+
+        // Write slowly, so the encryption stage fills the pipeline
+        final Consumer<ByteBuffer> writer = chunk -> {
+            maxLead.accumulateAndGet(encrypted.get() - written.get(), Math::max);
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException error) {
+                Thread.currentThread().interrupt();
+            }
+            written.incrementAndGet();
+            this.writer().accept(chunk);
+        };
+        final byte[] message = TestMessages.createMessage(30 * CHUNK_LENGTH, 2);
+        final ChunkSender sender = new ChunkSender(
+            this.fcdc, new ReliableOrderedChunker(ByteBuffer.wrap(message), CHUNK_LENGTH),
+            writer, this.executor, crypto, this.executor, depth, null, null);
+        sender.start().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertArrayEquals(message, this.takeMessage(fake));
+
+        // Note: The chunk being written has already left the pipeline.
+        assertTrue("Lead " + maxLead.get(), maxLead.get() <= depth + 1);
+        assertTrue("Encryption did not run ahead", maxLead.get() > 1);
+    }
+
+    @Test
+    public void testPipelineReadsChunksOnWriteExecutor() throws Exception {
+        final ExecutorService writeExecutor = Executors.newSingleThreadExecutor(
+            runnable -> new Thread(runnable, "write"));
+        final byte[] message = TestMessages.createMessage(30 * CHUNK_LENGTH, 4);
+        final Iterator<ByteBuffer> chunker = new ReliableOrderedChunker(
+            ByteBuffer.wrap(message), CHUNK_LENGTH);
+        final AtomicInteger foreignReads = new AtomicInteger(0);
+
+        // Note: Reading from the chunker may block (e.g. for streamed
+        //       messages), so the crypto executor must never do it.
+        final Iterator<ByteBuffer> observed = new Iterator<ByteBuffer>() {
+            @Override
+            public boolean hasNext() {
+                this.check();
+                return chunker.hasNext();
+            }
+
+            @Override
+            public ByteBuffer next() {
+                this.check();
+                return chunker.next();
+            }
+
+            private void check() {
+                if (!"write".equals(Thread.currentThread().getName())) {
+                    foreignReads.incrementAndGet();
+                }
+            }
+        };
+        try {
+            final ChunkSender sender = new ChunkSender(
+                this.fcdc, observed, this.writer(), writeExecutor,
+                FakeCryptoContext.create(), this.executor, 4, null, null);
+            sender.start().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertArrayEquals(message, this.takeMessage(FakeCryptoContext.create()));
+            assertEquals(0, foreignReads.get());
+        } finally {
+            writeExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void testEncryptionFailureRejects() throws Exception {
+        final DataChannelCryptoContext fake = FakeCryptoContext.create();
+        final AtomicInteger calls = new AtomicInteger(0);
+        final DataChannelCryptoContext crypto = mock(DataChannelCryptoContext.class);
+        when(crypto.encrypt(any(byte[].class))).thenAnswer(invocation -> {
+            if (calls.incrementAndGet() == 3) {
+                throw new CryptoException("Boom");
+            }
+            return fake.encrypt(invocation.getArgument(0));
+        });
+        final byte[] message = TestMessages.createMessage(10 * CHUNK_LENGTH, 3);
+        final ChunkSender sender = new ChunkSender(
+            this.fcdc, new ReliableOrderedChunker(ByteBuffer.wrap(message), CHUNK_LENGTH),
+            this.writer(), this.executor, crypto, this.executor, 4, null, null);
+        final CompletableFuture<Void> done = sender.start();
+        try {
+            done.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            fail("Expected encryption to fail");
+        } catch (ExecutionException error) {
+            assertTrue(error.getCause() instanceof CryptoException);
+        }
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void testRejectsWithoutExecutor() throws Exception {
+        final Iterator<ByteBuffer> chunker = new ReliableOrderedChunker(
+            ByteBuffer.allocate(10), CHUNK_LENGTH);
+        final ChunkSender sender = new ChunkSender(
+            this.fcdc, chunker, this.writer(), this.executor,
+            FakeCryptoContext.create(), null, 4, null, null);
+        assertTrue(sender.start().isCompletedExceptionally());
+    }
+
+    /**
+     * Observer with no-op defaults.
+     */
+    private abstract static class Observer implements DataChannel.Observer {
+        @Override
+        public void onBufferedAmountChange(final long bufferedAmount) {}
+
+        @Override
+        public void onStateChange() {}
+
+        @Override
+        public void onMessage(final DataChannel.Buffer buffer) {}
+    }
+}
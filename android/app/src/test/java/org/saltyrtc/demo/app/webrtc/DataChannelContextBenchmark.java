@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.webrtc;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.saltyrtc.demo.app.transport.ChunkMode;
+import org.saltyrtc.demo.app.transport.CryptoMode;
+import org.saltyrtc.demo.app.utils.TestMessages;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures sending a message end to end through a pair of data channel
+ * contexts connected via loopback data channels.
+ *
+ * - Throughput: The `bytes` counter is reported in bytes per second.
+ * - Latency: Sample time mode reports the p50/p99 time from handing a
+ *   message to the sender until the receiver has reassembled it.
+ * - Allocation rate: Run with `-prof gc`.
+ *
+ * Note: The fake crypto context scrambles the data rather than encrypting
+ *       it, so this measures the transport's overhead, not the cost of
+ *       NaCl.
+ *
+ * Run via `./gradlew jmh -Pjmh.include=DataChannelContextBenchmark`.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataChannelContextBenchmark {
+    @Param({ "NONE", "CHUNK_THEN_ENCRYPT", "ENCRYPT_THEN_CHUNK" })
+    public CryptoMode cryptoMode;
+
+    @Param({ "RELIABLE_ORDERED", "UNRELIABLE_UNORDERED" })
+    public ChunkMode chunkMode;
+
+    @Param({ "1024", "65536", "1048576" })
+    public int messageLength;
+
+    // Link bandwidth in bytes per second (0 for unlimited)
+    @Param({ "0" })
+    public long bandwidth;
+
+    // One-way link latency in milliseconds
+    @Param({ "0" })
+    public long latencyMs;
+
+    private LoopbackTransport transport;
+    private ByteBuffer message;
+    private final Semaphore received = new Semaphore(0);
+
+    /**
+     * Bytes delivered, reported as a rate.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long bytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.transport = new LoopbackTransport(
+            this.cryptoMode, this.chunkMode, this.bandwidth, this.latencyMs,
+            buffer -> this.received.release());
+        this.message = ByteBuffer.wrap(TestMessages.createMessage(this.messageLength, 0));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.transport.close();
+    }
+
+    @Benchmark
+    public void sendAndReceive(final Counters counters) throws Exception {
+        this.transport.sender.sendAsync(this.message.duplicate());
+        if (!this.received.tryAcquire(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Message not received in time");
+        }
+        counters.bytes += this.messageLength;
+    }
+}
@@ -0,0 +1,483 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.webrtc;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.saltyrtc.demo.app.transport.ChunkMode;
+import org.saltyrtc.demo.app.transport.CryptoMode;
+import org.saltyrtc.demo.app.transport.MessageCompressor;
+import org.saltyrtc.demo.app.transport.MessageHeader;
+import org.saltyrtc.demo.app.utils.TestMessages;
+import org.saltyrtc.tasks.webrtc.crypto.DataChannelCryptoContext;
+import org.webrtc.DataChannel;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Sends messages end to end through a pair of data channel contexts
+ * connected via loopback data channels.
+ */
+@RunWith(Parameterized.class)
+public class DataChannelContextTest {
+    private static final long TIMEOUT_MS = 10_000;
+
+    @Parameterized.Parameter(0)
+    public CryptoMode cryptoMode;
+
+    @Parameterized.Parameter(1)
+    public ChunkMode chunkMode;
+
+    private final BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+    private LoopbackTransport transport;
+
+    @Parameterized.Parameters(name = "{0}, {1}")
+    public static Collection<Object[]> parameters() {
+        final List<Object[]> parameters = new ArrayList<>();
+        for (final CryptoMode cryptoMode : CryptoMode.values()) {
+            for (final ChunkMode chunkMode : ChunkMode.values()) {
+                parameters.add(new Object[] { cryptoMode, chunkMode });
+            }
+        }
+        return parameters;
+    }
+
+    private void connect(final long bytesPerSecond, final long latencyMs) throws Exception {
+        this.transport = new LoopbackTransport(
+            this.cryptoMode, this.chunkMode, bytesPerSecond, latencyMs, buffer -> {
+                final byte[] message = new byte[buffer.remaining()];
+                buffer.get(message);
+                this.received.add(message);
+            });
+    }
+
+    @After
+    public void tearDown() {
+        if (this.transport != null) {
+            this.transport.close();
+        }
+    }
+
+    private byte[] takeMessage() throws InterruptedException {
+        final byte[] message = this.received.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("Message not received in time", message);
+        return message;
+    }
+
+    /**
+     * Precede a message with a header (as the sender does in all but the
+     * legacy modes) for chunks fed to the receiver directly.
+     */
+    private ByteBuffer frame(final byte[] message, final byte flags) {
+        if (!DataChannelContext.isFramed(this.cryptoMode, this.chunkMode)) {
+            return ByteBuffer.wrap(message);
+        }
+        final ByteBuffer framed = ByteBuffer.allocate(MessageHeader.LENGTH + message.length);
+        framed.put(flags);
+        framed.put(message);
+        framed.flip();
+        return framed;
+    }
+
+    @Test
+    public void testMessagesOfVariousLengths() throws Exception {
+        this.connect(0, 0);
+        final int chunkLength = this.transport.sender.getChunkLength();
+        final int[] lengths = {
+            1, 100, chunkLength - 1, chunkLength, chunkLength + 1, 5 * chunkLength + 17,
+        };
+        for (int i = 0; i < lengths.length; ++i) {
+            final byte[] message = TestMessages.createMessage(lengths[i], i);
+            this.transport.sender.sendAsync(ByteBuffer.wrap(message))
+                .get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertArrayEquals("Length " + lengths[i], message, this.takeMessage());
+        }
+    }
+
+    @Test
+    public void testMessagesArriveInOrder() throws Exception {
+        this.connect(0, 1);
+        final List<byte[]> messages = new ArrayList<>();
+        CompletableFuture<?> last = null;
+        for (int i = 0; i < 50; ++i) {
+            final byte[] message = TestMessages.createMessage(1000 + i * 997, i);
+            messages.add(message);
+            last = this.transport.sender.sendAsync(ByteBuffer.wrap(message));
+        }
+        assertNotNull(last);
+        last.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        for (final byte[] message : messages) {
+            assertArrayEquals(message, this.takeMessage());
+        }
+    }
+
+    @Test
+    public void testFlowControlPausesAndResumes() throws Exception {
+        // Note: 3 MiB at 32 MiB/s takes ~100 ms, well above the high water mark.
+        this.connect(32 * 1024 * 1024, 0);
+        final byte[] message = TestMessages.createMessage(3 * 1024 * 1024, 7);
+        this.transport.sender.sendAsync(ByteBuffer.wrap(message))
+            .get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertArrayEquals(message, this.takeMessage());
+        assertTrue("Flow control did not pause",
+            this.transport.sender.fcdc.getTimePausedNanos() > 0);
+        assertTrue("Buffered amount exceeds high water mark",
+            this.transport.localChannel.bufferedAmount()
+                <= FlowControlledDataChannel.DEFAULT_HIGH_WATER_MARK);
+    }
+
+    @Test
+    public void testStreamedMessage() throws Exception {
+        assumeTrue(this.cryptoMode != CryptoMode.ENCRYPT_THEN_CHUNK);
+        this.connect(0, 0);
+        final byte[] message = TestMessages.createMessage(
+            3 * this.transport.sender.getChunkLength() + 5, 3);
+        this.transport.sender.sendAsync(new ByteArrayInputStream(message))
+            .get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertArrayEquals(message, this.takeMessage());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        this.connect(0, 0);
+        final byte[] message = TestMessages.createMessage(
+            2 * this.transport.sender.getChunkLength(), 0);
+        this.transport.sender.sendAsync(ByteBuffer.wrap(message))
+            .get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        this.takeMessage();
+        final TransportMetrics.Snapshot sent = this.transport.sender.getMetrics().snapshot();
+        final TransportMetrics.Snapshot received =
+            this.transport.receiver.getMetrics().snapshot();
+        assertEquals(1, sent.messagesSent);
+        assertEquals(1, received.messagesReceived);
+        assertEquals(sent.chunksSent, received.chunksReceived);
+        assertEquals(sent.bytesSent, received.bytesReceived);
+        assertEquals(this.cryptoMode != CryptoMode.NONE, sent.encryptCount > 0);
+    }
+
+    @Test
+    public void testReassemblyLength() throws Exception {
+        // Note: Chunks are fed to the receiver directly, so they must not be
+        //       encrypted.
+        assumeTrue(this.cryptoMode == CryptoMode.NONE);
+        this.connect(0, 0);
+        final DataChannelContext receiver = this.transport.receiver;
+        final int chunkLength = this.transport.sender.getChunkLength();
+        final byte[] first = TestMessages.createMessage(3 * chunkLength, 0);
+        final byte[] second = TestMessages.createMessage(2 * chunkLength, 1);
+        final Iterator<ByteBuffer> firstChunks =
+            this.transport.sender.createChunker(null, this.frame(first, MessageHeader.PLAIN));
+        final Iterator<ByteBuffer> secondChunks =
+            this.transport.sender.createChunker(null, this.frame(second, MessageHeader.PLAIN));
+
+        // Partially received message is accounted for
+        receiver.receive(firstChunks.next());
+        final long length = receiver.getMetrics().snapshot().reassemblyLength;
+        assertTrue(length > 0);
+        assertTrue(length <= chunkLength);
+
+        // Unordered mode may interleave messages
+        if (this.chunkMode == ChunkMode.UNRELIABLE_UNORDERED) {
+            receiver.receive(secondChunks.next());
+            assertTrue(receiver.getMetrics().snapshot().reassemblyLength > length);
+            while (secondChunks.hasNext()) {
+                receiver.receive(secondChunks.next());
+            }
+            assertArrayEquals(second, this.takeMessage());
+            assertEquals(length, receiver.getMetrics().snapshot().reassemblyLength);
+        }
+
+        // Completed message is no longer accounted for
+        while (firstChunks.hasNext()) {
+            receiver.receive(firstChunks.next());
+        }
+        assertArrayEquals(first, this.takeMessage());
+        assertEquals(0, receiver.getMetrics().snapshot().reassemblyLength);
+    }
+
+    @Test
+    public void testStaleReassemblyIsEvicted() throws Exception {
+        assumeTrue(this.cryptoMode == CryptoMode.NONE);
+        assumeTrue(this.chunkMode == ChunkMode.UNRELIABLE_UNORDERED);
+        this.connect(0, 0);
+        final DataChannelContext receiver = this.transport.receiver;
+        final int chunkLength = this.transport.sender.getChunkLength();
+
+        // A message of which the remaining chunks have been lost
+        receiver.receive(this.transport.sender.createChunker(
+            null, ByteBuffer.allocate(2 * chunkLength)).next());
+        assertTrue(receiver.getMetrics().snapshot().reassemblyLength > 0);
+
+        // Fresh messages are kept, stale ones are evicted
+        receiver.collectUnreliableGarbage(TimeUnit.MINUTES.toMillis(1));
+        assertTrue(receiver.getMetrics().snapshot().reassemblyLength > 0);
+        receiver.collectUnreliableGarbage(0);
+        assertEquals(0, receiver.getMetrics().snapshot().reassemblyLength);
+    }
+
+    @Test
+    public void testChunksFitMaxMessageSize() throws Exception {
+        this.connect(0, 0);
+        final int maxMessageSize = 16 * 1024;
+        this.transport.sender.setMaxMessageSize(maxMessageSize);
+        final byte[] message = TestMessages.createMessage(5 * maxMessageSize, 1);
+        final List<Integer> chunkLengths = new ArrayList<>();
+        this.transport.remoteChannel.registerObserver(new LengthRecorder(
+            this.transport.receiver, chunkLengths));
+        this.transport.sender.sendAsync(ByteBuffer.wrap(message))
+            .get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertArrayEquals(message, this.takeMessage());
+        for (final int length : chunkLengths) {
+            assertTrue("Chunk length " + length, length <= maxMessageSize);
+        }
+        assertEquals(
+            Arrays.toString(chunkLengths.toArray()), maxMessageSize, (int) chunkLengths.get(0));
+    }
+
+    @Test
+    public void testSealedChunksFitMaxMessageSizeWithoutCopy() throws Exception {
+        assumeTrue(this.cryptoMode == CryptoMode.CHUNK_THEN_ENCRYPT);
+        this.connect(0, 0);
+        final int maxMessageSize = 16 * 1024;
+        this.transport.sender.setMaxMessageSize(maxMessageSize);
+        final ByteBuffer message = ByteBuffer.wrap(
+            TestMessages.createMessage(5 * maxMessageSize + 3, 2));
+        final int overhead = DataChannelCryptoContext.NONCE_LENGTH + 16;
+        final Iterator<ByteBuffer> chunker = this.transport.sender.createChunker(null, message);
+        boolean first = true;
+        while (chunker.hasNext()) {
+            final ByteBuffer chunk = chunker.next();
+            final int length = chunk.remaining();
+
+            // The chunk's array is handed to the crypto context as is
+            assertSame(chunk.array(), DataChannelContext.bufferToBytes(chunk));
+            assertTrue("Sealed length " + (length + overhead),
+                length + overhead <= maxMessageSize);
+            if (first) {
+                assertEquals(maxMessageSize, length + overhead);
+                first = false;
+            }
+        }
+    }
+
+    @Test
+    public void testCoalescedMessagesAreFramedConsistently() throws Exception {
+        assumeTrue(DataChannelContext.isFramed(this.cryptoMode, this.chunkMode));
+        this.connect(0, 0);
+
+        // Note: The receiver splits batches without enabling coalescing.
+        this.transport.sender.enableCoalescing(5, 4096);
+
+        // Small (batched) messages, a message too large for a batch and a
+        // message sent directly from an enqueued operation
+        final List<byte[]> messages = new ArrayList<>();
+        for (int i = 0; i < 20; ++i) {
+            messages.add(TestMessages.createMessage(i * 10, i));
+        }
+        final byte[] large = TestMessages.createMessage(
+            5 * this.transport.sender.getChunkLength() + 3, 20);
+        final byte[] direct = TestMessages.createMessage(100, 21);
+        for (final byte[] message : messages) {
+            this.transport.sender.sendAsync(ByteBuffer.wrap(message));
+        }
+        this.transport.sender.sendAsync(ByteBuffer.wrap(large));
+        this.transport.sender.enqueueAsync(
+            () -> this.transport.sender.send(ByteBuffer.wrap(direct)))
+            .get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        messages.add(large);
+        messages.add(direct);
+        for (final byte[] message : messages) {
+            assertArrayEquals(message, this.takeMessage());
+        }
+    }
+
+    @Test
+    public void testStreamingIsRejectedWhileCoalescing() throws Exception {
+        assumeTrue(DataChannelContext.isFramed(this.cryptoMode, this.chunkMode));
+        this.connect(0, 0);
+        this.transport.sender.enableCoalescing(5, 4096);
+        final CompletableFuture<?> future = this.transport.sender.sendAsync(
+            new ByteArrayInputStream(new byte[10]));
+        try {
+            future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            fail("Expected streaming to be rejected");
+        } catch (ExecutionException error) {
+            assertTrue(error.getCause() instanceof IllegalStateException);
+        }
+
+        // Coalescing only applies to outgoing messages, so incoming
+        // messages can still be streamed
+        assumeTrue(this.cryptoMode != CryptoMode.ENCRYPT_THEN_CHUNK);
+        assumeTrue(this.chunkMode == ChunkMode.RELIABLE_ORDERED);
+        this.transport.sender.receiveInto(DiscardingChannel::new);
+    }
+
+    @Test
+    public void testCoalescingAndCompressionAreRejectedInLegacyModes() throws Exception {
+        assumeFalse(DataChannelContext.isFramed(this.cryptoMode, this.chunkMode));
+        this.connect(0, 0);
+        try {
+            this.transport.sender.enableCoalescing(5, 4096);
+            fail("Expected coalescing to be rejected");
+        } catch (IllegalStateException expected) {
+            // Expected
+        }
+        try {
+            this.transport.sender.enableCompression(Deflater.DEFAULT_COMPRESSION);
+            fail("Expected compression to be rejected");
+        } catch (IllegalStateException expected) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testCompressedMessagesRoundTrip() throws Exception {
+        assumeTrue(DataChannelContext.isFramed(this.cryptoMode, this.chunkMode));
+        this.connect(0, 0);
+        this.transport.sender.enableCompression(Deflater.DEFAULT_COMPRESSION);
+        this.transport.receiver.enableCompression(Deflater.DEFAULT_COMPRESSION);
+
+        // A compressible, an incompressible (sent uncompressed) and a batch of
+        // compressible messages
+        final byte[] compressible = TestMessages.createMessage(
+            5 * this.transport.sender.getChunkLength(), 0);
+        final byte[] incompressible = new byte[1000];
+        new Random(0).nextBytes(incompressible);
+        this.transport.sender.sendAsync(ByteBuffer.wrap(compressible));
+        this.transport.sender.sendAsync(ByteBuffer.wrap(incompressible))
+            .get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        this.transport.sender.enableCoalescing(5, 4096);
+        final List<byte[]> batched = new ArrayList<>();
+        for (int i = 1; i < 10; ++i) {
+            batched.add(TestMessages.createMessage(100, i));
+            this.transport.sender.sendAsync(ByteBuffer.wrap(batched.get(i - 1)));
+        }
+        assertArrayEquals(compressible, this.takeMessage());
+        assertArrayEquals(incompressible, this.takeMessage());
+        for (final byte[] message : batched) {
+            assertArrayEquals(message, this.takeMessage());
+        }
+        final MessageCompressor compressor = this.transport.sender.getCompressor();
+        assertNotNull(compressor);
+        assertEquals(1, compressor.getSkippedMessages());
+    }
+
+    @Test
+    public void testCompressedMessagesAreRejectedWithoutCompression() throws Exception {
+        assumeTrue(DataChannelContext.isFramed(this.cryptoMode, this.chunkMode));
+        this.connect(0, 0);
+        this.transport.sender.enableCompression(Deflater.DEFAULT_COMPRESSION);
+
+        // The compressed message is discarded, the uncompressed one arrives
+        final byte[] incompressible = new byte[1000];
+        new Random(0).nextBytes(incompressible);
+        this.transport.sender.sendAsync(ByteBuffer.wrap(TestMessages.createMessage(1000, 0)));
+        this.transport.sender.sendAsync(ByteBuffer.wrap(incompressible))
+            .get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertArrayEquals(incompressible, this.takeMessage());
+        assertNull(this.received.poll());
+    }
+
+    @Test
+    public void testUnknownHeaderFlagsAreRejected() throws Exception {
+        // Note: Chunks are fed to the receiver directly, so they must not be
+        //       encrypted.
+        assumeTrue(this.cryptoMode == CryptoMode.NONE);
+        this.connect(0, 0);
+        final DataChannelContext receiver = this.transport.receiver;
+        final byte[] message = TestMessages.createMessage(100, 0);
+        final Iterator<ByteBuffer> invalid =
+            this.transport.sender.createChunker(null, this.frame(message, (byte) 0x80));
+        while (invalid.hasNext()) {
+            receiver.receive(invalid.next());
+        }
+        assertNull(this.received.poll());
+
+        // Further messages are still received
+        final Iterator<ByteBuffer> valid =
+            this.transport.sender.createChunker(null, this.frame(message, MessageHeader.PLAIN));
+        while (valid.hasNext()) {
+            receiver.receive(valid.next());
+        }
+        assertArrayEquals(message, this.takeMessage());
+    }
+
+    /**
+     * A sink that discards everything.
+     */
+    private static class DiscardingChannel implements WritableByteChannel {
+        @Override
+        public int write(final ByteBuffer source) {
+            final int length = source.remaining();
+            source.position(source.limit());
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    /**
+     * Records the lengths of incoming chunks before handing them to the
+     * data channel context.
+     */
+    private static class LengthRecorder implements DataChannel.Observer {
+        private final DataChannelContext dcc;
+        private final List<Integer> lengths;
+
+        LengthRecorder(final DataChannelContext dcc, final List<Integer> lengths) {
+            this.dcc = dcc;
+            this.lengths = lengths;
+        }
+
+        @Override
+        public void onBufferedAmountChange(final long bufferedAmount) {}
+
+        @Override
+        public void onStateChange() {}
+
+        @Override
+        public void onMessage(final DataChannel.Buffer buffer) {
+            synchronized (this.lengths) {
+                this.lengths.add(buffer.data.remaining());
+            }
+            this.dcc.receive(buffer.data);
+        }
+    }
+}
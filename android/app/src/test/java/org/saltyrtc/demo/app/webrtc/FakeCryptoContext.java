@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.webrtc;
+
+import android.support.annotation.NonNull;
+
+import org.saltyrtc.client.exceptions.ValidationError;
+import org.saltyrtc.client.keystore.Box;
+import org.saltyrtc.tasks.webrtc.crypto.DataChannelCryptoContext;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * A stand-in for the task's data channel crypto context that does not
+ * require a signalling session.
+ *
+ * It produces boxes of the same size as the real one (24 byte nonce and 16
+ * byte MAC), scrambles the data and detects corruption via a checksum in
+ * place of the MAC. It provides no security at all.
+ */
+final class FakeCryptoContext {
+    private static final int MAC_LENGTH = 16;
+    private static final byte KEY = 0x5a;
+
+    private FakeCryptoContext() {}
+
+    /**
+     * Create a fake crypto context. Boxes created by any fake crypto context
+     * can be opened by any other fake crypto context.
+     */
+    @NonNull static DataChannelCryptoContext create() throws Exception {
+        return create(0);
+    }
+
+    /**
+     * Create a fake crypto context that burns CPU time on encryption to
+     * simulate the cost of NaCl on a slow device.
+     *
+     * @param nanosPerByte The time spent per byte encrypted.
+     */
+    @NonNull static DataChannelCryptoContext create(final long nanosPerByte) throws Exception {
+        final AtomicLong counter = new AtomicLong(0);
+        // Note: Stub-only mocks do not record invocations, so they do not
+        //       accumulate memory in long-running benchmarks.
+        final DataChannelCryptoContext crypto = mock(
+            DataChannelCryptoContext.class, withSettings().stubOnly());
+        when(crypto.encrypt(any(byte[].class))).thenAnswer(invocation -> {
+            final byte[] data = invocation.getArgument(0);
+            spin(data.length * nanosPerByte);
+            return encrypt(data, counter.incrementAndGet());
+        });
+        when(crypto.decrypt(any(Box.class))).thenAnswer(invocation ->
+            decrypt(invocation.getArgument(0)));
+        return crypto;
+    }
+
+    @NonNull private static Box encrypt(@NonNull final byte[] data, final long sequence) {
+        final byte[] nonce = new byte[DataChannelCryptoContext.NONCE_LENGTH];
+        ByteBuffer.wrap(nonce).putLong(sequence);
+        final byte[] sealed = new byte[data.length + MAC_LENGTH];
+        for (int i = 0; i < data.length; ++i) {
+            sealed[i] = (byte) (data[i] ^ KEY);
+        }
+        ByteBuffer.wrap(sealed, data.length, MAC_LENGTH).putLong(checksum(sealed, data.length));
+        return new Box(nonce, sealed);
+    }
+
+    @NonNull private static byte[] decrypt(@NonNull final Box box) throws ValidationError {
+        final byte[] sealed = box.getData();
+        final int length = sealed.length - MAC_LENGTH;
+        if (length < 0) {
+            throw new ValidationError("Box too short");
+        }
+        if (ByteBuffer.wrap(sealed, length, MAC_LENGTH).getLong() != checksum(sealed, length)) {
+            throw new ValidationError("Checksum mismatch");
+        }
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            data[i] = (byte) (sealed[i] ^ KEY);
+        }
+        return data;
+    }
+
+    private static void spin(final long nanos) {
+        final long until = System.nanoTime() + nanos;
+        while (System.nanoTime() < until) {
+            // Busy wait
+        }
+    }
+
+    private static long checksum(@NonNull final byte[] data, final int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.webrtc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.webrtc.DataChannel;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Saturates a bandwidth-limited loopback data channel and checks the
+ * water marks.
+ */
+public class FlowControlledDataChannelTest {
+    private static final long TIMEOUT_MS = 10_000;
+    private static final long BANDWIDTH = 4 * 1024 * 1024;
+    private static final int MESSAGE_LENGTH = 16 * 1024;
+
+    private ExecutorService executor;
+    private LoopbackDataChannel localChannel;
+    private FlowControlledDataChannel fcdc;
+
+    @Before
+    public void setUp() {
+        this.executor = Executors.newSingleThreadExecutor();
+        final LoopbackDataChannel[] channels = LoopbackDataChannel.createPair(
+            "flow", 1, BANDWIDTH, 0);
+        this.localChannel = channels[0];
+        this.fcdc = new FlowControlledDataChannel(
+            this.localChannel, 64 * 1024, 256 * 1024, this.executor);
+        this.localChannel.registerObserver(new DataChannel.Observer() {
+            @Override
+            public void onBufferedAmountChange(final long bufferedAmount) {
+                FlowControlledDataChannelTest.this.fcdc.bufferedAmountChange();
+            }
+
+            @Override
+            public void onStateChange() {}
+
+            @Override
+            public void onMessage(final DataChannel.Buffer buffer) {}
+        });
+    }
+
+    @After
+    public void tearDown() {
+        this.localChannel.close();
+        this.executor.shutdown();
+    }
+
+    /**
+     * Write messages whenever the channel is ready for the given duration.
+     */
+    private void saturate(final long durationMs) throws Exception {
+        final ByteBuffer message = ByteBuffer.allocate(MESSAGE_LENGTH);
+        final long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMs);
+        while (System.nanoTime() < until) {
+            this.fcdc.ready().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            this.fcdc.write(new DataChannel.Buffer(message.duplicate(), true));
+        }
+    }
+
+    @Test
+    public void testFixedWaterMarks() throws Exception {
+        this.saturate(300);
+        assertEquals(64 * 1024, this.fcdc.getLowWaterMark());
+        assertEquals(256 * 1024, this.fcdc.getHighWaterMark());
+        assertEquals(0, this.fcdc.getDrainRate());
+        assertTrue("Flow control did not pause", this.fcdc.getTimePausedNanos() > 0);
+    }
+
+    @Test
+    public void testAdaptiveWaterMarksFollowDrainRate() throws Exception {
+        final long targetDelayMs = 200;
+        this.fcdc.enableAdaptiveWaterMarks(targetDelayMs, 32 * 1024, 16 * 1024 * 1024);
+        this.saturate(1_500);
+
+        // The drain rate should approximate the link's bandwidth
+        final long drainRate = this.fcdc.getDrainRate();
+        assertTrue("Drain rate " + drainRate,
+            drainRate > BANDWIDTH / 2 && drainRate < BANDWIDTH * 2);
+
+        // ...and the high water mark the bandwidth-delay product
+        final long expected = BANDWIDTH * targetDelayMs / 1000;
+        final long highWaterMark = this.fcdc.getHighWaterMark();
+        assertTrue("High water mark " + highWaterMark,
+            highWaterMark > expected / 2 && highWaterMark < expected * 2);
+        assertEquals(highWaterMark / 4, this.fcdc.getLowWaterMark());
+    }
+
+    @Test
+    public void testAdaptiveWaterMarksAreBounded() throws Exception {
+        this.fcdc.enableAdaptiveWaterMarks(10_000, 32 * 1024, 128 * 1024);
+        this.saturate(500);
+        assertEquals(128 * 1024, this.fcdc.getHighWaterMark());
+        assertEquals(32 * 1024, this.fcdc.getLowWaterMark());
+    }
+
+    @Test
+    public void testConcurrentEventsEndAPauseOnce() throws Exception {
+        final DataChannel dc = mock(DataChannel.class);
+        when(dc.send(any())).thenReturn(true);
+        when(dc.bufferedAmount()).thenReturn(Long.MAX_VALUE);
+        final ExecutorService events = Executors.newFixedThreadPool(8);
+        try {
+            final FlowControlledDataChannel fcdc = new FlowControlledDataChannel(dc, events);
+            final long start = System.nanoTime();
+            fcdc.write(new DataChannel.Buffer(ByteBuffer.allocate(1), true));
+            assertFalse(fcdc.ready().isDone());
+            Thread.sleep(100);
+
+            // Note: A waiting writer continues on the thread resolving the
+            //       future, which leaves a window for further events.
+            fcdc.ready().thenRun(() -> {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException error) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+
+            // Fire several events at once
+            when(dc.bufferedAmount()).thenReturn(0L);
+            for (int i = 0; i < 8; ++i) {
+                fcdc.bufferedAmountChange();
+            }
+            fcdc.ready().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            events.shutdown();
+            assertTrue(events.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            final long pausedNanos = fcdc.getTimePausedNanos();
+            assertTrue("Paused for " + pausedNanos + " ns",
+                pausedNanos > 0 && pausedNanos <= System.nanoTime() - start);
+        } finally {
+            events.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.webrtc;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.webrtc.DataChannel;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory data channel connected to a peer channel, for tests and
+ * benchmarks.
+ *
+ * The link is modelled as a queue draining at a fixed bandwidth followed by
+ * a fixed latency. Once a message has been drained, the buffered amount is
+ * decreased and `onBufferedAmountChange` is fired. Once the latency has
+ * elapsed, the message is handed to the peer's `onMessage`. Both events are
+ * fired from the sending channel's delivery thread, like webrtc.org fires
+ * them from its signalling thread.
+ *
+ * Like a data channel, the link is ordered and reliable.
+ */
+@AnyThread
+class LoopbackDataChannel extends DataChannel {
+    @NonNull private final String label;
+    private final int id;
+    private final long nanosPerByte;
+    private final long latencyNanos;
+    @NonNull private final ScheduledExecutorService delivery;
+    @NonNull private final AtomicLong bufferedAmount = new AtomicLong(0);
+    @NonNull private final Queue<Buffer> draining = new ConcurrentLinkedQueue<>();
+    @NonNull private final Queue<Buffer> inFlight = new ConcurrentLinkedQueue<>();
+    @Nullable private LoopbackDataChannel peer;
+    @Nullable private volatile Observer observer;
+    @NonNull private volatile State state = State.OPEN;
+    private long busyUntilNanos = 0;
+
+    /**
+     * Create a pair of connected data channels.
+     *
+     * @param bytesPerSecond The bandwidth of the link in each direction, or
+     *   0 for an unlimited bandwidth.
+     * @param latencyMs The one-way latency of the link in milliseconds.
+     */
+    @NonNull static LoopbackDataChannel[] createPair(
+        @NonNull final String label,
+        final int id,
+        final long bytesPerSecond,
+        final long latencyMs
+    ) {
+        final LoopbackDataChannel local = new LoopbackDataChannel(
+            label, id, bytesPerSecond, latencyMs);
+        final LoopbackDataChannel remote = new LoopbackDataChannel(
+            label, id, bytesPerSecond, latencyMs);
+        local.peer = remote;
+        remote.peer = local;
+        return new LoopbackDataChannel[] { local, remote };
+    }
+
+    private LoopbackDataChannel(
+        @NonNull final String label,
+        final int id,
+        final long bytesPerSecond,
+        final long latencyMs
+    ) {
+        super(0);
+        this.label = label;
+        this.id = id;
+        // Note: Rounded up so that a non-zero bandwidth always throttles.
+        this.nanosPerByte = bytesPerSecond > 0 ?
+            (TimeUnit.SECONDS.toNanos(1) + bytesPerSecond - 1) / bytesPerSecond : 0;
+        this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMs);
+        this.delivery = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "Loopback." + label + "." + id);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void registerObserver(@NonNull final Observer observer) {
+        this.observer = observer;
+    }
+
+    @Override
+    public void unregisterObserver() {
+        this.observer = null;
+    }
+
+    @Override
+    @NonNull public String label() {
+        return this.label;
+    }
+
+    @Override
+    public int id() {
+        return this.id;
+    }
+
+    @Override
+    @NonNull public State state() {
+        return this.state;
+    }
+
+    @Override
+    public long bufferedAmount() {
+        return this.bufferedAmount.get();
+    }
+
+    @Override
+    public boolean send(@NonNull final Buffer buffer) {
+        if (this.state != State.OPEN) {
+            return false;
+        }
+
+        // Copy the message like webrtc.org does (the caller may reuse the buffer)
+        final ByteBuffer data = ByteBuffer.allocate(buffer.data.remaining());
+        data.put(buffer.data.duplicate());
+        data.flip();
+        final int length = data.remaining();
+        this.bufferedAmount.addAndGet(length);
+
+        // Determine when the message has been drained and when it arrives
+        // Note: Each scheduled task handles the oldest message rather than
+        //       its own, so scheduling jitter cannot reorder messages.
+        final long now = System.nanoTime();
+        final long drainedAt;
+        synchronized (this) {
+            drainedAt = Math.max(now, this.busyUntilNanos) + length * this.nanosPerByte;
+            this.busyUntilNanos = drainedAt;
+            final Buffer message = new Buffer(data, buffer.binary);
+            this.draining.add(message);
+            this.inFlight.add(message);
+        }
+        try {
+            this.delivery.schedule(this::drainOne, drainedAt - now, TimeUnit.NANOSECONDS);
+            this.delivery.schedule(
+                this::deliverOne, drainedAt + this.latencyNanos - now, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException error) {
+            return false;
+        }
+        return true;
+    }
+
+    private void drainOne() {
+        final Buffer message = this.draining.remove();
+        // Note: The receiver may already have consumed the message, but its
+        //       capacity is its length.
+        final long previousAmount = this.bufferedAmount.getAndAdd(-message.data.capacity());
+        final Observer observer = this.observer;
+        if (observer != null) {
+            observer.onBufferedAmountChange(previousAmount);
+        }
+    }
+
+    private void deliverOne() {
+        final Buffer message = this.inFlight.remove();
+        final LoopbackDataChannel peer = this.peer;
+        final Observer observer = peer != null ? peer.observer : null;
+        if (observer != null && peer.state == State.OPEN) {
+            observer.onMessage(message);
+        }
+    }
+
+    /**
+     * Close both channels. Messages that have not been delivered yet are
+     * dropped.
+     */
+    @Override
+    public void close() {
+        final LoopbackDataChannel peer = this.peer;
+        this.closeLocal();
+        if (peer != null) {
+            peer.closeLocal();
+        }
+    }
+
+    private void closeLocal() {
+        if (this.state == State.CLOSED) {
+            return;
+        }
+        this.state = State.CLOSED;
+        this.delivery.shutdownNow();
+        final Observer observer = this.observer;
+        if (observer != null) {
+            observer.onStateChange();
+        }
+    }
+
+    @Override
+    public void dispose() {
+        this.closeLocal();
+    }
+}
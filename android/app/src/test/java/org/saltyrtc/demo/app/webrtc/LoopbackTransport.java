@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.webrtc;
+
+import android.support.annotation.NonNull;
+
+import org.saltyrtc.chunkedDc.Unchunker;
+import org.saltyrtc.demo.app.transport.ChunkMode;
+import org.saltyrtc.demo.app.transport.CryptoMode;
+import org.saltyrtc.tasks.webrtc.crypto.DataChannelCryptoContext;
+import org.webrtc.DataChannel;
+
+/**
+ * A sending and a receiving data channel context connected via a pair of
+ * loopback data channels, wired up the same way the chat wires up a real
+ * data channel.
+ */
+class LoopbackTransport implements AutoCloseable {
+    @NonNull final TransportExecutors executors;
+    @NonNull final LoopbackDataChannel localChannel;
+    @NonNull final LoopbackDataChannel remoteChannel;
+    @NonNull final DataChannelContext sender;
+    @NonNull final DataChannelContext receiver;
+
+    /**
+     * Create a loopback transport.
+     *
+     * @param bytesPerSecond The bandwidth of the link, or 0 for an unlimited
+     *   bandwidth.
+     * @param latencyMs The one-way latency of the link in milliseconds.
+     * @param listener Receives the messages reassembled by the receiver.
+     */
+    LoopbackTransport(
+        @NonNull final CryptoMode cryptoMode,
+        @NonNull final ChunkMode chunkMode,
+        final long bytesPerSecond,
+        final long latencyMs,
+        @NonNull final Unchunker.MessageListener listener
+    ) throws Exception {
+        this.executors = TransportExecutors.create("Loopback", false);
+        final LoopbackDataChannel[] channels = LoopbackDataChannel.createPair(
+            "loopback", 1, bytesPerSecond, latencyMs);
+        this.localChannel = channels[0];
+        this.remoteChannel = channels[1];
+        this.sender = attach(cryptoMode, chunkMode, this.localChannel, buffer -> {
+            throw new AssertionError("Unexpected message to the sender");
+        });
+        this.receiver = attach(cryptoMode, chunkMode, this.remoteChannel, listener);
+    }
+
+    @NonNull private DataChannelContext attach(
+        @NonNull final CryptoMode cryptoMode,
+        @NonNull final ChunkMode chunkMode,
+        @NonNull final DataChannel dc,
+        @NonNull final Unchunker.MessageListener listener
+    ) throws Exception {
+        final DataChannelCryptoContext crypto = cryptoMode != CryptoMode.NONE ?
+            FakeCryptoContext.create() : null;
+        final DataChannelContext dcc = new DataChannelContext(
+            cryptoMode, chunkMode, dc, crypto, listener, this.executors);
+        dc.registerObserver(new DataChannel.Observer() {
+            @Override
+            public void onBufferedAmountChange(final long bufferedAmount) {
+                dcc.fcdc.bufferedAmountChange();
+            }
+
+            @Override
+            public void onStateChange() {}
+
+            @Override
+            public void onMessage(@NonNull final DataChannel.Buffer buffer) {
+                dcc.receive(buffer.data);
+            }
+        });
+        return dcc;
+    }
+
+    @Override
+    public void close() {
+        this.sender.close();
+        this.receiver.close();
+        this.executors.shutdown();
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2016-2019 Threema GmbH
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+package org.saltyrtc.demo.app.webrtc;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.saltyrtc.demo.app.utils.TestMessages;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Feeds stripes directly into the reassembly of a striped transport.
+ */
+public class StripedTransportTest {
+    private static final int STRIPE_LENGTH = 16;
+    private static final int MAX_MESSAGE_LENGTH = 1024;
+
+    private final List<byte[]> received = new ArrayList<>();
+    private StripedTransport transport;
+
+    @Before
+    public void setUp() {
+        this.transport = new StripedTransport(STRIPE_LENGTH, MAX_MESSAGE_LENGTH, buffer -> {
+            final byte[] message = new byte[buffer.remaining()];
+            buffer.get(message);
+            this.received.add(message);
+        });
+    }
+
+    private ByteBuffer stripe(final int id, final int length, final int offset, final int size) {
+        final ByteBuffer stripe = ByteBuffer.allocate(12 + size);
+        stripe.putInt(id);
+        stripe.putInt(length);
+        stripe.putInt(offset);
+        stripe.position(0);
+        return stripe;
+    }
+
+    @Test
+    public void testReassemblesOutOfOrderStripes() {
+        final byte[] message = TestMessages.createMessage(3 * STRIPE_LENGTH + 5, 0);
+        final ByteBuffer buffer = ByteBuffer.wrap(message);
+        this.transport.onStripe(this.transport.createStripe(0, buffer, 3 * STRIPE_LENGTH));
+        this.transport.onStripe(this.transport.createStripe(0, buffer, STRIPE_LENGTH));
+        this.transport.onStripe(this.transport.createStripe(0, buffer, 0));
+        assertEquals(0, this.received.size());
+        this.transport.onStripe(this.transport.createStripe(0, buffer, 2 * STRIPE_LENGTH));
+        assertEquals(1, this.received.size());
+        assertArrayEquals(message, this.received.get(0));
+    }
+
+    @Test
+    public void testHandsOutMessagesInTransferOrder() {
+        final ByteBuffer first = ByteBuffer.wrap(TestMessages.createMessage(10, 1));
+        final ByteBuffer second = ByteBuffer.wrap(TestMessages.createMessage(0, 2));
+        this.transport.onStripe(this.transport.createStripe(1, second, 0));
+        assertEquals(0, this.received.size());
+        this.transport.onStripe(this.transport.createStripe(0, first, 0));
+        assertEquals(2, this.received.size());
+        assertArrayEquals(first.array(), this.received.get(0));
+        assertEquals(0, this.received.get(1).length);
+    }
+
+    @Test
+    public void testIgnoresDuplicateStripes() {
+        final byte[] message = TestMessages.createMessage(2 * STRIPE_LENGTH, 3);
+        final ByteBuffer buffer = ByteBuffer.wrap(message);
+        this.transport.onStripe(this.transport.createStripe(0, buffer, 0));
+        this.transport.onStripe(this.transport.createStripe(0, buffer, 0));
+        assertEquals(0, this.received.size());
+        this.transport.onStripe(this.transport.createStripe(0, buffer, STRIPE_LENGTH));
+        assertEquals(1, this.received.size());
+        assertArrayEquals(message, this.received.get(0));
+    }
+
+    @Test
+    public void testRejectsInvalidLength() {
+        this.transport.onStripe(this.stripe(0, -1, 0, 0));
+        this.transport.onStripe(this.stripe(0, MAX_MESSAGE_LENGTH + 1, 0, STRIPE_LENGTH));
+        this.transport.onStripe(this.stripe(0, Integer.MAX_VALUE, 0, STRIPE_LENGTH));
+
+        // A valid transfer with the same id must still be accepted
+        this.transport.onStripe(this.stripe(0, 4, 0, 4));
+        assertEquals(1, this.received.size());
+        assertEquals(4, this.received.get(0).length);
+    }
+
+    @Test
+    public void testRejectsLengthMismatch() {
+        this.transport.onStripe(this.stripe(0, 2 * STRIPE_LENGTH, 0, STRIPE_LENGTH));
+        this.transport.onStripe(this.stripe(0, 3 * STRIPE_LENGTH, STRIPE_LENGTH, STRIPE_LENGTH));
+        assertEquals(0, this.received.size());
+        this.transport.onStripe(this.stripe(0, 2 * STRIPE_LENGTH, STRIPE_LENGTH, STRIPE_LENGTH));
+        assertEquals(1, this.received.size());
+    }
+
+    @Test
+    public void testRejectsOutOfBoundsStripes() {
+        final int length = 2 * STRIPE_LENGTH;
+        this.transport.onStripe(this.stripe(0, length, -STRIPE_LENGTH, STRIPE_LENGTH));
+        this.transport.onStripe(this.stripe(0, length, 2 * STRIPE_LENGTH, STRIPE_LENGTH));
+        this.transport.onStripe(this.stripe(0, length, 1, STRIPE_LENGTH));
+        this.transport.onStripe(this.stripe(0, length, 0, STRIPE_LENGTH - 1));
+        this.transport.onStripe(this.stripe(0, length, 0, STRIPE_LENGTH + 1));
+        assertEquals(0, this.received.size());
+
+        // Invalid stripes must not have been counted
+        this.transport.onStripe(this.stripe(0, length, 0, STRIPE_LENGTH));
+        assertEquals(0, this.received.size());
+        this.transport.onStripe(this.stripe(0, length, STRIPE_LENGTH, STRIPE_LENGTH));
+        assertEquals(1, this.received.size());
+    }
+
+    @Test
+    public void testRejectsTransfersTooFarAhead() {
+        final int ahead = StripedTransport.MAX_PENDING_TRANSFERS;
+        this.transport.onStripe(this.stripe(ahead, 4, 0, 4));
+        this.transport.onStripe(this.stripe(ahead - 1, 4, 0, 4));
+        for (int id = 0; id < ahead - 1; ++id) {
+            this.transport.onStripe(this.stripe(id, 4, 0, 4));
+        }
+        assertEquals(ahead, this.received.size());
+
+        // Now within the window
+        this.transport.onStripe(this.stripe(ahead, 4, 0, 4));
+        assertEquals(ahead + 1, this.received.size());
+    }
+
+    @Test
+    public void testExpiresStalledTransfers() {
+        final long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(
+            StripedTransport.TRANSFER_TIMEOUT_MS);
+
+        // Transfer 0 is incomplete, transfer 1 has not been started and
+        // transfer 2 is complete
+        this.transport.onStripe(this.stripe(0, 2 * STRIPE_LENGTH, 0, STRIPE_LENGTH));
+        this.transport.onStripe(this.stripe(2, 4, 0, 4));
+        this.transport.expireTransfers(System.nanoTime());
+        assertEquals(0, this.received.size());
+
+        // Transfer 0 is discarded, transfer 1 skipped and transfer 2 handed out
+        this.transport.expireTransfers(System.nanoTime() + 2 * timeoutNanos);
+        assertEquals(1, this.received.size());
+        assertEquals(4, this.received.get(0).length);
+
+        // Late stripes of the discarded transfers are ignored
+        this.transport.onStripe(this.stripe(0, 2 * STRIPE_LENGTH, STRIPE_LENGTH, STRIPE_LENGTH));
+        this.transport.onStripe(this.stripe(1, 4, 0, 4));
+        assertEquals(1, this.received.size());
+        this.transport.onStripe(this.stripe(3, 4, 0, 4));
+        assertEquals(2, this.received.size());
+    }
+
+    @Test
+    public void testDoesNotSkipWithoutWaitingTransfers() {
+        final long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(
+            StripedTransport.TRANSFER_TIMEOUT_MS);
+        this.transport.expireTransfers(System.nanoTime() + 2 * timeoutNanos);
+        this.transport.onStripe(this.stripe(0, 4, 0, 4));
+        assertEquals(1, this.received.size());
+    }
+}
@@ -20,6 +20,10 @@ const TURN_SERVER = null;
 const TURN_USER = null;
 const TURN_PASS = null;
 const DC_LABEL = 'much-secure';
+const RECONNECT_DELAY_MS = 1000;
+
+// Close code of the connection to the server once handed over
+const CLOSE_CODE_HANDOVER = 3003;
 
 class FlowControlledDataChannel {
     constructor(dc, lowWaterMark = 262144, highWaterMark = 1048576) {
@@ -83,9 +87,20 @@ class UnboundedFlowControlledDataChannel extends FlowControlledDataChannel {
 class TestClient {
     start() {
         // Get key store from private key
+        // Note: The key store is kept for reconnecting.
         // noinspection JSValidateTypes
-        const keyStore = new saltyrtcClient.KeyStore(PRIVATE_KEY);
+        this.keyStore = new saltyrtcClient.KeyStore(PRIVATE_KEY);
+
+        // Connect to the server
+        this.connect();
+
+        // Bind button click events
+        document.querySelector('#sendSignaling').onclick = this.sendSignaling.bind(this);
+        document.querySelector('#sendDc').onclick = this.sendDc.bind(this);
+        document.querySelector('#sendData').onclick = this.sendData.bind(this);
+    }
 
+    connect() {
         // Create SaltyRTC tasks
         // Note: We create a 'v0' task for backwards compatibility with legacy
         //       demo versions.
@@ -105,7 +120,7 @@ class TestClient {
         this.client = new saltyrtcClient.SaltyRTCBuilder()
             .withLoggingLevel(LOG_LEVEL)
             .connectTo(HOST, PORT)
-            .withKeyStore(keyStore)
+            .withKeyStore(this.keyStore)
             .withServerKey(SERVER_KEY)
             .withTrustedPeerKey(TRUSTED_KEY)
             .withPingInterval(30)
@@ -115,11 +130,6 @@ class TestClient {
         this.client.on('connection-error', this.onConnectionError.bind(this));
         this.client.on('connection-closed', this.onConnectionClosed.bind(this));
         this.client.connect();
-
-        // Bind button click events
-        document.querySelector('#sendSignaling').onclick = this.sendSignaling.bind(this);
-        document.querySelector('#sendDc').onclick = this.sendDc.bind(this);
-        document.querySelector('#sendData').onclick = this.sendData.bind(this);
     }
 
     onStateChange(newState) {
@@ -133,7 +143,9 @@ class TestClient {
             const messages = document.querySelector('#messages');
             messages.classList.remove('disabled');
             const loading = document.querySelector('#loading');
-            loading.parentNode.removeChild(loading);
+            if (loading !== null) {
+                loading.parentNode.removeChild(loading);
+            }
 
             // Initialise WebRTC peer-to-peer connection
             this.initWebRTC();
@@ -146,6 +158,57 @@ class TestClient {
 
     onConnectionClosed(closeCode) {
         console.debug('Connection was closed with code', closeCode);
+
+        // Reconnect, so the peer can signal a new session
+        // Note: Once handed over, the peer connection is being watched instead.
+        if (closeCode.data !== CLOSE_CODE_HANDOVER) {
+            this.scheduleReconnect();
+        }
+    }
+
+    scheduleReconnect() {
+        if (this.reconnectTimer !== undefined) {
+            return;
+        }
+        console.info(`Reconnecting in ${RECONNECT_DELAY_MS} ms`);
+        this.reconnectTimer = setTimeout(() => {
+            this.reconnectTimer = undefined;
+            this.reconnect();
+        }, RECONNECT_DELAY_MS);
+    }
+
+    reconnect() {
+        console.info('Reconnecting');
+
+        // Tear down the session without being notified about it
+        this.client.off();
+        if (this.task !== undefined) {
+            this.task.off();
+            this.task = undefined;
+        }
+        if (this.pc !== undefined) {
+            for (const dc of [this.sdc, this.msdc !== undefined ? this.msdc.dc : undefined]) {
+                if (dc !== undefined) {
+                    dc.onclose = null;
+                    dc.onerror = null;
+                }
+            }
+            this.pc.onconnectionstatechange = null;
+            this.pc.close();
+            this.pc = undefined;
+            this.sdc = undefined;
+            this.msdc = undefined;
+        }
+        this.client.disconnect();
+
+        // Reset UI elements
+        document.querySelector('#messages').classList.add('disabled');
+        document.querySelector('#sendDc').disabled = true;
+        this.setState('handover', 'no');
+        this.setState('dataChannel', 'closed');
+
+        // Connect with a new client (but the same key store)
+        this.connect();
     }
 
     initWebRTC() {
@@ -179,6 +242,11 @@ class TestClient {
         this.pc.onconnectionstatechange = () => {
             console.debug('RTC connection state change:', this.pc.connectionState);
             this.setState('rtcConnection', this.pc.connectionState);
+
+            // Reconnect, so the peer can signal a new session
+            if (this.pc.connectionState === 'failed') {
+                this.scheduleReconnect();
+            }
         };
         this.pc.oniceconnectionstatechange = () => {
             console.debug('ICE connection state change:', this.pc.iceConnectionState);
@@ -192,6 +260,13 @@ class TestClient {
         // Set up ICE candidate handling
         this.setupIceCandidateHandling();
 
+        // Answer offers of the peer (e.g. to restart ICE after a network change)
+        this.task.on('offer', (offer) => {
+            this.responderFlow(offer.data).catch((e) => {
+                console.error('Unable to answer offer:', e);
+            });
+        });
+
         // Log incoming data channels
         this.pc.ondatachannel = (e) => {
             console.debug('New data channel was created:', e.channel.label);
@@ -275,9 +350,12 @@ class TestClient {
             console.info(`Data channel ${dc.label} open`);
 
             // Rebind close event
+            // Note: Signalling depends on this channel from now on, so a new
+            //       session needs to be signalled once it has been closed.
             dc.onclose = () => {
                 console.info(`Data channel ${dc.label} closed`);
                 link.closed();
+                this.scheduleReconnect();
             };
 
             // Initiate handover
@@ -320,6 +398,22 @@ class TestClient {
         this.task.sendOffer(offer);
     }
 
+    async responderFlow(offer) {
+        console.warn('Offer', offer);
+        console.debug('Set remote description');
+        await this.pc.setRemoteDescription(offer);
+
+        // Create answer
+        console.debug('Create answer');
+        const answer = await this.pc.createAnswer();
+        console.warn('Answer', answer);
+        console.debug('Set local description');
+        await this.pc.setLocalDescription(answer);
+        console.debug('Send answer to peer');
+        // noinspection JSCheckFunctionSignatures
+        this.task.sendAnswer(answer);
+    }
+
     createMuchSecureChannel() {
         // Create channel
         const dc = this.pc.createDataChannel(DC_LABEL);